@@ -0,0 +1,121 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BackgroundTasks runs the background work of SQLContainers, such as page
+ * read-ahead, row count refreshes and write-behind. The executor is shared by
+ * all containers and uses daemon threads, so it never prevents the JVM from
+ * shutting down.
+ * 
+ * The number of threads and queued tasks is bounded. When both are exhausted,
+ * optional work such as read-ahead is dropped, and other tasks are run on the
+ * thread submitting them.
+ */
+class BackgroundTasks {
+    /** Maximum number of background threads */
+    static final int MAX_THREADS = Math.max(4, Runtime.getRuntime()
+            .availableProcessors() * 2);
+    /** Maximum number of tasks waiting for a thread */
+    static final int MAX_QUEUED_TASKS = 1000;
+
+    private static ThreadPoolExecutor executor;
+    private static ScheduledExecutorService scheduler;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SQLContainer background task");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private BackgroundTasks() {
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            /*
+             * The threads are not timed out when idle, which Java 5 does not
+             * support for core threads, but they are daemons.
+             */
+            executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                            MAX_QUEUED_TASKS), THREAD_FACTORY,
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+        return executor;
+    }
+
+    /**
+     * Submits a task for execution on a background thread. If all threads
+     * are busy and the queue is full, the task is run on the calling thread
+     * before returning.
+     * 
+     * @param task
+     *            the task
+     * @return Future representing the result of the task
+     */
+    static <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        try {
+            getExecutor().execute(future);
+        } catch (RejectedExecutionException e) {
+            /* Saturated, the caller does the work itself. */
+            future.run();
+        }
+        return future;
+    }
+
+    /**
+     * Submits a task whose result is not required for execution on a
+     * background thread. If all threads are busy and the queue is full, the
+     * task is dropped and the returned Future is cancelled.
+     * 
+     * @param task
+     *            the task
+     * @return Future representing the result of the task
+     */
+    static <T> Future<T> submitOptional(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        try {
+            getExecutor().execute(future);
+        } catch (RejectedExecutionException e) {
+            future.cancel(false);
+        }
+        return future;
+    }
+
+    /**
+     * Submits a task for execution on a background thread after the given
+     * delay. The scheduler only hands the task over to the executor, so long
+     * running tasks do not delay each other.
+     * 
+     * @param task
+     *            the task
+     * @param delayMillis
+     *            the delay in milliseconds
+     * @return Future that can be used to cancel the task before it is started
+     */
+    static synchronized <T> Future<?> schedule(final Callable<T> task,
+            long delayMillis) {
+        if (scheduler == null) {
+            scheduler = Executors
+                    .newSingleThreadScheduledExecutor(THREAD_FACTORY);
+        }
+        return scheduler.schedule(new Runnable() {
+            public void run() {
+                submit(task);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
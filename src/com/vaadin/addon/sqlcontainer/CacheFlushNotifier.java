@@ -2,8 +2,10 @@ package com.vaadin.addon.sqlcontainer;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.vaadin.addon.sqlcontainer.query.FreeformQuery;
 import com.vaadin.addon.sqlcontainer.query.QueryDelegate;
@@ -12,14 +14,65 @@ import com.vaadin.addon.sqlcontainer.query.TableQuery;
 /**
  * CacheFlushNotifier is a simple static notification mechanism to inform other
  * SQLContainers that the contents of their caches may have become stale.
+ * 
+ * Registered containers are indexed by table name and by query string, so a
+ * notification only visits the containers connected to the same table or
+ * query. The registry is safe to use from concurrent sessions.
+ * 
+ * If an {@link InvalidationTransport} is installed, the notifications are also
+ * published to the other nodes of a cluster, and the notifications received
+ * from them are passed to the local containers.
  */
 class CacheFlushNotifier {
     /*
-     * SQLContainer instance reference list and dead reference queue. Used for
-     * the cache flush notification feature.
+     * SQLContainer instance references indexed by table name and query
+     * string, and the dead reference queue. Used for the cache flush
+     * notification feature.
      */
-    private static List<WeakReference<SQLContainer>> allInstances = new ArrayList<WeakReference<SQLContainer>>();
-    private static ReferenceQueue<SQLContainer> deadInstances = new ReferenceQueue<SQLContainer>();
+    private static final ConcurrentMap<String, ConcurrentMap<ContainerReference, Boolean>> tableInstances = new ConcurrentHashMap<String, ConcurrentMap<ContainerReference, Boolean>>();
+    private static final ConcurrentMap<String, ConcurrentMap<ContainerReference, Boolean>> queryInstances = new ConcurrentHashMap<String, ConcurrentMap<ContainerReference, Boolean>>();
+    private static final ReferenceQueue<SQLContainer> deadInstances = new ReferenceQueue<SQLContainer>();
+
+    private static volatile InvalidationTransport transport;
+
+    /**
+     * Passes the invalidations received from other nodes to the local
+     * containers.
+     */
+    private static final InvalidationTransport.Receiver RECEIVER = new InvalidationTransport.Receiver() {
+        public void invalidationReceived(CacheInvalidation invalidation) {
+            deliver(invalidation, null);
+        }
+    };
+
+    /**
+     * Weak reference to a registered container that remembers the index entry
+     * it was stored under, so that it can be removed once the container has
+     * been garbage collected.
+     */
+    private static class ContainerReference extends
+            WeakReference<SQLContainer> {
+        private final ConcurrentMap<String, ConcurrentMap<ContainerReference, Boolean>> index;
+        private final String key;
+
+        public ContainerReference(SQLContainer c,
+                ConcurrentMap<String, ConcurrentMap<ContainerReference, Boolean>> index,
+                String key) {
+            super(c, deadInstances);
+            this.index = index;
+            this.key = key;
+        }
+
+        public void remove() {
+            ConcurrentMap<ContainerReference, Boolean> refs = index.get(key);
+            if (refs != null) {
+                refs.remove(this);
+                if (refs.isEmpty()) {
+                    index.remove(key, refs);
+                }
+            }
+        }
+    }
 
     /**
      * Adds the given SQLContainer to the cache flush notification receiver list
@@ -29,8 +82,39 @@ class CacheFlushNotifier {
      */
     public static void addInstance(SQLContainer c) {
         removeDeadReferences();
-        if (c != null) {
-            allInstances.add(new WeakReference<SQLContainer>(c, deadInstances));
+        if (c == null) {
+            return;
+        }
+        QueryDelegate qd = c.getQueryDelegate();
+        if (qd instanceof TableQuery) {
+            add(c, tableInstances, ((TableQuery) qd).getTableName());
+        } else if (qd instanceof FreeformQuery) {
+            add(c, queryInstances, ((FreeformQuery) qd).getQueryString());
+        }
+    }
+
+    private static void add(SQLContainer c,
+            ConcurrentMap<String, ConcurrentMap<ContainerReference, Boolean>> index,
+            String key) {
+        ContainerReference ref = new ContainerReference(c, index, key);
+        while (true) {
+            ConcurrentMap<ContainerReference, Boolean> refs = index.get(key);
+            if (refs == null) {
+                ConcurrentMap<ContainerReference, Boolean> newRefs = new ConcurrentHashMap<ContainerReference, Boolean>();
+                refs = index.putIfAbsent(key, newRefs);
+                if (refs == null) {
+                    refs = newRefs;
+                }
+            }
+            refs.put(ref, Boolean.TRUE);
+            /*
+             * The map may have been dropped from the index as empty just
+             * before the reference was added to it; if so, try again.
+             */
+            if (index.get(key) == refs) {
+                return;
+            }
+            refs.remove(ref);
         }
     }
 
@@ -41,48 +125,121 @@ class CacheFlushNotifier {
         java.lang.ref.Reference<? extends SQLContainer> dead = deadInstances
                 .poll();
         while (dead != null) {
-            allInstances.remove(dead);
+            ((ContainerReference) dead).remove();
             dead = deadInstances.poll();
         }
     }
 
     /**
-     * Iterates through the instances and notifies containers which are
-     * connected to the same table or are using the same query string.
+     * Sets the transport used to pass notifications to and from other JVMs.
+     * The previously installed transport is stopped.
+     * 
+     * @param newTransport
+     *            the transport, or null to notify only local containers
+     */
+    public static synchronized void setTransport(
+            InvalidationTransport newTransport) {
+        if (transport != null) {
+            transport.stop();
+        }
+        transport = newTransport;
+        if (transport != null) {
+            transport.start(RECEIVER);
+        }
+    }
+
+    /**
+     * Notifies the containers which are connected to the same table or are
+     * using the same query string of the rows changed by the given container.
      * 
      * @param c
      *            SQLContainer that issued the cache flush notification
+     * @param invalidation
+     *            the changed rows
      */
-    public static void notifyOfCacheFlush(SQLContainer c) {
+    public static void notifyOfCacheFlush(SQLContainer c,
+            CacheInvalidation invalidation) {
         removeDeadReferences();
-        for (WeakReference<SQLContainer> wr : allInstances) {
-            if (wr.get() != null) {
-                SQLContainer wrc = wr.get();
-                if (wrc == null) {
-                    continue;
-                }
-                /*
-                 * If the reference points to the container sending the
-                 * notification, do nothing.
-                 */
-                if (wrc.equals(c)) {
-                    continue;
-                }
-                /* Compare QueryDelegate types and tableName/queryString */
-                QueryDelegate wrQd = wrc.getQueryDelegate();
-                QueryDelegate qd = c.getQueryDelegate();
-                if (wrQd instanceof TableQuery
-                        && qd instanceof TableQuery
-                        && ((TableQuery) wrQd).getTableName().equals(
-                                ((TableQuery) qd).getTableName())) {
-                    wrc.refresh();
-                } else if (wrQd instanceof FreeformQuery
-                        && qd instanceof FreeformQuery
-                        && ((FreeformQuery) wrQd).getQueryString().equals(
-                                ((FreeformQuery) qd).getQueryString())) {
-                    wrc.refresh();
-                }
+        QueryDelegate qd = c.getQueryDelegate();
+        CacheInvalidation addressed;
+        if (qd instanceof TableQuery) {
+            addressed = new CacheInvalidation(((TableQuery) qd).getTableName(),
+                    null, invalidation.getRows());
+        } else if (qd instanceof FreeformQuery) {
+            addressed = new CacheInvalidation(null,
+                    ((FreeformQuery) qd).getQueryString(),
+                    invalidation.getRows());
+        } else {
+            return;
+        }
+        deliver(addressed, c);
+        InvalidationTransport t = transport;
+        if (t != null) {
+            t.publish(addressed);
+        }
+    }
+
+    /**
+     * Passes the given invalidation to the containers it is addressed to. The
+     * shared row and query result caches of the containers are invalidated
+     * here, once per cache, instead of by each container.
+     * 
+     * @param invalidation
+     *            the invalidation
+     * @param sender
+     *            the container that sent the invalidation, which is not
+     *            notified, or null
+     */
+    private static void deliver(CacheInvalidation invalidation,
+            SQLContainer sender) {
+        ConcurrentMap<ContainerReference, Boolean> refs = null;
+        if (invalidation.getTableName() != null) {
+            refs = tableInstances.get(invalidation.getTableName());
+        } else if (invalidation.getQueryString() != null) {
+            refs = queryInstances.get(invalidation.getQueryString());
+        }
+        if (refs == null) {
+            return;
+        }
+        /* The caches of the sender were invalidated when it wrote the rows */
+        Map<Object, Boolean> invalidatedCaches = new IdentityHashMap<Object, Boolean>();
+        if (sender != null) {
+            invalidatedCaches.put(sender.getSharedRowCache(), Boolean.TRUE);
+            invalidatedCaches.put(sender.getQueryResultCache(), Boolean.TRUE);
+        }
+        for (ContainerReference ref : refs.keySet()) {
+            SQLContainer wrc = ref.get();
+            /*
+             * If the reference points to the container sending the
+             * notification, do nothing.
+             */
+            if (wrc == null || wrc.equals(sender)) {
+                continue;
+            }
+            if (invalidation.getTableName() != null) {
+                invalidateSharedCaches(wrc, invalidation, invalidatedCaches);
             }
+            wrc.invalidateCache(invalidation);
+        }
+    }
+
+    /**
+     * Invalidates the shared caches of the given container that are not yet
+     * keys of the given identity map, and adds them to it.
+     */
+    private static void invalidateSharedCaches(SQLContainer c,
+            CacheInvalidation invalidation,
+            Map<Object, Boolean> invalidatedCaches) {
+        SharedRowCache rowCache = c.getSharedRowCache();
+        if (rowCache != null
+                && invalidatedCaches.put(rowCache, Boolean.TRUE) == null) {
+            rowCache.invalidate(invalidation.getTableName(), invalidation);
+        }
+        QueryResultCache resultCache = c.getQueryResultCache();
+        if (resultCache != null
+                && invalidatedCaches.put(resultCache, Boolean.TRUE) == null) {
+            resultCache.invalidateTable(invalidation.getTableName());
         }
     }
+
 }
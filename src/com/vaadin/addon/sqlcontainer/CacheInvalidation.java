@@ -0,0 +1,126 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * CacheInvalidation describes the rows written through an SQLContainer, so that
+ * other containers connected to the same table or query can update only the
+ * affected parts of their caches. An invalidation without rows tells the
+ * receiving containers to refresh completely.
+ * 
+ * Invalidations sent to other containers are addressed to the table name or
+ * the query string of the sending container. They are serializable so that an
+ * {@link InvalidationTransport} can pass them on to other JVMs.
+ */
+public class CacheInvalidation implements Serializable {
+    private static final long serialVersionUID = -2740518293346750102L;
+
+    /** Type of a row change */
+    public enum Operation {
+        INSERT, UPDATE, DELETE
+    }
+
+    private final String tableName;
+    private final String queryString;
+    private final Map<RowId, Operation> rows;
+
+    /**
+     * Creates an invalidation of all rows.
+     */
+    CacheInvalidation() {
+        this(null, null, null);
+    }
+
+    /**
+     * Creates an invalidation of the given rows.
+     * 
+     * @param rows
+     *            the changed rows mapped to the type of their change
+     */
+    CacheInvalidation(Map<RowId, Operation> rows) {
+        this(null, null, rows);
+    }
+
+    /**
+     * Creates an invalidation of rows that have all changed the same way.
+     * 
+     * @param ids
+     *            the ids of the changed rows
+     * @param operation
+     *            the type of the change
+     */
+    CacheInvalidation(Collection<RowId> ids, Operation operation) {
+        Map<RowId, Operation> changed = new LinkedHashMap<RowId, Operation>();
+        for (RowId id : ids) {
+            changed.put(id, operation);
+        }
+        tableName = null;
+        queryString = null;
+        rows = Collections.unmodifiableMap(changed);
+    }
+
+    /**
+     * Creates an invalidation addressed to the containers of the given table
+     * or query.
+     * 
+     * @param tableName
+     *            the table name of TableQuery containers, or null
+     * @param queryString
+     *            the query string of FreeformQuery containers, or null
+     * @param rows
+     *            the changed rows mapped to the type of their change, or null
+     *            if all rows should be considered changed
+     */
+    public CacheInvalidation(String tableName, String queryString,
+            Map<RowId, Operation> rows) {
+        this.tableName = tableName;
+        this.queryString = queryString;
+        if (rows == null) {
+            this.rows = null;
+        } else {
+            this.rows = Collections
+                    .unmodifiableMap(new LinkedHashMap<RowId, Operation>(rows));
+        }
+    }
+
+    /**
+     * @return the table name of the containers this invalidation is addressed
+     *         to, or null
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return the query string of the containers this invalidation is
+     *         addressed to, or null
+     */
+    public String getQueryString() {
+        return queryString;
+    }
+
+    /**
+     * @return true if all rows should be considered changed
+     */
+    public boolean isAllRows() {
+        return rows == null;
+    }
+
+    /**
+     * @return the changed rows mapped to the type of their change, or null if
+     *         all rows should be considered changed
+     */
+    public Map<RowId, Operation> getRows() {
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        String target = tableName != null ? tableName : queryString;
+        return target + ": " + (isAllRows() ? "all rows" : rows.toString());
+    }
+}
@@ -5,8 +5,9 @@ import java.util.Map;
 
 /**
  * CacheMap extends LinkedHashMap, adding the possibility to adjust maximum
- * number of items. In SQLContainer this is used for RowItem -cache. Cache size
- * will be two times the page length parameter of the container.
+ * number of items. In SQLContainer this is used for the seek paging
+ * bookmarks. Cache size will be two times the page length parameter of the
+ * container.
  */
 class CacheMap<K, V> extends LinkedHashMap<K, V> {
     private static final long serialVersionUID = 679999766473555231L;
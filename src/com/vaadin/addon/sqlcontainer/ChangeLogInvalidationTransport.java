@@ -0,0 +1,823 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool;
+
+/**
+ * ChangeLogInvalidationTransport passes cache invalidations between JVMs
+ * through a change log table in the shared database, so no message broker is
+ * needed. Each node appends the invalidations of its containers to the table
+ * and polls the table for entries written by other nodes that it has not read
+ * yet.
+ * 
+ * Invalidations are collected for a short delay before they are written, and
+ * the invalidations of the same table or query are combined into one entry,
+ * so that a burst of writes produces only a few log entries. An entry that
+ * would list more than the maximum number of rows invalidates all rows of its
+ * table instead. The entries read in one poll are combined the same way
+ * before they are passed on. Entries older than the retention time are
+ * deleted.
+ * 
+ * The payload of an entry is written in a fixed binary format rather than with
+ * Java serialization, so reading the change log never instantiates classes
+ * named by its contents: the table name or query string, then each row as its
+ * operation and its typed primary key values. Key values of the common SQL
+ * types are supported; an entry with a key value of another type invalidates
+ * all rows of its table or query instead. Entries that cannot be read are
+ * skipped.
+ * 
+ * The change log table must be created beforehand, e.g. on HSQLDB:
+ * 
+ * <pre>
+ * CREATE TABLE SQLCONTAINER_CHANGELOG (
+ *     ID BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY,
+ *     NODE VARCHAR(36) NOT NULL,
+ *     CREATED TIMESTAMP NOT NULL,
+ *     PAYLOAD VARBINARY(65536) NOT NULL)
+ * </pre>
+ * 
+ * On other databases use the native auto increment and binary types, e.g.
+ * BIGSERIAL and BYTEA on PostgreSQL.
+ * 
+ * Ids are assigned when an entry is inserted, not when it is committed, so an
+ * entry may become visible after entries with higher ids have been read. Each
+ * poll therefore reads the entries with higher ids than any read before and,
+ * again, the entries created within the commit grace time before the newest
+ * entry read; entries already read are recognized by their ids. The creation
+ * time is taken from the database clock, so the clocks of the nodes need not
+ * agree.
+ */
+public class ChangeLogInvalidationTransport implements InvalidationTransport {
+
+    public static final String DEFAULT_TABLE_NAME = "SQLCONTAINER_CHANGELOG";
+    /** Default time in milliseconds between polls */
+    public static final int DEFAULT_POLL_INTERVAL = 1000;
+    /** Default time in milliseconds invalidations are collected */
+    public static final int DEFAULT_PUBLISH_DELAY = 200;
+    /** Default maximum number of rows listed in one entry */
+    public static final int DEFAULT_MAX_ROWS = 1000;
+    /** Default time in milliseconds entries are kept in the change log */
+    public static final long DEFAULT_RETENTION_TIME = 60 * 60 * 1000;
+    /** Default longest time in milliseconds an entry may take to commit */
+    public static final long DEFAULT_COMMIT_GRACE = 10000;
+
+    /** Version of the payload format */
+    private static final int PAYLOAD_VERSION = 1;
+
+    /** Type tags of the key values in a payload */
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int LONG = 3;
+    private static final int SHORT = 4;
+    private static final int BYTE = 5;
+    private static final int DOUBLE = 6;
+    private static final int FLOAT = 7;
+    private static final int BOOLEAN = 8;
+    private static final int BIG_DECIMAL = 9;
+    private static final int BIG_INTEGER = 10;
+    private static final int SQL_DATE = 11;
+    private static final int SQL_TIME = 12;
+    private static final int TIMESTAMP = 13;
+    private static final int DATE = 14;
+    private static final int UUID_VALUE = 15;
+
+    private final JDBCConnectionPool connectionPool;
+    private final String tableName;
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private int pollInterval = DEFAULT_POLL_INTERVAL;
+    private int publishDelay = DEFAULT_PUBLISH_DELAY;
+    private int maxRows = DEFAULT_MAX_ROWS;
+    private long retentionTime = DEFAULT_RETENTION_TIME;
+    private long commitGrace = DEFAULT_COMMIT_GRACE;
+
+    private Receiver receiver;
+    private Future<?> scheduledPoll;
+
+    /** Held while polling, guards the cursor and the ids read */
+    private final Object pollLock = new Object();
+    /** The highest id read */
+    private long cursor = Long.MIN_VALUE;
+    /** The creation time of the newest entry read, 0 if none */
+    private long newestCreated;
+    /** Creation times of the entries read within the commit grace time */
+    private final Map<Long, Long> recentIds = new HashMap<Long, Long>();
+    private long lastPurge;
+
+    /** Invalidations waiting to be written, keyed by their table or query */
+    private final Map<String, CacheInvalidation> pending = new LinkedHashMap<String, CacheInvalidation>();
+    private Future<?> scheduledPublish;
+
+    /** Held while writing, so that entries are written in order */
+    private final Object writeLock = new Object();
+
+    /**
+     * Creates a transport using the change log table with the default name.
+     * 
+     * @param connectionPool
+     *            the connection pool of the shared database
+     */
+    public ChangeLogInvalidationTransport(JDBCConnectionPool connectionPool) {
+        this(connectionPool, DEFAULT_TABLE_NAME);
+    }
+
+    /**
+     * Creates a transport using the given change log table.
+     * 
+     * @param connectionPool
+     *            the connection pool of the shared database
+     * @param tableName
+     *            the name of the change log table
+     */
+    public ChangeLogInvalidationTransport(JDBCConnectionPool connectionPool,
+            String tableName) {
+        if (connectionPool == null) {
+            throw new IllegalArgumentException(
+                    "Connection pool must not be null.");
+        }
+        if (tableName == null || tableName.length() == 0) {
+            throw new IllegalArgumentException(
+                    "Table name must be given.");
+        }
+        this.connectionPool = connectionPool;
+        this.tableName = tableName;
+    }
+
+    /**
+     * @return the id this node writes to the change log entries it publishes
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Sets the time between polls of the change log.
+     * 
+     * @param pollInterval
+     *            the interval in milliseconds
+     */
+    public void setPollInterval(int pollInterval) {
+        if (pollInterval <= 0) {
+            throw new IllegalArgumentException(
+                    "Poll interval must be positive.");
+        }
+        this.pollInterval = pollInterval;
+    }
+
+    public int getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Sets the time invalidations are collected before they are written to
+     * the change log.
+     * 
+     * @param publishDelay
+     *            the delay in milliseconds, 0 to write immediately
+     */
+    public void setPublishDelay(int publishDelay) {
+        if (publishDelay < 0) {
+            throw new IllegalArgumentException(
+                    "Publish delay must not be negative.");
+        }
+        this.publishDelay = publishDelay;
+    }
+
+    public int getPublishDelay() {
+        return publishDelay;
+    }
+
+    /**
+     * Sets the maximum number of rows listed in one change log entry. Larger
+     * entries invalidate all rows of their table or query instead.
+     * 
+     * @param maxRows
+     *            the maximum number of rows
+     */
+    public void setMaxRows(int maxRows) {
+        if (maxRows <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum number of rows must be positive.");
+        }
+        this.maxRows = maxRows;
+    }
+
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    /**
+     * Sets the time entries are kept in the change log. It should be well
+     * above the poll interval, so that no node misses an entry.
+     * 
+     * @param retentionTime
+     *            the retention time in milliseconds
+     */
+    public void setRetentionTime(long retentionTime) {
+        if (retentionTime <= 0) {
+            throw new IllegalArgumentException(
+                    "Retention time must be positive.");
+        }
+        this.retentionTime = retentionTime;
+    }
+
+    public long getRetentionTime() {
+        return retentionTime;
+    }
+
+    /**
+     * Sets the longest time an entry may take from its insert to its commit.
+     * Entries created within this time before the newest entry read are read
+     * again on every poll, so that entries committed late are not missed.
+     * 
+     * @param commitGrace
+     *            the grace time in milliseconds
+     */
+    public void setCommitGrace(long commitGrace) {
+        if (commitGrace < 0) {
+            throw new IllegalArgumentException(
+                    "Commit grace time must not be negative.");
+        }
+        this.commitGrace = commitGrace;
+    }
+
+    public long getCommitGrace() {
+        return commitGrace;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.InvalidationTransport#start(com.vaadin.
+     * addon.sqlcontainer.InvalidationTransport.Receiver)
+     */
+    public synchronized void start(Receiver receiver) {
+        if (receiver == null) {
+            throw new IllegalArgumentException("Receiver must not be null.");
+        }
+        if (this.receiver != null) {
+            throw new IllegalStateException("Transport is already started.");
+        }
+        synchronized (pollLock) {
+            try {
+                readEntries(null);
+            } catch (SQLException e) {
+                throw new RuntimeException("Failed to read the change log.", e);
+            }
+        }
+        this.receiver = receiver;
+        schedulePoll();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.InvalidationTransport#stop()
+     */
+    public void stop() {
+        synchronized (this) {
+            receiver = null;
+            if (scheduledPoll != null) {
+                scheduledPoll.cancel(false);
+                scheduledPoll = null;
+            }
+        }
+        flush();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.InvalidationTransport#publish(com.vaadin
+     * .addon.sqlcontainer.CacheInvalidation)
+     */
+    public synchronized void publish(CacheInvalidation invalidation) {
+        String key = getKey(invalidation);
+        pending.put(key, combine(pending.get(key), invalidation));
+        if (scheduledPublish == null) {
+            scheduledPublish = BackgroundTasks.schedule(new Callable<Void>() {
+                public Void call() {
+                    flush();
+                    return null;
+                }
+            }, publishDelay);
+        }
+    }
+
+    /**
+     * Writes the collected invalidations to the change log immediately.
+     * Invalidations that could not be written are retried later.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            List<CacheInvalidation> entries;
+            synchronized (this) {
+                if (scheduledPublish != null) {
+                    scheduledPublish.cancel(false);
+                    scheduledPublish = null;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                entries = new ArrayList<CacheInvalidation>(pending.values());
+                pending.clear();
+            }
+            try {
+                writeEntries(entries);
+            } catch (SQLException e) {
+                /* Put the entries back and try again after a while */
+                synchronized (this) {
+                    for (CacheInvalidation entry : entries) {
+                        String key = getKey(entry);
+                        pending.put(key, combine(entry, pending.get(key)));
+                    }
+                    if (scheduledPublish == null && receiver != null) {
+                        scheduledPublish = BackgroundTasks.schedule(
+                                new Callable<Void>() {
+                                    public Void call() {
+                                        flush();
+                                        return null;
+                                    }
+                                }, pollInterval);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the entries written by other nodes since the previous poll and
+     * passes them on to the receiver. Old entries are deleted at most once
+     * per poll interval.
+     */
+    void poll() {
+        synchronized (pollLock) {
+            Receiver r;
+            synchronized (this) {
+                r = receiver;
+            }
+            if (r == null) {
+                return;
+            }
+            Map<String, CacheInvalidation> received = new LinkedHashMap<String, CacheInvalidation>();
+            try {
+                readEntries(received);
+                long now = System.currentTimeMillis();
+                if (now - lastPurge > pollInterval) {
+                    lastPurge = now;
+                    purgeEntries(now - retentionTime);
+                }
+            } catch (SQLException e) {
+                /* The entries are read again on the next poll */
+            }
+            for (CacheInvalidation invalidation : received.values()) {
+                r.invalidationReceived(invalidation);
+            }
+        }
+    }
+
+    private void schedulePoll() {
+        scheduledPoll = BackgroundTasks.schedule(new Callable<Void>() {
+            public Void call() {
+                poll();
+                synchronized (ChangeLogInvalidationTransport.this) {
+                    if (receiver != null) {
+                        schedulePoll();
+                    }
+                }
+                return null;
+            }
+        }, pollInterval);
+    }
+
+    /**
+     * Combines the given invalidations of the same table or query. A deletion
+     * or insertion of a row overrides an update of it, and the combined
+     * invalidation covers all rows if it would list more than the maximum
+     * number of rows.
+     */
+    private CacheInvalidation combine(CacheInvalidation earlier,
+            CacheInvalidation later) {
+        if (earlier == null) {
+            return limitRows(later);
+        }
+        if (later == null) {
+            return limitRows(earlier);
+        }
+        Map<RowId, CacheInvalidation.Operation> rows = null;
+        if (!earlier.isAllRows() && !later.isAllRows()) {
+            rows = new LinkedHashMap<RowId, CacheInvalidation.Operation>(
+                    earlier.getRows());
+            for (Map.Entry<RowId, CacheInvalidation.Operation> row : later
+                    .getRows().entrySet()) {
+                if (row.getValue() != CacheInvalidation.Operation.UPDATE
+                        || !rows.containsKey(row.getKey())) {
+                    rows.put(row.getKey(), row.getValue());
+                }
+            }
+        }
+        return limitRows(new CacheInvalidation(earlier.getTableName(),
+                earlier.getQueryString(), rows));
+    }
+
+    private CacheInvalidation limitRows(CacheInvalidation invalidation) {
+        if (!invalidation.isAllRows()
+                && invalidation.getRows().size() > maxRows) {
+            return new CacheInvalidation(invalidation.getTableName(),
+                    invalidation.getQueryString(), null);
+        }
+        return invalidation;
+    }
+
+    private static String getKey(CacheInvalidation invalidation) {
+        if (invalidation.getTableName() != null) {
+            return "T" + invalidation.getTableName();
+        }
+        return "Q" + invalidation.getQueryString();
+    }
+
+    private void writeEntries(List<CacheInvalidation> entries)
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn.prepareStatement("INSERT INTO " + tableName
+                    + " (NODE, CREATED, PAYLOAD)"
+                    + " VALUES (?, CURRENT_TIMESTAMP, ?)");
+            for (CacheInvalidation entry : entries) {
+                pstmt.setString(1, nodeId);
+                pstmt.setBytes(2, serialize(entry));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            if (pstmt != null) {
+                pstmt.close();
+            }
+            connectionPool.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Reads the entries not read before: those with a higher id than read
+     * before and those created within the commit grace time before the newest
+     * entry read. The entries of other nodes are combined by their table or
+     * query.
+     * 
+     * @param received
+     *            the map to add the invalidations to, or null to only mark the
+     *            entries read
+     */
+    private void readEntries(Map<String, CacheInvalidation> received)
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn.prepareStatement("SELECT ID, NODE, CREATED"
+                    + (received != null ? ", PAYLOAD" : "") + " FROM "
+                    + tableName + " WHERE ID > ? OR CREATED >= ? ORDER BY ID");
+            pstmt.setLong(1, cursor);
+            pstmt.setTimestamp(2, new Timestamp(newestCreated - commitGrace));
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                long id = rs.getLong(1);
+                if (recentIds.containsKey(id)) {
+                    continue;
+                }
+                long created = rs.getTimestamp(3).getTime();
+                recentIds.put(id, created);
+                cursor = Math.max(cursor, id);
+                newestCreated = Math.max(newestCreated, created);
+                if (received == null || nodeId.equals(rs.getString(2))) {
+                    continue;
+                }
+                CacheInvalidation invalidation = deserialize(rs.getBytes(4));
+                if (invalidation != null) {
+                    String key = getKey(invalidation);
+                    received.put(key,
+                            combine(received.get(key), invalidation));
+                }
+            }
+            rs.close();
+            conn.commit();
+        } finally {
+            if (pstmt != null) {
+                pstmt.close();
+            }
+            connectionPool.releaseConnection(conn);
+        }
+        /* Forget the entries that are no longer read again */
+        for (Iterator<Long> i = recentIds.values().iterator(); i.hasNext();) {
+            if (i.next() < newestCreated - commitGrace) {
+                i.remove();
+            }
+        }
+    }
+
+    private void purgeEntries(long createdBefore) throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn.prepareStatement("DELETE FROM " + tableName
+                    + " WHERE CREATED < ?");
+            pstmt.setTimestamp(1, new Timestamp(createdBefore));
+            pstmt.executeUpdate();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            if (pstmt != null) {
+                pstmt.close();
+            }
+            connectionPool.releaseConnection(conn);
+        }
+    }
+
+    private static byte[] serialize(CacheInvalidation invalidation)
+            throws SQLException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(PAYLOAD_VERSION);
+            out.writeBoolean(invalidation.getTableName() != null);
+            writeString(out,
+                    invalidation.getTableName() != null ? invalidation
+                            .getTableName() : invalidation.getQueryString());
+            if (invalidation.isAllRows() || !hasSupportedKeys(invalidation)) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(invalidation.getRows().size());
+                for (Map.Entry<RowId, CacheInvalidation.Operation> row : invalidation
+                        .getRows().entrySet()) {
+                    out.writeByte(row.getValue().ordinal());
+                    Object[] key = row.getKey().getId();
+                    out.writeInt(key.length);
+                    for (Object value : key) {
+                        writeValue(out, value);
+                    }
+                }
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new SQLException("Failed to serialize invalidation: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the invalidation, or null if the entry cannot be read by this
+     *         node
+     */
+    private static CacheInvalidation deserialize(byte[] payload) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    payload));
+            if (in.readByte() != PAYLOAD_VERSION) {
+                return null;
+            }
+            boolean table = in.readBoolean();
+            String name = readString(in, payload.length);
+            int count = in.readInt();
+            Map<RowId, CacheInvalidation.Operation> rows = null;
+            if (count >= 0) {
+                if (count > payload.length) {
+                    return null;
+                }
+                CacheInvalidation.Operation[] operations = CacheInvalidation.Operation
+                        .values();
+                rows = new LinkedHashMap<RowId, CacheInvalidation.Operation>();
+                for (int i = 0; i < count; i++) {
+                    int operation = in.readByte();
+                    int length = in.readInt();
+                    if (operation < 0 || operation >= operations.length
+                            || length < 0 || length > payload.length) {
+                        return null;
+                    }
+                    Object[] key = new Object[length];
+                    for (int j = 0; j < length; j++) {
+                        key[j] = readValue(in, payload.length);
+                    }
+                    rows.put(new RowId(key), operations[operation]);
+                }
+            }
+            return new CacheInvalidation(table ? name : null, table ? null
+                    : name, rows);
+        } catch (IOException e) {
+            /* Truncated or unknown content */
+            return null;
+        }
+    }
+
+    private static boolean hasSupportedKeys(CacheInvalidation invalidation) {
+        for (RowId id : invalidation.getRows().keySet()) {
+            for (Object value : id.getId()) {
+                if (getTypeTag(value) < 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the type tag of the given key value, or -1 if values of its type
+     *         cannot be written
+     */
+    private static int getTypeTag(Object value) {
+        if (value == null) {
+            return NULL;
+        } else if (value instanceof String) {
+            return STRING;
+        } else if (value instanceof Integer) {
+            return INTEGER;
+        } else if (value instanceof Long) {
+            return LONG;
+        } else if (value instanceof Short) {
+            return SHORT;
+        } else if (value instanceof Byte) {
+            return BYTE;
+        } else if (value instanceof Double) {
+            return DOUBLE;
+        } else if (value instanceof Float) {
+            return FLOAT;
+        } else if (value instanceof Boolean) {
+            return BOOLEAN;
+        } else if (value instanceof BigDecimal) {
+            return BIG_DECIMAL;
+        } else if (value instanceof BigInteger) {
+            return BIG_INTEGER;
+        } else if (value instanceof Timestamp) {
+            return TIMESTAMP;
+        } else if (value instanceof java.sql.Date) {
+            return SQL_DATE;
+        } else if (value instanceof Time) {
+            return SQL_TIME;
+        } else if (value.getClass() == Date.class) {
+            return DATE;
+        } else if (value instanceof UUID) {
+            return UUID_VALUE;
+        }
+        return -1;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value)
+            throws IOException {
+        int tag = getTypeTag(value);
+        out.writeByte(tag);
+        switch (tag) {
+        case NULL:
+            break;
+        case STRING:
+            writeString(out, (String) value);
+            break;
+        case INTEGER:
+            out.writeInt((Integer) value);
+            break;
+        case LONG:
+            out.writeLong((Long) value);
+            break;
+        case SHORT:
+            out.writeShort((Short) value);
+            break;
+        case BYTE:
+            out.writeByte((Byte) value);
+            break;
+        case DOUBLE:
+            out.writeDouble((Double) value);
+            break;
+        case FLOAT:
+            out.writeFloat((Float) value);
+            break;
+        case BOOLEAN:
+            out.writeBoolean((Boolean) value);
+            break;
+        case TIMESTAMP:
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+            break;
+        case SQL_DATE:
+        case SQL_TIME:
+        case DATE:
+            out.writeLong(((Date) value).getTime());
+            break;
+        default:
+            /* BigDecimal, BigInteger and UUID in their string form */
+            writeString(out, value.toString());
+        }
+    }
+
+    private static Object readValue(DataInputStream in, int maxLength)
+            throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in, maxLength);
+        case INTEGER:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case SHORT:
+            return in.readShort();
+        case BYTE:
+            return in.readByte();
+        case DOUBLE:
+            return in.readDouble();
+        case FLOAT:
+            return in.readFloat();
+        case BOOLEAN:
+            return in.readBoolean();
+        case TIMESTAMP:
+            Timestamp timestamp = new Timestamp(in.readLong());
+            timestamp.setNanos(in.readInt());
+            return timestamp;
+        case SQL_DATE:
+            return new java.sql.Date(in.readLong());
+        case SQL_TIME:
+            return new Time(in.readLong());
+        case DATE:
+            return new Date(in.readLong());
+        case BIG_DECIMAL:
+        case BIG_INTEGER:
+        case UUID_VALUE:
+            return parseValue(tag, readString(in, maxLength));
+        default:
+            throw new IOException("Unknown key type in change log entry.");
+        }
+    }
+
+    private static Object parseValue(int tag, String text) throws IOException {
+        try {
+            if (tag == BIG_DECIMAL) {
+                return new BigDecimal(text);
+            } else if (tag == BIG_INTEGER) {
+                return new BigInteger(text);
+            }
+            return UUID.fromString(text);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid key value in change log entry.");
+        }
+    }
+
+    /**
+     * Writes a string of any length as its length in UTF-8 bytes followed by
+     * the bytes, or -1 for null.
+     */
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, int maxLength)
+            throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid string length in change log entry.");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -132,8 +132,9 @@ final public class ColumnProperty implements Property {
 
         /* Set the new value and notify container of the change. */
         changedValue = newValue;
-        owner.getContainer().itemChangeNotification(owner);
+        /* Mark modified first, auto commit stores the row immediately */
         modified = true;
+        owner.getContainer().itemChangeNotification(owner);
     }
 
     public Class<?> getType() {
@@ -232,6 +233,35 @@ final public class ColumnProperty implements Property {
         }
     }
 
+    /**
+     * Creates an unbound copy of this property with the same value and
+     * modification state.
+     * 
+     * @return the copy
+     */
+    ColumnProperty copy() {
+        ColumnProperty copy = new ColumnProperty(propertyId, readOnly,
+                allowReadOnlyChange, nullable, value, type);
+        copy.changedValue = changedValue;
+        copy.modified = modified;
+        copy.versionColumn = versionColumn;
+        return copy;
+    }
+
+    /**
+     * Takes over the changed value of the given property of the same column,
+     * if it has been modified.
+     * 
+     * @param other
+     *            the property to merge into this one
+     */
+    void merge(ColumnProperty other) {
+        if (other != null && other.isModified()) {
+            changedValue = other.changedValue;
+            modified = true;
+        }
+    }
+
     public void commit() {
         if (isModified()) {
             modified = false;
@@ -0,0 +1,55 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A CommitConflictException is thrown by {@link SQLContainer#commit()} when
+ * conflict collection is enabled and some of the buffered changes failed the
+ * optimistic locking check. All the conflicting rows of the commit are
+ * reported at once, and the transaction is rolled back without discarding the
+ * buffered changes, so that the conflicts can be resolved and the commit
+ * retried.
+ * 
+ * If re-reading of conflicting rows is enabled, the exception also carries the
+ * current state of the conflicting rows in the database. A conflicting row
+ * that is missing from {@link #getCurrentItems()} has been removed from the
+ * database.
+ * 
+ * @see SQLContainer#setConflictCollectionEnabled(boolean)
+ * @see SQLContainer#setConflictRereadEnabled(boolean)
+ */
+public class CommitConflictException extends OptimisticLockException {
+
+    private final Map<RowId, RowItem> currentItems;
+
+    /**
+     * @param msg
+     *            the detail message
+     * @param rowIds
+     *            ids of the rows that failed the version check
+     * @param currentItems
+     *            the current state of the conflicting rows that still exist in
+     *            the database, or an empty map if they were not re-read
+     */
+    public CommitConflictException(String msg, List<RowId> rowIds,
+            Map<RowId, RowItem> currentItems) {
+        super(msg, rowIds);
+        this.currentItems = Collections
+                .unmodifiableMap(new LinkedHashMap<RowId, RowItem>(
+                        currentItems));
+    }
+
+    /**
+     * Returns the rows that failed the version check as they are currently
+     * stored in the database. The items are not part of the container's
+     * cache. The map is empty if re-reading of conflicting rows is disabled.
+     * 
+     * @return the current items mapped by their ids
+     */
+    public Map<RowId, RowItem> getCurrentItems() {
+        return currentItems;
+    }
+}
@@ -0,0 +1,69 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * CountRefresher runs the row count query of an SQLContainer on a background
+ * thread. At most one count is pending at a time per container. The result is
+ * handed over to the container the next time it checks its size, on the
+ * thread accessing the container.
+ */
+class CountRefresher {
+    private Future<Integer> pending;
+    private int pendingGeneration;
+
+    /**
+     * Starts counting the rows in the background, unless a count for the same
+     * generation is already running.
+     * 
+     * @param generation
+     *            generation of the container when the count was started
+     * @param count
+     *            the task that counts the rows
+     */
+    synchronized void schedule(int generation, Callable<Integer> count) {
+        if (pending != null && pendingGeneration == generation) {
+            return;
+        }
+        cancel();
+        pendingGeneration = generation;
+        pending = BackgroundTasks.submitOptional(count);
+    }
+
+    /**
+     * Returns the new row count if the background count has finished, without
+     * waiting for it. Returns null if no count has finished, if the count
+     * belongs to an older generation, or if the count failed.
+     * 
+     * @param generation
+     *            current generation of the container
+     * @return the row count or null
+     */
+    synchronized Integer take(int generation) {
+        if (pending == null || !pending.isDone()) {
+            return null;
+        }
+        Future<Integer> f = pending;
+        pending = null;
+        if (pendingGeneration != generation) {
+            return null;
+        }
+        try {
+            return f.get();
+        } catch (Exception e) {
+            /* Count failed, it will be retried when the size expires again. */
+            return null;
+        }
+    }
+
+    /**
+     * Discards the pending count, if any.
+     */
+    synchronized void cancel() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.vaadin.addon.sqlcontainer;
+
+/**
+ * DefaultSizePolicy keeps a row count valid for a fixed amount of time. By
+ * default the count is valid for ten seconds and is refreshed synchronously
+ * with an exact count.
+ */
+public class DefaultSizePolicy implements SizePolicy {
+    private static final long serialVersionUID = -2371493285702416540L;
+
+    /** Default time a row count stays valid, in milliseconds */
+    public static final int DEFAULT_VALID_MILLISECONDS = 10000;
+
+    private final int validMilliSeconds;
+    private final boolean asynchronous;
+    private final boolean estimated;
+
+    /**
+     * Creates a policy with the default validity time, refreshing the exact
+     * count synchronously.
+     */
+    public DefaultSizePolicy() {
+        this(DEFAULT_VALID_MILLISECONDS, false, false);
+    }
+
+    /**
+     * Creates a policy with the given validity time and refresh mode.
+     * 
+     * @param validMilliSeconds
+     *            time a row count stays valid, in milliseconds
+     * @param asynchronous
+     *            true to refresh an expired count in the background
+     * @param estimated
+     *            true to use a database estimate of the row count
+     */
+    public DefaultSizePolicy(int validMilliSeconds, boolean asynchronous,
+            boolean estimated) {
+        if (validMilliSeconds < 0) {
+            throw new IllegalArgumentException(
+                    "Validity time must not be negative.");
+        }
+        this.validMilliSeconds = validMilliSeconds;
+        this.asynchronous = asynchronous;
+        this.estimated = estimated;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.SizePolicy#isSizeValid(long, long)
+     */
+    public boolean isSizeValid(long sizeUpdated, long now) {
+        return now < sizeUpdated + validMilliSeconds;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.SizePolicy#isAsynchronous()
+     */
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.SizePolicy#isEstimated()
+     */
+    public boolean isEstimated() {
+        return estimated;
+    }
+
+    /**
+     * @return the time a row count stays valid, in milliseconds
+     */
+    public int getValidMilliSeconds() {
+        return validMilliSeconds;
+    }
+}
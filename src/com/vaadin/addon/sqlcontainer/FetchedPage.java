@@ -0,0 +1,66 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FetchedPage holds the rows of one page read from the data source, before
+ * they are placed in the caches of an SQLContainer. The page remembers the
+ * offset it was fetched from and the generation of the container (filters,
+ * sorting and contents) at the time the fetch was started, so that a page
+ * fetched in the background can be discarded if the container has changed in
+ * the meantime.
+ */
+class FetchedPage {
+    private final int offset;
+    private final int generation;
+    private final List<RowItem> rows = new ArrayList<RowItem>();
+    private int fetchedRows;
+    private Object[] lastSeekKeys;
+
+    FetchedPage(int offset, int generation) {
+        this.offset = offset;
+        this.generation = generation;
+    }
+
+    /**
+     * Adds a row to the page.
+     * 
+     * @param row
+     *            the row
+     * @param seekKeys
+     *            sort key values of the row for seek paging, or null
+     */
+    void addRow(RowItem row, Object[] seekKeys) {
+        rows.add(row);
+        fetchedRows++;
+        lastSeekKeys = seekKeys;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    List<RowItem> getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of rows read from the data source for this page
+     */
+    int getFetchedRows() {
+        return fetchedRows;
+    }
+
+    /**
+     * @return sort key values of the last row of the page, or null if the page
+     *         was not fetched in seek paging mode or was empty
+     */
+    Object[] getLastSeekKeys() {
+        return lastSeekKeys;
+    }
+}
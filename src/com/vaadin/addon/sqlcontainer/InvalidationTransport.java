@@ -0,0 +1,50 @@
+package com.vaadin.addon.sqlcontainer;
+
+/**
+ * InvalidationTransport passes cache invalidations between the JVMs of a
+ * cluster, so that SQLContainers on other nodes connected to the same table or
+ * query are notified of writes like containers in the local JVM. Install a
+ * transport with
+ * {@link SQLContainer#setInvalidationTransport(InvalidationTransport)}; only
+ * containers that have cache flush notifications enabled take part.
+ * 
+ * @see ChangeLogInvalidationTransport
+ */
+public interface InvalidationTransport {
+
+    /**
+     * Receiver of the invalidations published by other nodes.
+     */
+    public interface Receiver {
+        /**
+         * Called when an invalidation published by another node arrives.
+         * 
+         * @param invalidation
+         *            the invalidation
+         */
+        public void invalidationReceived(CacheInvalidation invalidation);
+    }
+
+    /**
+     * Starts receiving invalidations published by other nodes.
+     * 
+     * @param receiver
+     *            the receiver to pass the invalidations to
+     */
+    public void start(Receiver receiver);
+
+    /**
+     * Stops receiving invalidations and releases the resources of the
+     * transport. Invalidations waiting to be published are published first.
+     */
+    public void stop();
+
+    /**
+     * Publishes an invalidation of the local JVM to the other nodes. The
+     * transport may defer and combine the invalidations it publishes.
+     * 
+     * @param invalidation
+     *            the invalidation, addressed to a table name or query string
+     */
+    public void publish(CacheInvalidation invalidation);
+}
@@ -1,5 +1,9 @@
 package com.vaadin.addon.sqlcontainer;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * An OptimisticLockException is thrown when trying to update or delete a row
  * that has been changed since last read from the database.
@@ -16,18 +20,54 @@ package com.vaadin.addon.sqlcontainer;
 public class OptimisticLockException extends RuntimeException {
 
     private final RowId rowId;
+    private final List<RowId> rowIds;
 
     public OptimisticLockException(RowId rowId) {
         super();
         this.rowId = rowId;
+        rowIds = rowIdList(rowId);
     }
 
     public OptimisticLockException(String msg, RowId rowId) {
         super(msg);
         this.rowId = rowId;
+        rowIds = rowIdList(rowId);
+    }
+
+    /**
+     * Creates an exception for several rows that failed the version check in
+     * the same batch.
+     * 
+     * @param msg
+     *            the detail message
+     * @param rowIds
+     *            ids of the rows that failed the version check
+     */
+    public OptimisticLockException(String msg, List<RowId> rowIds) {
+        super(msg);
+        this.rowIds = Collections.unmodifiableList(new ArrayList<RowId>(
+                rowIds));
+        rowId = rowIds.isEmpty() ? null : rowIds.get(0);
     }
 
+    private static List<RowId> rowIdList(RowId rowId) {
+        if (rowId == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(rowId);
+    }
+
+    /**
+     * @return id of the (first) row that failed the version check, or null
+     */
     public RowId getRowId() {
         return rowId;
     }
+
+    /**
+     * @return ids of all the rows that failed the version check
+     */
+    public List<RowId> getRowIds() {
+        return rowIds;
+    }
 }
@@ -0,0 +1,89 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * PagePrefetcher runs the read-ahead of an SQLContainer on a background
+ * thread. At most one page is prefetched at a time per container; the result
+ * is kept until the container asks for it or schedules another page.
+ */
+class PagePrefetcher {
+    private Future<FetchedPage> pending;
+    private int pendingOffset;
+    private int pendingGeneration;
+    private int hitCount;
+
+    /**
+     * Starts fetching the page at the given offset in the background. A
+     * previously scheduled page that has not been taken is discarded.
+     * 
+     * @param offset
+     *            offset of the page
+     * @param generation
+     *            generation of the container when the fetch was started
+     * @param fetch
+     *            the task that fetches the page
+     */
+    synchronized void schedule(int offset, int generation,
+            Callable<FetchedPage> fetch) {
+        if (pending != null && pendingOffset == offset
+                && pendingGeneration == generation) {
+            return;
+        }
+        cancel();
+        pendingOffset = offset;
+        pendingGeneration = generation;
+        pending = BackgroundTasks.submitOptional(fetch);
+    }
+
+    /**
+     * Returns the prefetched page for the given offset, waiting for it if the
+     * fetch is still running. Returns null if no page was prefetched for the
+     * offset, if the page belongs to an older generation, or if the fetch
+     * failed.
+     * 
+     * @param offset
+     *            offset of the requested page
+     * @param generation
+     *            current generation of the container
+     * @return the page or null
+     */
+    synchronized FetchedPage take(int offset, int generation) {
+        if (pending == null) {
+            return null;
+        }
+        if (pendingOffset != offset || pendingGeneration != generation) {
+            cancel();
+            return null;
+        }
+        Future<FetchedPage> f = pending;
+        pending = null;
+        try {
+            FetchedPage page = f.get();
+            hitCount++;
+            return page;
+        } catch (Exception e) {
+            /* Fetch failed, the container will fetch the page itself. */
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of prefetched pages taken into use
+     */
+    synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Discards the pending page, if any. A fetch that is already running is
+     * allowed to finish, but its result is ignored.
+     */
+    synchronized void cancel() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+}
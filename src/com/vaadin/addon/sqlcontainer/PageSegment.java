@@ -0,0 +1,129 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * PageSegment is one cached page of an SQLContainer. It covers the item
+ * indexes from its offset up to, but not including, offset + size, and knows
+ * the RowItems it placed into the item cache so that the whole segment can be
+ * evicted at once. The ids of the rows are kept in an array indexed by
+ * (index - offset), so resolving an index needs no boxing or hashing.
+ * 
+ * Each segment is stamped with the generation of the container (filters,
+ * sorting and contents) it was fetched for. A segment whose generation does
+ * not match the container's current generation is stale.
+ * 
+ * Items fetched by their ids rather than by index are cached in unindexed
+ * segments, which cover no item indexes.
+ */
+class PageSegment implements Serializable {
+    private static final long serialVersionUID = 2541870651728914523L;
+
+    private final int offset;
+    private final int generation;
+    private final List<RowItem> items;
+    private final RowId[] ids;
+
+    PageSegment(int offset, int generation, List<RowItem> items) {
+        this(offset, generation, items, true);
+    }
+
+    /**
+     * @param offset
+     *            offset of the segment, or a negative key of an unindexed
+     *            segment
+     * @param generation
+     *            generation of the container
+     * @param items
+     *            the items of the segment
+     * @param indexed
+     *            false for a segment that covers no item indexes
+     */
+    PageSegment(int offset, int generation, List<RowItem> items,
+            boolean indexed) {
+        this.offset = offset;
+        this.generation = generation;
+        this.items = items;
+        ids = new RowId[indexed ? items.size() : 0];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = items.get(i).getId();
+        }
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the items of this segment, in index order
+     */
+    List<RowItem> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the number of items in this segment
+     */
+    int size() {
+        return items.size();
+    }
+
+    /**
+     * @return true if the given item index is covered by this segment
+     */
+    boolean contains(int index) {
+        return index >= offset && index - offset < ids.length;
+    }
+
+    /**
+     * Returns the id of the item at the given index. The index must be
+     * covered by this segment.
+     * 
+     * @param index
+     *            item index
+     * @return the id of the item
+     */
+    RowId getId(int index) {
+        return ids[index - offset];
+    }
+
+    /**
+     * Returns the index of the item with the given id by scanning the ids of
+     * this segment.
+     * 
+     * @param id
+     *            id of the item
+     * @return the item index, or -1 if this segment covers no item with the id
+     */
+    int indexOf(Object id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i].equals(id)) {
+                return offset + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the item of this segment that has the same id as the given
+     * item.
+     * 
+     * @param item
+     *            the new item
+     * @return the replaced item, or null if this segment has no item with the
+     *         id
+     */
+    RowItem replace(RowItem item) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getId().equals(item.getId())) {
+                return items.set(i, item);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,357 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.vaadin.addon.sqlcontainer.query.generator.StatementHelper;
+
+/**
+ * QueryResultCache holds the results of page and row count queries shared by
+ * the SQLContainers of the JVM that use it. Results are keyed by the generated
+ * SQL and its parameter values, so containers with the same table, filters,
+ * ordering and page offset share a result, e.g. many sessions opening the same
+ * view. Results are also keyed by a namespace, the connection pool they were
+ * read through, so containers of different databases or tenants never share
+ * results. Concurrent requests for a result that is not cached wait for the first
+ * one to read it, so the database is queried only once.
+ * 
+ * Results expire after the time to live, and least recently used results are
+ * evicted when the estimated heap size of the cache grows over its maximum.
+ * All the results of a table, in all namespaces, are evicted when rows of the
+ * table are written through an SQLContainer.
+ */
+public class QueryResultCache {
+
+    /** Default maximum estimated size of the cached results in bytes */
+    public static final long DEFAULT_MAX_WEIGHT = 16 * 1024 * 1024;
+    /** Default time in milliseconds a result is kept */
+    public static final long DEFAULT_TIME_TO_LIVE = 10000;
+
+    private static QueryResultCache defaultCache;
+
+    private final long maxWeight;
+    private final long timeToLive;
+    private long weight;
+    private long hitCount;
+    private long missCount;
+
+    /** Cached results in least recently used order */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(
+            16, 0.75f, true);
+    /**
+     * Number of invalidations of each table, used to discard results read
+     * while the table was being written.
+     */
+    private final Map<String, Integer> tableGenerations = new HashMap<String, Integer>();
+    /** Locks of the results being read, so each is read only once */
+    private final ConcurrentMap<Key, Object> loading = new ConcurrentHashMap<Key, Object>();
+
+    /**
+     * Reads a result that is not cached.
+     */
+    interface Loader<T> {
+        T load() throws SQLException;
+    }
+
+    /**
+     * Returns the cache shared by the whole JVM, creating it with the default
+     * settings when first called.
+     * 
+     * @return the default cache
+     */
+    public static synchronized QueryResultCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new QueryResultCache(DEFAULT_MAX_WEIGHT,
+                    DEFAULT_TIME_TO_LIVE);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Creates a cache holding results up to the given estimated size for the
+     * given time.
+     * 
+     * @param maxWeight
+     *            maximum estimated size of the cached results in bytes
+     * @param timeToLive
+     *            time in milliseconds a result is kept
+     */
+    public QueryResultCache(long maxWeight, long timeToLive) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum weight must be positive.");
+        }
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException(
+                    "Time to live must be positive.");
+        }
+        this.maxWeight = maxWeight;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Key of a cached result: the namespace, the table, the SQL and its
+     * parameter values. Namespaces are compared by identity.
+     */
+    private static final class Key {
+        private final Object namespace;
+        private final String tableName;
+        private final String sql;
+        private final List<Object> parameters;
+
+        Key(Object namespace, String tableName, StatementHelper statement) {
+            this.namespace = namespace;
+            this.tableName = tableName;
+            sql = statement.getQueryString();
+            parameters = new ArrayList<Object>(statement.getParameterValues());
+        }
+
+        @Override
+        public int hashCode() {
+            return ((System.identityHashCode(namespace) * 31 + tableName
+                    .hashCode()) * 31 + sql.hashCode())
+                    * 31 + parameters.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return namespace == other.namespace
+                    && tableName.equals(other.tableName)
+                    && sql.equals(other.sql)
+                    && parameters.equals(other.parameters);
+        }
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final long weight;
+        private final long created = System.currentTimeMillis();
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Immutable rows of a cached page.
+     */
+    static final class CachedPage {
+        private final List<RowId> ids;
+        private final List<SharedRowCache.Row> rows;
+        private final Object[] lastSeekKeys;
+        private final long weight;
+
+        /**
+         * @param page
+         *            the page read from the database
+         * @param versionColumn
+         *            the name of the version column, or null
+         */
+        CachedPage(FetchedPage page, String versionColumn) {
+            List<RowId> pageIds = new ArrayList<RowId>(page.getRows().size());
+            List<SharedRowCache.Row> pageRows = new ArrayList<SharedRowCache.Row>(
+                    page.getRows().size());
+            long w = 64;
+            for (RowItem item : page.getRows()) {
+                SharedRowCache.Row row = SharedRowCache.createRow(item,
+                        versionColumn);
+                pageIds.add(item.getId());
+                pageRows.add(row);
+                w += 32 + row.getWeight();
+            }
+            ids = Collections.unmodifiableList(pageIds);
+            rows = Collections.unmodifiableList(pageRows);
+            lastSeekKeys = page.getLastSeekKeys();
+            weight = w;
+        }
+
+        List<RowId> getIds() {
+            return ids;
+        }
+
+        List<SharedRowCache.Row> getRows() {
+            return rows;
+        }
+
+        /**
+         * @return sort key values of the last row of the page, or null
+         */
+        Object[] getLastSeekKeys() {
+            return lastSeekKeys;
+        }
+    }
+
+    /**
+     * Returns the cached result of the given statement, or reads it with the
+     * loader and caches it. Concurrent calls for the same statement wait for
+     * the first one to read the result.
+     * 
+     * @param namespace
+     *            the namespace of the result, e.g. the connection pool the
+     *            statement is executed through
+     * @param tableName
+     *            the table the statement reads
+     * @param statement
+     *            the statement
+     * @param loader
+     *            reads the result if it is not cached
+     * @return the result
+     * @throws SQLException
+     *             if reading the result failed
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(Object namespace, String tableName, StatementHelper statement,
+            Loader<T> loader) throws SQLException {
+        Key key = new Key(namespace, tableName, statement);
+        Object value = lookup(key);
+        if (value != null) {
+            return (T) value;
+        }
+        Object lock = new Object();
+        Object existing = loading.putIfAbsent(key, lock);
+        if (existing != null) {
+            lock = existing;
+        }
+        synchronized (lock) {
+            try {
+                value = lookup(key);
+                if (value != null) {
+                    return (T) value;
+                }
+                int generation = getGeneration(tableName);
+                T loaded = loader.load();
+                store(key, loaded, generation);
+                return loaded;
+            } finally {
+                loading.remove(key, lock);
+            }
+        }
+    }
+
+    private synchronized Object lookup(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.created > timeToLive) {
+            remove(key);
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    private synchronized void store(Key key, Object value, int generation) {
+        missCount++;
+        if (value == null || getGeneration(key.tableName) != generation) {
+            /* The table was written while the result was read */
+            return;
+        }
+        long w = 128 + 2L * key.sql.length() + 32L * key.parameters.size();
+        if (value instanceof CachedPage) {
+            w += ((CachedPage) value).weight;
+        }
+        if (w > maxWeight) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(value, w));
+        weight += w;
+        Iterator<Entry> i = entries.values().iterator();
+        while (weight > maxWeight && i.hasNext()) {
+            weight -= i.next().weight;
+            i.remove();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    private synchronized int getGeneration(String tableName) {
+        Integer generation = tableGenerations.get(tableName);
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Evicts all the cached results of the given table in all namespaces.
+     * Results of the table being read at the same time are not cached.
+     * 
+     * @param tableName
+     *            the table name
+     */
+    public synchronized void invalidateTable(String tableName) {
+        tableGenerations.put(tableName, getGeneration(tableName) + 1);
+        for (Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator(); i
+                .hasNext();) {
+            Map.Entry<Key, Entry> entry = i.next();
+            if (entry.getKey().tableName.equals(tableName)) {
+                weight -= entry.getValue().weight;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Evicts all the cached results.
+     */
+    public synchronized void clear() {
+        for (String tableName : tableGenerations.keySet()) {
+            tableGenerations.put(tableName, getGeneration(tableName) + 1);
+        }
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated size of the cached results in bytes
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @return the number of results found in the cache
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of results that had to be read from the database
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
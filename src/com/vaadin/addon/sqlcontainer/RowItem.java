@@ -3,6 +3,7 @@ package com.vaadin.addon.sqlcontainer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
@@ -115,6 +116,38 @@ public final class RowItem implements Item {
         return s.toString();
     }
 
+    /**
+     * Creates a copy of this item holding copies of its properties, so that
+     * changes made to this item afterwards are not seen by the copy.
+     * 
+     * @return the copy
+     */
+    RowItem snapshot() {
+        List<ColumnProperty> copies = null;
+        if (properties != null) {
+            copies = new ArrayList<ColumnProperty>(properties.size());
+            for (ColumnProperty p : properties) {
+                copies.add(p.copy());
+            }
+        }
+        return new RowItem(container, id, copies);
+    }
+
+    /**
+     * Takes over the modified values of the given item of the same row.
+     * 
+     * @param newer
+     *            the item to merge into this one
+     */
+    void merge(RowItem newer) {
+        if (properties != null) {
+            for (ColumnProperty p : properties) {
+                p.merge((ColumnProperty) newer.getItemProperty(p
+                        .getPropertyId()));
+            }
+        }
+    }
+
     public void commit() {
         if (properties != null) {
             for (ColumnProperty p : properties) {
@@ -1,8 +1,10 @@
 package com.vaadin.addon.sqlcontainer;
 
+import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -10,17 +12,29 @@ import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.EventObject;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import com.vaadin.addon.sqlcontainer.connection.StatementCache;
 import com.vaadin.addon.sqlcontainer.filters.Like;
 import com.vaadin.addon.sqlcontainer.query.OrderBy;
 import com.vaadin.addon.sqlcontainer.query.QueryDelegate;
 import com.vaadin.addon.sqlcontainer.query.QueryDelegate.RowIdChangeListener;
 import com.vaadin.addon.sqlcontainer.query.TableQuery;
+import com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator;
 import com.vaadin.addon.sqlcontainer.query.generator.MSSQLGenerator;
 import com.vaadin.addon.sqlcontainer.query.generator.OracleGenerator;
+import com.vaadin.addon.sqlcontainer.query.generator.StatementHelper;
 import com.vaadin.data.Container;
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
@@ -43,15 +57,41 @@ public class SQLContainer implements Container, Container.Filterable,
     /** Number of items to cache = CACHE_RATIO x pageLength */
     public static final int CACHE_RATIO = 2;
 
-    /** Item and index caches */
-    private final Map<Integer, RowId> itemIndexes = new HashMap<Integer, RowId>();
-    private final CacheMap<RowId, RowItem> cachedItems = new CacheMap<RowId, RowItem>();
+    /**
+     * Default maximum number of rows kept in the item cache, see
+     * {@link #setCacheRowLimit(int)}
+     */
+    public static final int DEFAULT_CACHE_ROW_LIMIT = 5 * CACHE_RATIO
+            * DEFAULT_PAGE_LENGTH;
+
+    /**
+     * Item cache. The ids of cached items by index are held in the segments
+     * below, which are also scanned to find the index of a cached item.
+     */
+    private final Map<RowId, RowItem> cachedItems = new HashMap<RowId, RowItem>();
+
+    /**
+     * Cached pages keyed by their offset, in least recently used order. The
+     * item cache holds exactly the rows of these segments.
+     */
+    private final LinkedHashMap<Integer, PageSegment> segments = new LinkedHashMap<Integer, PageSegment>(
+            16, 0.75f, true);
+    /** The most recently used segment, resolved without a map lookup */
+    private PageSegment lastSegment;
+    /** Key of the latest unindexed segment, see getItems() */
+    private int unindexedSegmentKey;
+    private int cacheRowLimit = DEFAULT_CACHE_ROW_LIMIT;
+
+    /** Maximum number of items fetched with one query by getItems() */
+    public static final int ITEM_FETCH_CHUNK_SIZE = 500;
 
     /** Container properties = column names, data types and statuses */
     private final List<String> propertyIds = new ArrayList<String>();
     private final Map<String, Class<?>> propertyTypes = new HashMap<String, Class<?>>();
     private final Map<String, Boolean> propertyReadOnly = new HashMap<String, Boolean>();
     private final Map<String, Boolean> propertyNullable = new HashMap<String, Boolean>();
+    /** Immutable copy of the above, used when reading rows */
+    private PropertyMetadata propertyMetadata;
 
     /** Filters (WHERE) and sorters (ORDER BY) */
     private final List<Filter> filters = new ArrayList<Filter>();
@@ -64,16 +104,23 @@ public class SQLContainer implements Container, Container.Filterable,
     private int size;
 
     /**
-     * Size updating logic. Do not update size from data source if it has been
-     * updated in the last sizeValidMilliSeconds milliseconds.
+     * Size updating logic. Do not update size from data source if it is still
+     * valid according to the size policy.
      */
-    private final int sizeValidMilliSeconds = 10000;
+    private SizePolicy sizePolicy = new DefaultSizePolicy();
     private boolean sizeDirty = true;
     private Date sizeUpdated = new Date();
+    private transient CountRefresher countRefresher;
 
     /** Starting row number of the currently fetched page */
     private int currentOffset;
 
+    /**
+     * Sort key values of the row preceding a page, keyed by the offset of the
+     * page. Used when the TableQuery delegate is in seek paging mode.
+     */
+    private final CacheMap<Integer, Object[]> seekBookmarks = new CacheMap<Integer, Object[]>();
+
     /** ItemSetChangeListeners */
     private LinkedList<Container.ItemSetChangeListener> itemSetChangeListeners;
 
@@ -81,16 +128,49 @@ public class SQLContainer implements Container, Container.Filterable,
     private final Map<RowId, RowItem> removedItems = new HashMap<RowId, RowItem>();
     private final List<RowItem> addedItems = new ArrayList<RowItem>();
     private final List<RowItem> modifiedItems = new ArrayList<RowItem>();
+    /**
+     * Rows removed in bulk by removeAllItems() are only kept as tombstones: the
+     * id of the row mapped to the value of its version column, if any.
+     */
+    private final Map<RowId, Object> removedKeys = new HashMap<RowId, Object>();
 
     /** List of references to other SQLContainers */
     private final Map<SQLContainer, Reference> references = new HashMap<SQLContainer, Reference>();
 
     /** Cache flush notification system enabled. Disabled by default. */
     private boolean notificationsEnabled;
+    /** Row cache shared with other containers, disabled by default */
+    private transient SharedRowCache sharedRowCache;
+    /** Page and count results shared with other containers, or null */
+    private transient QueryResultCache queryResultCache;
+
+    /** Invalidations received from other containers, not applied yet */
+    private final Queue<CacheInvalidation> pendingInvalidations = new ConcurrentLinkedQueue<CacheInvalidation>();
 
     /** Enable to output possible stack traces and diagnostic information */
     private boolean debugMode;
 
+    /**
+     * Generation of the container contents. Incremented whenever the caches
+     * are cleared, so that pages fetched in the background for an older
+     * generation can be recognized and discarded.
+     */
+    private int generation;
+
+    /** Background read-ahead of the adjacent page. Disabled by default. */
+    private boolean prefetchEnabled;
+    private transient PagePrefetcher prefetcher;
+    private boolean scrollingForward = true;
+
+    /** Write-behind of changed items in auto commit mode. Disabled by default. */
+    private int writeBehindDelay;
+    private transient WriteBehindQueue writeBehind;
+    private LinkedList<WriteFailedListener> writeFailedListeners;
+
+    /** Reporting of all optimistic locking conflicts of a commit at once */
+    private boolean conflictCollectionEnabled;
+    private boolean conflictRereadEnabled;
+
     /**
      * Prevent instantiation without a QueryDelegate.
      */
@@ -112,7 +192,6 @@ public class SQLContainer implements Container, Container.Filterable,
         }
         this.delegate = delegate;
         getPropertyIds();
-        cachedItems.setCacheLimit(CACHE_RATIO * getPageLength());
     }
 
     /**************************************/
@@ -144,6 +223,7 @@ public class SQLContainer implements Container, Container.Filterable,
 
         if (autoCommit) {
             /* Add and commit instantly */
+            flushWrites();
             try {
                 if (delegate instanceof TableQuery) {
                     itemId = ((TableQuery) delegate)
@@ -154,9 +234,9 @@ public class SQLContainer implements Container, Container.Filterable,
                     delegate.commit();
                 }
                 refresh();
-                if (notificationsEnabled) {
-                    CacheFlushNotifier.notifyOfCacheFlush(this);
-                }
+                notifyOfWrites(new CacheInvalidation(Collections
+                        .singleton((RowId) itemId),
+                        CacheInvalidation.Operation.INSERT));
                 debug(null, "Row added to DB...");
                 return itemId;
             } catch (SQLException e) {
@@ -194,7 +274,7 @@ public class SQLContainer implements Container, Container.Filterable,
                 }
             }
         }
-        if (removedItems.containsKey(itemId)) {
+        if (isRemoved(itemId)) {
             return false;
         }
 
@@ -243,6 +323,7 @@ public class SQLContainer implements Container, Container.Filterable,
      * @see com.vaadin.data.Container#getItem(java.lang.Object)
      */
     public Item getItem(Object itemId) {
+        applyInvalidations();
         if (!cachedItems.containsKey(itemId)) {
             int index = indexOfId(itemId);
             if (index >= size) {
@@ -262,6 +343,163 @@ public class SQLContainer implements Container, Container.Filterable,
         return cachedItems.get(itemId);
     }
 
+    /**
+     * Returns the items with the given ids. When the delegate is a TableQuery,
+     * items that are not cached are fetched from the data source with one query
+     * per {@link #ITEM_FETCH_CHUNK_SIZE} ids, or fewer with a composite primary
+     * key (see {@link TableQuery#getMaxKeysPerQuery()}), instead of loading the
+     * page of each item separately. The fetched items are placed in the item
+     * cache.
+     * 
+     * @param itemIds
+     *            the ids of the items
+     * @return the items by id, in the order of the given ids. Ids of items
+     *         that are not in the container are left out.
+     */
+    public Map<Object, Item> getItems(Collection<?> itemIds) {
+        applyInvalidations();
+        Map<Object, Item> items = new LinkedHashMap<Object, Item>();
+        List<RowId> toFetch = new ArrayList<RowId>();
+        for (Object itemId : itemIds) {
+            if (itemId == null || items.containsKey(itemId)) {
+                continue;
+            }
+            RowItem cached = cachedItems.get(itemId);
+            if (cached != null) {
+                items.put(itemId, cached);
+            } else if (isRemoved(itemId)) {
+                continue;
+            } else if (delegate instanceof TableQuery
+                    && itemId instanceof RowId
+                    && !(itemId instanceof TemporaryRowId)
+                    && !(itemId instanceof ReadOnlyRowId)) {
+                /* Keeps the place of the item in the result */
+                items.put(itemId, null);
+                toFetch.add((RowId) itemId);
+            } else {
+                Item item = getItem(itemId);
+                if (item != null) {
+                    items.put(itemId, item);
+                }
+            }
+        }
+        for (int i = 0; i < toFetch.size(); i += ITEM_FETCH_CHUNK_SIZE) {
+            for (RowItem item : fetchItems(toFetch.subList(i,
+                    Math.min(i + ITEM_FETCH_CHUNK_SIZE, toFetch.size())))) {
+                if (items.containsKey(item.getId())) {
+                    items.put(item.getId(), item);
+                }
+            }
+        }
+        for (Iterator<Item> i = items.values().iterator(); i.hasNext();) {
+            if (i.next() == null) {
+                i.remove();
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Fetches the items with the given ids from the TableQuery delegate with
+     * one query and caches them in an unindexed segment.
+     * 
+     * @param ids
+     *            the ids of the items
+     * @return the cached items that were found
+     */
+    private List<RowItem> fetchItems(List<RowId> ids) {
+        updateCount();
+        FetchedPage page;
+        try {
+            page = readItems(ids);
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to fetch items.", e);
+        }
+        List<RowItem> found = new ArrayList<RowItem>();
+        List<RowItem> newItems = new ArrayList<RowItem>();
+        for (RowItem item : page.getRows()) {
+            RowItem cached = cachedItems.get(item.getId());
+            if (cached != null) {
+                /* Loaded by a page in the meantime */
+                found.add(cached);
+            } else if (!isRemoved(item.getId())) {
+                cachedItems.put(item.getId(), item);
+                newItems.add(item);
+                found.add(item);
+            }
+        }
+        if (!newItems.isEmpty()) {
+            int key = --unindexedSegmentKey;
+            segments.put(key, new PageSegment(key, generation, newItems, false));
+            evictSegmentsOverLimit(key);
+        }
+        debug(null, "Fetched " + page.getRows().size() + " items by id");
+        return found;
+    }
+
+    /**
+     * Returns the number of rows to read by key with one query: at most
+     * {@link #ITEM_FETCH_CHUNK_SIZE}, and few enough to keep the bound key
+     * values within the limits of the database.
+     */
+    private static int getKeyChunkSize(TableQuery tq) {
+        return Math.min(ITEM_FETCH_CHUNK_SIZE, tq.getMaxKeysPerQuery());
+    }
+
+    /**
+     * Reads the rows with the given ids from the TableQuery delegate in one
+     * transaction, with one query per chunk of ids, using the filters
+     * currently set to the delegate.
+     * 
+     * @param ids
+     *            the ids of the rows
+     * @return a page holding the rows that were found
+     * @throws SQLException
+     */
+    private FetchedPage readItems(List<RowId> ids) throws SQLException {
+        TableQuery tq = (TableQuery) delegate;
+        int chunkSize = getKeyChunkSize(tq);
+        FetchedPage page = new FetchedPage(0, generation);
+        ResultSet rs = null;
+        try {
+            delegate.beginTransaction();
+            for (int i = 0; i < ids.size(); i += chunkSize) {
+                List<Object[]> keys = new ArrayList<Object[]>();
+                for (RowId id : ids.subList(i,
+                        Math.min(i + chunkSize, ids.size()))) {
+                    keys.add(id.getId());
+                }
+                rs = tq.getResultsForKeys(keys);
+                for (RowItem item : readPage(rs, 0, generation,
+                        delegate.getPrimaryKeyColumns(), null,
+                        propertyMetadata).getRows()) {
+                    page.addRow(item, null);
+                }
+                StatementCache.closeStatement(rs.getStatement());
+                rs.close();
+                rs = null;
+            }
+            delegate.commit();
+            return page;
+        } catch (SQLException e) {
+            debug(e, null);
+            try {
+                delegate.rollback();
+            } catch (SQLException e1) {
+                debug(e1, null);
+            }
+            try {
+                if (rs != null) {
+                    StatementCache.closeStatement(rs.getStatement());
+                    rs.close();
+                }
+            } catch (SQLException e1) {
+                debug(e1, null);
+            }
+            throw e;
+        }
+    }
+
     /**
      * Bypasses in-memory filtering to return items that are cached in memory.
      * <em>NOTE</em>: This does not bypass database-level filtering.
@@ -282,26 +520,72 @@ public class SQLContainer implements Container, Container.Filterable,
     }
 
     /**
-     * NOTE! Do not use this method if in any way avoidable. This method doesn't
-     * (and cannot) use lazy loading, which means that all rows in the database
-     * will be loaded into memory.
+     * Returns a lazy, unmodifiable view of the item ids of the container. The
+     * ids are not loaded into memory at once: the iterator of the collection
+     * fetches them from the data source a page at a time, and size() and
+     * contains() are answered by the container. Each iteration queries the
+     * data source again and reflects the contents of the container at the
+     * time each page is fetched.
+     * 
+     * Unlike in earlier versions, the collection is not a snapshot. Rows
+     * added or removed in the data source during an iteration, e.g. by
+     * removing items in auto commit mode, would shift the pages that are not
+     * fetched yet, so the iterator throws a ConcurrentModificationException
+     * when it detects such a change. To modify the container while iterating,
+     * iterate over a copy: {@code new ArrayList<Object>(getItemIds())}.
+     * Removing items in buffered mode does not affect the iteration.
      * 
      * {@inheritDoc}
      */
     public Collection<?> getItemIds() {
+        return new ItemIdCollection();
+    }
+
+    /**
+     * Returns the number of ids to fetch at a time with
+     * {@link #fetchItemIds(int, int)}. Returns 0, meaning all rows, if the
+     * delegate does not support paging.
+     */
+    private int getIdPageLength() {
+        return delegate.implementationRespectsPagingLimits() ? pageLength
+                * CACHE_RATIO : 0;
+    }
+
+    /**
+     * Fetches the ids of a range of rows from the data source. Only the
+     * primary key columns are fetched if the delegate is a TableQuery. Rows
+     * removed from the container are included in the result.
+     * 
+     * @param offset
+     *            the first row to fetch
+     * @param length
+     *            the number of rows to fetch, 0 for all rows
+     * @return the ids of the rows
+     */
+    private List<RowId> fetchItemIds(int offset, int length) {
         updateCount();
-        ArrayList<RowId> ids = new ArrayList<RowId>();
+        List<RowId> ids = new ArrayList<RowId>();
         ResultSet rs = null;
         try {
-            // Load ALL rows :(
+            try {
+                delegate.setOrderBy(sorters);
+            } catch (UnsupportedOperationException e) {
+                /* The query delegate doesn't support sorting. */
+                debug(e, null);
+            }
             delegate.beginTransaction();
-            rs = delegate.getResults(0, 0);
+            if (delegate instanceof TableQuery) {
+                rs = ((TableQuery) delegate).getPrimaryKeyResults(offset,
+                        length);
+            } else {
+                rs = delegate.getResults(offset, length);
+            }
             List<String> pKeys = delegate.getPrimaryKeyColumns();
             while (rs.next()) {
                 RowId id = null;
                 if (pKeys.isEmpty()) {
                     /* Create a read only itemId */
-                    id = new ReadOnlyRowId(rs.getRow());
+                    id = new ReadOnlyRowId(offset + rs.getRow());
                 } else {
                     /* Generate itemId for the row based on primary key(s) */
                     Object[] itemId = new Object[pKeys.size()];
@@ -310,11 +594,9 @@ public class SQLContainer implements Container, Container.Filterable,
                     }
                     id = new RowId(itemId);
                 }
-                if (id != null && !removedItems.containsKey(id)) {
-                    ids.add(id);
-                }
+                ids.add(id);
             }
-            rs.getStatement().close();
+            StatementCache.closeStatement(rs.getStatement());
             rs.close();
             delegate.commit();
         } catch (SQLException e) {
@@ -325,17 +607,16 @@ public class SQLContainer implements Container, Container.Filterable,
                 debug(e1, null);
             }
             try {
-                rs.getStatement().close();
-                rs.close();
+                if (rs != null) {
+                    StatementCache.closeStatement(rs.getStatement());
+                    rs.close();
+                }
             } catch (SQLException e1) {
                 debug(e1, null);
             }
             throw new RuntimeException("Failed to fetch item indexes.", e);
         }
-        for (RowItem item : getFilteredAddedItems()) {
-            ids.add(item.getId());
-        }
-        return Collections.unmodifiableCollection(ids);
+        return ids;
     }
 
     /*
@@ -357,7 +638,7 @@ public class SQLContainer implements Container, Container.Filterable,
      */
     public int size() {
         updateCount();
-        return size + sizeOfAddedItems() - removedItems.size();
+        return size + sizeOfAddedItems() - sizeOfRemovedItems();
     }
 
     /*
@@ -380,6 +661,7 @@ public class SQLContainer implements Container, Container.Filterable,
 
         if (autoCommit) {
             /* Remove and commit instantly. */
+            flushWrites();
             Item i = getItem(itemId);
             if (i == null) {
                 return false;
@@ -389,9 +671,9 @@ public class SQLContainer implements Container, Container.Filterable,
                 boolean success = delegate.removeRow((RowItem) i);
                 delegate.commit();
                 refresh();
-                if (notificationsEnabled) {
-                    CacheFlushNotifier.notifyOfCacheFlush(this);
-                }
+                notifyOfWrites(new CacheInvalidation(Collections
+                        .singleton((RowId) itemId),
+                        CacheInvalidation.Operation.DELETE));
                 if (success) {
                     debug(null, "Row removed from DB...");
                 }
@@ -420,12 +702,18 @@ public class SQLContainer implements Container, Container.Filterable,
      * @see com.vaadin.data.Container#removeAllItems()
      */
     public boolean removeAllItems() throws UnsupportedOperationException {
+        flushWrites();
+        if (delegate instanceof TableQuery
+                && ((TableQuery) delegate).getSqlGenerator() instanceof ExtendedSQLGenerator) {
+            return removeAllRows((TableQuery) delegate);
+        }
         if (autoCommit) {
             /* Remove and commit instantly. */
             try {
+                List<Object> ids = new ArrayList<Object>(getItemIds());
                 delegate.beginTransaction();
                 boolean success = true;
-                for (Object id : getItemIds()) {
+                for (Object id : ids) {
                     if (!delegate.removeRow((RowItem) getItem(id))) {
                         success = false;
                     }
@@ -434,9 +722,7 @@ public class SQLContainer implements Container, Container.Filterable,
                     delegate.commit();
                     debug(null, "All rows removed from DB...");
                     refresh();
-                    if (notificationsEnabled) {
-                        CacheFlushNotifier.notifyOfCacheFlush(this);
-                    }
+                    notifyOfWrites(new CacheInvalidation());
                 } else {
                     delegate.rollback();
                 }
@@ -452,15 +738,73 @@ public class SQLContainer implements Container, Container.Filterable,
                 return false;
             }
         } else {
-            for (Object id : getItemIds()) {
-                removedItems.put((RowId) id, (RowItem) getItem(id));
-                cachedItems.remove(id);
+            /*
+             * Read all the items first, the indexes of the rows shift as
+             * items are marked removed.
+             */
+            List<RowItem> items = new ArrayList<RowItem>();
+            for (Object id : new ArrayList<Object>(getItemIds())) {
+                items.add((RowItem) getItem(id));
+            }
+            for (RowItem item : items) {
+                removedItems.put(item.getId(), item);
+                cachedItems.remove(item.getId());
             }
             refresh();
             return true;
         }
     }
 
+    /**
+     * Removes all the items using set-based operations of the TableQuery. In
+     * auto commit mode the rows passing the current filters are deleted with
+     * one statement, or by key in chunks if a version column is set. In
+     * buffered mode only the ids (and versions) of the rows are read and kept
+     * as tombstones until commit; new items that have not been committed are
+     * discarded.
+     */
+    private boolean removeAllRows(TableQuery tq) {
+        try {
+            tq.setFilters(filters);
+            if (autoCommit) {
+                tq.beginTransaction();
+                try {
+                    int removed = tq.removeAllRows();
+                    tq.commit();
+                    debug(null, removed + " rows removed from DB...");
+                } catch (SQLException e) {
+                    tq.rollback();
+                    throw e;
+                } catch (RuntimeException e) {
+                    tq.rollback();
+                    throw e;
+                }
+                refresh();
+                notifyOfWrites(new CacheInvalidation());
+            } else {
+                Map<RowId, Object> rows = tq.getRowIdsAndVersions();
+                for (Map.Entry<RowId, Object> row : rows.entrySet()) {
+                    if (!removedItems.containsKey(row.getKey())) {
+                        removedKeys.put(row.getKey(), row.getValue());
+                    }
+                }
+                for (Iterator<RowItem> i = modifiedItems.iterator(); i
+                        .hasNext();) {
+                    if (isRemoved(i.next().getId())) {
+                        i.remove();
+                    }
+                }
+                /* Added items hidden by the filters are kept */
+                addedItems.removeAll(getFilteredAddedItems());
+                refresh();
+            }
+            return true;
+        } catch (SQLException e) {
+            debug(e, null);
+            return false;
+        }
+    }
+
     /*************************************************/
     /** Methods from interface Container.Filterable **/
     /*************************************************/
@@ -549,26 +893,43 @@ public class SQLContainer implements Container, Container.Filterable,
         if (!containsId(itemId)) {
             return -1;
         }
-        if (cachedItems.isEmpty()) {
-            getPage();
+        int cachedIndex = getCachedIndex(itemId);
+        if (cachedIndex >= 0) {
+            return cachedIndex;
         }
         int size = size();
-        boolean wrappedAround = false;
-        while (!wrappedAround) {
-            for (Integer i : itemIndexes.keySet()) {
-                if (itemIndexes.get(i).equals(itemId)) {
-                    return i;
+        if (delegate instanceof TableQuery && sizeOfRemovedItems() == 0) {
+            /* Ask the position of the row from the database */
+            try {
+                delegate.setOrderBy(sorters);
+                int index = ((TableQuery) delegate)
+                        .getRowPosition(((RowId) itemId).getId());
+                if (index >= 0 && index < size) {
+                    return index;
+                }
+            } catch (SQLException e) {
+                debug(e, "Row position query failed.");
+            }
+        }
+        /* Fall back to searching the ids page by page */
+        int idPageLength = getIdPageLength();
+        int offset = 0;
+        int index = 0;
+        while (true) {
+            List<RowId> ids = fetchItemIds(offset, idPageLength);
+            for (RowId id : ids) {
+                if (isRemoved(id)) {
+                    continue;
                 }
+                if (id.equals(itemId)) {
+                    return index;
+                }
+                index++;
             }
-            // load in the next page.
-            int nextIndex = (currentOffset / (pageLength * CACHE_RATIO) + 1)
-                    * (pageLength * CACHE_RATIO);
-            if (nextIndex >= size) {
-                // Container wrapped around, start from index 0.
-                wrappedAround = true;
-                nextIndex = 0;
+            offset += ids.size();
+            if (idPageLength == 0 || ids.size() < idPageLength) {
+                break;
             }
-            updateOffsetAndCache(nextIndex);
         }
         return -1;
     }
@@ -583,11 +944,12 @@ public class SQLContainer implements Container, Container.Filterable,
             return null;
         }
         if (index < size) {
-            if (itemIndexes.keySet().contains(index)) {
-                return itemIndexes.get(index);
+            RowId id = getCachedId(index);
+            if (id != null) {
+                return id;
             }
             updateOffsetAndCache(index);
-            return itemIndexes.get(index);
+            return getCachedId(index);
         } else {
             // The index is in the added items
             int offset = index - size;
@@ -638,10 +1000,10 @@ public class SQLContainer implements Container, Container.Filterable,
                 }
             }
         }
-        if (!itemIndexes.containsKey(0)) {
+        if (getCachedId(0) == null) {
             updateOffsetAndCache(0);
         }
-        return itemIndexes.get(0);
+        return getCachedId(0);
     }
 
     /*
@@ -652,10 +1014,10 @@ public class SQLContainer implements Container, Container.Filterable,
     public Object lastItemId() {
         if (addedItems.isEmpty()) {
             int lastIx = size() - 1;
-            if (!itemIndexes.containsKey(lastIx)) {
+            if (getCachedId(lastIx) == null) {
                 updateOffsetAndCache(size - 1);
             }
-            return itemIndexes.get(lastIx);
+            return getCachedId(lastIx);
         } else {
             int ix = addedItems.size();
             do {
@@ -738,20 +1100,182 @@ public class SQLContainer implements Container, Container.Filterable,
      * Does NOT remove sorting or filtering rules!
      */
     public void refresh() {
+        flushWrites();
+        pendingInvalidations.clear();
         sizeDirty = true;
         currentOffset = 0;
-        cachedItems.clear();
-        itemIndexes.clear();
+        clearCaches();
+        seekBookmarks.clear();
+        generation++;
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
+        if (countRefresher != null) {
+            countRefresher.cancel();
+        }
         fireContentsChange();
     }
 
+    /**
+     * Called when another container connected to the same table or query has
+     * written the given rows. The invalidation may arrive from any thread; it
+     * is queued and applied when this container is next accessed. The shared
+     * caches are invalidated by the {@link CacheFlushNotifier}, once for all
+     * the containers using them.
+     * 
+     * @param invalidation
+     *            the rows changed by the other container
+     */
+    void invalidateCache(CacheInvalidation invalidation) {
+        pendingInvalidations.add(invalidation);
+    }
+
+    /**
+     * Applies the queued cache invalidations. Cached rows that were updated
+     * are read again and replaced in the cache, unless they have been modified
+     * in this container. Inserts and deletes shift the indexes of the
+     * following rows, possibly in every cached page, so they evict all the
+     * pages cached by index, the cached indexes and the seek bookmarks; items
+     * fetched by id stay cached unless they were deleted. The size is only
+     * fetched again after inserts and deletes.
+     */
+    private void applyInvalidations() {
+        if (pendingInvalidations.isEmpty()) {
+            return;
+        }
+        boolean changed = false;
+        boolean shifted = false;
+        Set<RowId> evicted = new HashSet<RowId>();
+        Set<RowId> updated = new LinkedHashSet<RowId>();
+        CacheInvalidation invalidation;
+        while ((invalidation = pendingInvalidations.poll()) != null) {
+            if (invalidation.isAllRows()) {
+                pendingInvalidations.clear();
+                refresh();
+                return;
+            }
+            for (Map.Entry<RowId, CacheInvalidation.Operation> row : invalidation
+                    .getRows().entrySet()) {
+                RowItem cached = cachedItems.get(row.getKey());
+                if (row.getValue() != CacheInvalidation.Operation.UPDATE) {
+                    sizeDirty = true;
+                    changed = true;
+                    shifted = true;
+                    updated.remove(row.getKey());
+                    if (cached != null) {
+                        evicted.add(row.getKey());
+                    }
+                } else if (cached != null && !cached.isModified()
+                        && !modifiedItems.contains(cached)) {
+                    updated.add(row.getKey());
+                }
+            }
+        }
+        if (shifted) {
+            evictIndexedSegments();
+            updated.retainAll(cachedItems.keySet());
+        }
+        if (!updated.isEmpty()) {
+            changed = true;
+            if (delegate instanceof TableQuery) {
+                evicted.addAll(reloadItems(new ArrayList<RowId>(updated)));
+            } else {
+                evicted.addAll(updated);
+            }
+        }
+        if (!evicted.isEmpty()) {
+            evictSegmentsContaining(evicted);
+        }
+        if (changed) {
+            debug(null, "Applied cache invalidations");
+            fireContentsChange();
+        }
+    }
+
+    /**
+     * Reads the given cached items again and replaces them in the item cache.
+     * 
+     * @param ids
+     *            the ids of the cached items
+     * @return the ids of the items that could not be read again, because they
+     *         no longer pass the filters or the query failed
+     */
+    private List<RowId> reloadItems(List<RowId> ids) {
+        List<RowId> missing = new ArrayList<RowId>(ids);
+        FetchedPage page;
+        try {
+            delegate.setFilters(filters);
+            page = readItems(ids);
+        } catch (SQLException e) {
+            return missing;
+        }
+        for (RowItem item : page.getRows()) {
+            for (PageSegment segment : segments.values()) {
+                if (segment.replace(item) != null) {
+                    cachedItems.put(item.getId(), item);
+                    missing.remove(item.getId());
+                    break;
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            /* The items no longer pass the filters */
+            sizeDirty = true;
+        }
+        return missing;
+    }
+
+    /**
+     * Evicts the segments cached by index, and with them the cached indexes
+     * of the items, and the seek bookmarks, after rows have been inserted or
+     * deleted by others. Pages being prefetched for the old indexes are
+     * discarded. Items cached in unindexed segments are kept.
+     */
+    private void evictIndexedSegments() {
+        List<Integer> toEvict = new ArrayList<Integer>();
+        for (PageSegment segment : segments.values()) {
+            if (segment.getOffset() >= 0) {
+                toEvict.add(segment.getOffset());
+            }
+        }
+        for (Integer offset : toEvict) {
+            evictSegment(offset);
+        }
+        seekBookmarks.clear();
+        generation++;
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
+    }
+
+    /**
+     * Evicts the cached segments holding any of the given items.
+     * 
+     * @param ids
+     *            the ids of the items
+     */
+    private void evictSegmentsContaining(Set<RowId> ids) {
+        List<Integer> toEvict = new ArrayList<Integer>();
+        for (PageSegment segment : segments.values()) {
+            for (RowItem item : segment.getItems()) {
+                if (ids.contains(item.getId())) {
+                    toEvict.add(segment.getOffset());
+                    break;
+                }
+            }
+        }
+        for (Integer offset : toEvict) {
+            evictSegment(offset);
+        }
+    }
+
     /**
      * Returns modify state of the container.
      * 
      * @return true if contents of this container have been modified
      */
     public boolean isModified() {
-        return !removedItems.isEmpty() || !addedItems.isEmpty()
+        return sizeOfRemovedItems() > 0 || !addedItems.isEmpty()
                 || !modifiedItems.isEmpty();
     }
 
@@ -764,6 +1288,7 @@ public class SQLContainer implements Container, Container.Filterable,
      *            true to enable auto commit mode
      */
     public void setAutoCommit(boolean autoCommitEnabled) {
+        flushWrites();
         autoCommit = autoCommitEnabled;
     }
 
@@ -777,111 +1302,531 @@ public class SQLContainer implements Container, Container.Filterable,
     }
 
     /**
-     * Returns the currently set page length.
+     * Sets the write-behind delay of auto commit mode. When the delay is
+     * positive and the container uses a TableQuery, changes made to the items
+     * are not written immediately. Instead they are collected for the given
+     * time, changes to the same item are coalesced, and all the collected rows
+     * are written in one transaction on a background thread. The writes use a
+     * separate connection from the connection pool of the query.
      * 
-     * @return current page length
+     * Pending changes are written before the container is refreshed or
+     * committed, before items are added or removed in auto commit mode, and
+     * when {@link #flushWrites()} is called. Failed writes, e.g. because of an
+     * {@link OptimisticLockException}, are reported to the
+     * {@link WriteFailedListener}s. Changes to rows modified in the database
+     * meanwhile are dropped and the rows are read again; after other failures
+     * the changes are kept and written again with the next write.
+     * 
+     * @param milliseconds
+     *            the delay in milliseconds, 0 to write every change immediately
+     *            (the default)
      */
-    public int getPageLength() {
-        return pageLength;
+    public void setWriteBehindDelay(int milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException(
+                    "Write-behind delay must not be negative.");
+        }
+        flushWrites();
+        writeBehind = null;
+        writeBehindDelay = milliseconds;
     }
 
     /**
-     * Sets the page length used in lazy fetching of items from the data source.
-     * Also resets the cache size to match the new page length.
-     * 
-     * As a side effect the container will be refreshed.
-     * 
-     * @param pageLength
-     *            new page length
+     * @return the write-behind delay in milliseconds, 0 if disabled
      */
-    public void setPageLength(int pageLength) {
-        setPageLengthInternal(pageLength);
-        refresh();
+    public int getWriteBehindDelay() {
+        return writeBehindDelay;
     }
 
     /**
-     * Sets the page length internally, without refreshing the container.
+     * Writes the changes collected for write-behind to the database
+     * immediately. Returns when they have been written or the write has
+     * failed.
+     */
+    public void flushWrites() {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
+    /**
+     * Called by the write-behind queue after it has written changed rows.
      * 
-     * @param pageLength
-     *            the new page length
+     * @param ids
+     *            the ids of the written rows
      */
-    private void setPageLengthInternal(int pageLength) {
-        this.pageLength = pageLength > 0 ? pageLength : DEFAULT_PAGE_LENGTH;
-        cachedItems.setCacheLimit(CACHE_RATIO * getPageLength());
+    void writeBehindCompleted(List<RowId> ids) {
+        debug(null, "Rows written behind to DB...");
+        notifyOfWrites(new CacheInvalidation(ids,
+                CacheInvalidation.Operation.UPDATE));
     }
 
     /**
-     * Adds the given OrderBy to this container and refreshes the container
-     * contents with the new sorting rules.
+     * Called by the write-behind queue when changed rows could not be written
+     * because they were modified in the database meanwhile. The rows are read
+     * again when the container is next accessed, so the items no longer show
+     * the values that were not written.
      * 
-     * Note that orderBy.getColumn() must return a column name that exists in
-     * this container.
+     * @param ids
+     *            the ids of the rows that were not written
+     */
+    void writeBehindConflicted(List<RowId> ids) {
+        pendingInvalidations.add(new CacheInvalidation(ids,
+                CacheInvalidation.Operation.UPDATE));
+    }
+
+    /**
+     * Evicts the written rows from the shared row cache, evicts the results of
+     * the table from the query result cache and notifies the other containers
+     * of the writes, if cache flush notifications are enabled.
      * 
-     * @param orderBy
-     *            OrderBy to be added to the container sorting rules
+     * @param invalidation
+     *            the written rows
      */
-    public void addOrderBy(OrderBy orderBy) {
-        if (orderBy == null) {
-            return;
+    private void notifyOfWrites(CacheInvalidation invalidation) {
+        if (sharedRowCache != null && delegate instanceof TableQuery) {
+            sharedRowCache.invalidate(((TableQuery) delegate).getTableName(),
+                    invalidation);
         }
-        if (!propertyIds.contains(orderBy.getColumn())) {
-            throw new IllegalArgumentException(
-                    "The column given for sorting does not exist in this container.");
+        if (queryResultCache != null && delegate instanceof TableQuery) {
+            queryResultCache.invalidateTable(((TableQuery) delegate)
+                    .getTableName());
+        }
+        if (notificationsEnabled) {
+            CacheFlushNotifier.notifyOfCacheFlush(this, invalidation);
         }
-        sorters.add(orderBy);
-        refresh();
     }
 
     /**
-     * Commits all the changes, additions and removals made to the items of this
-     * container.
+     * Sets the row cache shared with the other containers of the JVM, e.g.
+     * {@link SharedRowCache#getDefault()}. Pages are then read by fetching
+     * only the ids and versions of their rows, and the rows found in the
+     * shared cache are not read from the database again. The rows written
+     * through this container are evicted from the shared cache.
      * 
-     * @throws UnsupportedOperationException
-     * @throws SQLException
+     * The shared cache is only used when the delegate is a TableQuery of a
+     * table with a primary key and seek paging is not enabled. It is not
+     * serialized with the container.
+     * 
+     * @param sharedRowCache
+     *            the shared cache, or null to disable it
      */
-    public void commit() throws UnsupportedOperationException, SQLException {
-        try {
-            debug(null, "Commiting changes through delegate...");
-            delegate.beginTransaction();
-            /* Perform buffered deletions */
-            for (RowItem item : removedItems.values()) {
-                if (!delegate.removeRow(item)) {
-                    throw new SQLException("Removal failed for row with ID: "
-                            + item.getId());
-                }
-            }
-            /* Perform buffered modifications */
-            for (RowItem item : modifiedItems) {
-                if (delegate.storeRow(item) > 0) {
-                    /*
-                     * Also reset the modified state in the item in case it is
-                     * reused e.g. in a form.
-                     */
-                    item.commit();
-                } else {
-                    delegate.rollback();
-                    refresh();
-                    throw new ConcurrentModificationException(
-                            "Item with the ID '" + item.getId()
-                                    + "' has been externally modified.");
-                }
-            }
-            /* Perform buffered additions */
-            for (RowItem item : addedItems) {
-                delegate.storeRow(item);
+    public void setSharedRowCache(SharedRowCache sharedRowCache) {
+        this.sharedRowCache = sharedRowCache;
+    }
+
+    /**
+     * @return the shared row cache, or null if none is used
+     */
+    public SharedRowCache getSharedRowCache() {
+        return sharedRowCache;
+    }
+
+    /**
+     * Sets the cache of page and row count results shared with the other
+     * containers of the JVM, e.g. {@link QueryResultCache#getDefault()}.
+     * Containers with the same table, filters and ordering then read each page
+     * and the row count from the database only once while the results are
+     * cached. The results of the table are evicted when rows are written
+     * through a container using the cache, or when a cache flush notification
+     * about the table is received.
+     * 
+     * Writes made to the table outside SQLContainers are seen only after the
+     * results expire. The cache is only used when the delegate is a
+     * TableQuery, and it is not serialized with the container.
+     * 
+     * @param queryResultCache
+     *            the shared cache, or null to disable it
+     */
+    public void setQueryResultCache(QueryResultCache queryResultCache) {
+        this.queryResultCache = queryResultCache;
+    }
+
+    /**
+     * @return the query result cache, or null if none is used
+     */
+    public QueryResultCache getQueryResultCache() {
+        return queryResultCache;
+    }
+
+    /**
+     * Enables or disables background read-ahead. When enabled and the
+     * container uses a TableQuery, the page next to the most recently fetched
+     * one (in the direction the container is being scrolled) is fetched on a
+     * background thread, using a separate connection from the connection pool
+     * of the query. Steady scrolling through the container will then usually
+     * find the next page already in memory.
+     * 
+     * Note that the connection pool must allow one extra connection per
+     * container for the read-ahead.
+     * 
+     * @param prefetchEnabled
+     *            true to enable read-ahead
+     */
+    public void setPrefetchEnabled(boolean prefetchEnabled) {
+        this.prefetchEnabled = prefetchEnabled;
+        if (!prefetchEnabled && prefetcher != null) {
+            prefetcher.cancel();
+        }
+    }
+
+    /**
+     * Returns whether background read-ahead is enabled.
+     * 
+     * @return true if read-ahead is enabled
+     */
+    public boolean isPrefetchEnabled() {
+        return prefetchEnabled;
+    }
+
+    /**
+     * @return the number of prefetched pages taken into use
+     */
+    int getPrefetchHitCount() {
+        return prefetcher != null ? prefetcher.getHitCount() : 0;
+    }
+
+    /**
+     * Enables or disables collecting of optimistic locking conflicts on
+     * commit. By default a commit stops at the first row that fails the
+     * version check, rolls back and discards the cached items. When conflict
+     * collection is enabled, all the buffered deletions and modifications are
+     * tried, the ids of every row that failed the check are reported in a
+     * {@link CommitConflictException}, and the buffered changes are kept so
+     * that the commit can be retried once the conflicts are resolved.
+     * 
+     * Conflicts are collected only when the delegate is a TableQuery.
+     * 
+     * @param conflictCollectionEnabled
+     *            true to collect all conflicts of a commit
+     */
+    public void setConflictCollectionEnabled(boolean conflictCollectionEnabled) {
+        this.conflictCollectionEnabled = conflictCollectionEnabled;
+    }
+
+    /**
+     * Returns whether all optimistic locking conflicts of a commit are
+     * collected.
+     * 
+     * @return true if conflict collection is enabled
+     */
+    public boolean isConflictCollectionEnabled() {
+        return conflictCollectionEnabled;
+    }
+
+    /**
+     * Enables or disables re-reading of conflicting rows. When enabled, the
+     * rows reported in a {@link CommitConflictException} are fetched from the
+     * database by their primary keys, so that their current state is
+     * available from {@link CommitConflictException#getCurrentItems()}. Only
+     * the conflicting rows are read. Has no effect unless conflict collection
+     * is enabled.
+     * 
+     * @param conflictRereadEnabled
+     *            true to re-read conflicting rows
+     */
+    public void setConflictRereadEnabled(boolean conflictRereadEnabled) {
+        this.conflictRereadEnabled = conflictRereadEnabled;
+    }
+
+    /**
+     * Returns whether conflicting rows are re-read from the database.
+     * 
+     * @return true if re-reading of conflicting rows is enabled
+     */
+    public boolean isConflictRereadEnabled() {
+        return conflictRereadEnabled;
+    }
+
+    /**
+     * Sets the policy used to decide when and how the row count of the
+     * container is fetched from the data source. The default policy keeps a
+     * count valid for ten seconds and refreshes it synchronously.
+     * 
+     * With an asynchronous policy an expired count is refreshed on a
+     * background thread while the previous count is still served. When the
+     * new count has arrived, it is taken into use the next time the size of
+     * the container is checked, and an ItemSetChangeEvent is fired if it
+     * differs from the previous one. Background counts are only supported
+     * with a TableQuery delegate.
+     * 
+     * @param sizePolicy
+     *            the size policy
+     */
+    public void setSizePolicy(SizePolicy sizePolicy) {
+        if (sizePolicy == null) {
+            throw new IllegalArgumentException("Size policy must not be null.");
+        }
+        this.sizePolicy = sizePolicy;
+        sizeDirty = true;
+    }
+
+    /**
+     * Returns the policy used to decide when and how the row count of the
+     * container is fetched.
+     * 
+     * @return the size policy
+     */
+    public SizePolicy getSizePolicy() {
+        return sizePolicy;
+    }
+
+    /**
+     * Returns the currently set page length.
+     * 
+     * @return current page length
+     */
+    public int getPageLength() {
+        return pageLength;
+    }
+
+    /**
+     * Sets the page length used in lazy fetching of items from the data source.
+     * Also resets the cache size to match the new page length.
+     * 
+     * As a side effect the container will be refreshed.
+     * 
+     * @param pageLength
+     *            new page length
+     */
+    public void setPageLength(int pageLength) {
+        setPageLengthInternal(pageLength);
+        refresh();
+    }
+
+    /**
+     * Sets the page length internally, without refreshing the container.
+     * 
+     * @param pageLength
+     *            the new page length
+     */
+    private void setPageLengthInternal(int pageLength) {
+        this.pageLength = pageLength > 0 ? pageLength : DEFAULT_PAGE_LENGTH;
+    }
+
+    /**
+     * Adds the given OrderBy to this container and refreshes the container
+     * contents with the new sorting rules.
+     * 
+     * Note that orderBy.getColumn() must return a column name that exists in
+     * this container.
+     * 
+     * @param orderBy
+     *            OrderBy to be added to the container sorting rules
+     */
+    public void addOrderBy(OrderBy orderBy) {
+        if (orderBy == null) {
+            return;
+        }
+        if (!propertyIds.contains(orderBy.getColumn())) {
+            throw new IllegalArgumentException(
+                    "The column given for sorting does not exist in this container.");
+        }
+        sorters.add(orderBy);
+        refresh();
+    }
+
+    /**
+     * Commits all the changes, additions and removals made to the items of this
+     * container.
+     * 
+     * @throws UnsupportedOperationException
+     * @throws SQLException
+     */
+    public void commit() throws UnsupportedOperationException, SQLException {
+        try {
+            debug(null, "Commiting changes through delegate...");
+            flushWrites();
+            delegate.beginTransaction();
+            if (delegate instanceof TableQuery) {
+                commitInBatches((TableQuery) delegate);
+            } else {
+                commitRowByRow();
             }
             delegate.commit();
+            CacheInvalidation invalidation = null;
+            if (notificationsEnabled || sharedRowCache != null
+                    || queryResultCache != null) {
+                invalidation = getCommittedChanges();
+            }
             removedItems.clear();
+            removedKeys.clear();
             addedItems.clear();
             modifiedItems.clear();
             refresh();
-            if (notificationsEnabled) {
-                CacheFlushNotifier.notifyOfCacheFlush(this);
+            if (invalidation != null) {
+                notifyOfWrites(invalidation);
             }
         } catch (SQLException e) {
             delegate.rollback();
             throw e;
+        } catch (OptimisticLockException e) {
+            delegate.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the rows changed by the buffered deletions, modifications and
+     * additions as a cache invalidation for other containers.
+     * 
+     * @return the invalidation
+     */
+    private CacheInvalidation getCommittedChanges() {
+        Map<RowId, CacheInvalidation.Operation> changes = new LinkedHashMap<RowId, CacheInvalidation.Operation>();
+        for (RowId id : removedItems.keySet()) {
+            changes.put(id, CacheInvalidation.Operation.DELETE);
+        }
+        for (RowId id : removedKeys.keySet()) {
+            changes.put(id, CacheInvalidation.Operation.DELETE);
+        }
+        for (RowItem item : modifiedItems) {
+            changes.put(item.getId(), CacheInvalidation.Operation.UPDATE);
+        }
+        for (RowItem item : addedItems) {
+            changes.put(item.getId(), CacheInvalidation.Operation.INSERT);
+        }
+        return new CacheInvalidation(changes);
+    }
+
+    /**
+     * Writes the buffered deletions, modifications and additions through the
+     * delegate one row at a time. The transaction must be open.
+     */
+    private void commitRowByRow() throws SQLException {
+        /* Perform buffered deletions */
+        for (RowItem item : removedItems.values()) {
+            if (!delegate.removeRow(item)) {
+                throw new SQLException("Removal failed for row with ID: "
+                        + item.getId());
+            }
+        }
+        /* Perform buffered modifications */
+        for (RowItem item : modifiedItems) {
+            if (delegate.storeRow(item) > 0) {
+                /*
+                 * Also reset the modified state in the item in case it is
+                 * reused e.g. in a form.
+                 */
+                item.commit();
+            } else {
+                delegate.rollback();
+                refresh();
+                throw new ConcurrentModificationException(
+                        "Item with the ID '" + item.getId()
+                                + "' has been externally modified.");
+            }
+        }
+        /* Perform buffered additions */
+        for (RowItem item : addedItems) {
+            delegate.storeRow(item);
+        }
+    }
+
+    /**
+     * Writes the buffered deletions, modifications and additions using the
+     * batch operations of the given TableQuery. The transaction must be open.
+     */
+    private void commitInBatches(TableQuery tq) throws SQLException {
+        List<RowId> conflicts = new ArrayList<RowId>();
+        /* Perform buffered deletions */
+        List<RowItem> removed = new ArrayList<RowItem>(removedItems.values());
+        try {
+            int[] results = tq.removeRows(removed);
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == 0) {
+                    throw new SQLException("Removal failed for row with ID: "
+                            + removed.get(i).getId());
+                }
+            }
+        } catch (OptimisticLockException e) {
+            collectConflicts(e, conflicts);
+        }
+        try {
+            tq.removeRowsByKey(removedKeys);
+        } catch (OptimisticLockException e) {
+            collectConflicts(e, conflicts);
+        }
+        /* Perform buffered modifications */
+        try {
+            int[] results = tq.storeRows(modifiedItems);
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != 0) {
+                    continue;
+                }
+                if (conflictCollectionEnabled) {
+                    conflicts.add(modifiedItems.get(i).getId());
+                } else {
+                    delegate.rollback();
+                    refresh();
+                    throw new ConcurrentModificationException(
+                            "Item with the ID '" + modifiedItems.get(i).getId()
+                                    + "' has been externally modified.");
+                }
+            }
+        } catch (OptimisticLockException e) {
+            collectConflicts(e, conflicts);
+        }
+        if (!conflicts.isEmpty()) {
+            Map<RowId, RowItem> current = Collections.emptyMap();
+            if (conflictRereadEnabled) {
+                current = readCurrentItems(tq, conflicts);
+            }
+            throw new CommitConflictException(conflicts.size()
+                    + " of the rows have been externally modified.",
+                    conflicts, current);
+        }
+        for (RowItem item : modifiedItems) {
+            /*
+             * Also reset the modified state in the item in case it is reused
+             * e.g. in a form.
+             */
+            item.commit();
+        }
+        /* Perform buffered additions */
+        tq.storeRows(addedItems);
+    }
+
+    /**
+     * Adds the rows reported by the given exception to the conflicts of the
+     * commit, or rethrows it if conflict collection is disabled.
+     */
+    private void collectConflicts(OptimisticLockException e,
+            List<RowId> conflicts) {
+        if (!conflictCollectionEnabled) {
+            throw e;
+        }
+        conflicts.addAll(e.getRowIds());
+    }
+
+    /**
+     * Reads the current state of the given rows from the database, ignoring
+     * the filters of the container. The items are not cached. The transaction
+     * must be open.
+     */
+    private Map<RowId, RowItem> readCurrentItems(TableQuery tq, List<RowId> ids)
+            throws SQLException {
+        Map<RowId, RowItem> current = new LinkedHashMap<RowId, RowItem>();
+        int chunkSize = Math.min(tq.getBatchSize(), getKeyChunkSize(tq));
+        for (int from = 0; from < ids.size(); from += chunkSize) {
+            List<Object[]> keys = new ArrayList<Object[]>();
+            for (RowId id : ids.subList(from,
+                    Math.min(ids.size(), from + chunkSize))) {
+                keys.add(id.getId());
+            }
+            ResultSet rs = tq.getResultsForKeys(keys, false);
+            try {
+                for (RowItem item : readPage(rs, 0, generation,
+                        tq.getPrimaryKeyColumns(), null, propertyMetadata)
+                        .getRows()) {
+                    current.put(item.getId(), item);
+                }
+            } finally {
+                StatementCache.closeStatement(rs.getStatement());
+                rs.close();
+            }
         }
+        return current;
     }
 
     /**
@@ -894,6 +1839,7 @@ public class SQLContainer implements Container, Container.Filterable,
     public void rollback() throws UnsupportedOperationException, SQLException {
         debug(null, "Rolling back changes...");
         removedItems.clear();
+        removedKeys.clear();
         addedItems.clear();
         modifiedItems.clear();
         refresh();
@@ -908,7 +1854,15 @@ public class SQLContainer implements Container, Container.Filterable,
      *            item that has a modified property
      */
     void itemChangeNotification(RowItem changedItem) {
-        if (autoCommit) {
+        if (autoCommit && writeBehindDelay > 0
+                && delegate instanceof TableQuery
+                && !(changedItem.getId() instanceof TemporaryRowId)) {
+            if (writeBehind == null) {
+                writeBehind = new WriteBehindQueue(this,
+                        (TableQuery) delegate, writeBehindDelay);
+            }
+            writeBehind.enqueue(changedItem);
+        } else if (autoCommit) {
             try {
                 delegate.beginTransaction();
                 if (delegate.storeRow(changedItem) == 0) {
@@ -919,9 +1873,11 @@ public class SQLContainer implements Container, Container.Filterable,
                                     + "' has been externally modified.");
                 }
                 delegate.commit();
-                if (notificationsEnabled) {
-                    CacheFlushNotifier.notifyOfCacheFlush(this);
-                }
+                /* The stored values are no longer modified */
+                changedItem.commit();
+                notifyOfWrites(new CacheInvalidation(Collections
+                        .singleton(changedItem.getId()),
+                        CacheInvalidation.Operation.UPDATE));
                 debug(null, "Row updated to DB...");
             } catch (SQLException e) {
                 debug(e, null);
@@ -950,26 +1906,39 @@ public class SQLContainer implements Container, Container.Filterable,
      *            Index of the item that was requested, but not found in cache
      */
     private void updateOffsetAndCache(int index) {
-        if (itemIndexes.containsKey(index)) {
-            return;
-        }
+        int previousOffset = currentOffset;
         currentOffset = (index / (pageLength * CACHE_RATIO))
                 * (pageLength * CACHE_RATIO);
         if (currentOffset < 0) {
             currentOffset = 0;
         }
+        if (getCachedId(index) != null) {
+            /* Served from a cached segment */
+            return;
+        }
+        scrollingForward = currentOffset >= previousOffset;
         getPage();
     }
 
     /**
-     * Fetches new count of rows from the data source, if needed.
+     * Fetches new count of rows from the data source, if needed. Queued cache
+     * invalidations are applied first.
      */
     private void updateCount() {
+        applyInvalidations();
+        if (countRefresher != null) {
+            Integer newSize = countRefresher.take(generation);
+            if (newSize != null) {
+                setSizeFromCount(newSize);
+            }
+        }
         if (!sizeDirty
-                && new Date().getTime() < sizeUpdated.getTime()
-                        + sizeValidMilliSeconds) {
+                && sizePolicy.isSizeValid(sizeUpdated.getTime(),
+                        new Date().getTime())) {
             return;
         }
+        boolean countsInBackground = sizePolicy.isAsynchronous()
+                && delegate instanceof TableQuery;
         try {
             try {
                 delegate.setFilters(filters);
@@ -983,19 +1952,81 @@ public class SQLContainer implements Container, Container.Filterable,
                 /* The query delegate doesn't support filtering. */
                 debug(e, null);
             }
-            int newSize = delegate.getCount();
-            if (newSize != size) {
-                size = newSize;
-                refresh();
+            if (!sizeDirty && countsInBackground) {
+                /* Serve the expired size until the new count arrives */
+                scheduleCountRefresh();
+                return;
+            }
+            if (sizePolicy.isEstimated() && delegate instanceof TableQuery) {
+                setSizeFromCount(((TableQuery) delegate).getEstimatedCount());
+                if (countsInBackground) {
+                    scheduleCountRefresh();
+                }
+            } else if (queryResultCache != null
+                    && delegate instanceof TableQuery) {
+                final TableQuery tq = (TableQuery) delegate;
+                setSizeFromCount(queryResultCache.get(tq.getConnectionPool(),
+                        tq.getTableName(), tq.getCountStatement(),
+                        new QueryResultCache.Loader<Integer>() {
+                            public Integer load() throws SQLException {
+                                return tq.getCount();
+                            }
+                        }));
+            } else {
+                setSizeFromCount(delegate.getCount());
             }
-            sizeUpdated = new Date();
-            sizeDirty = false;
-            debug(null, "Updated row count. New count is: " + size);
         } catch (SQLException e) {
             throw new RuntimeException("Failed to update item set size.", e);
         }
     }
 
+    /**
+     * Sets the size of the container from a fetched row count. If the size
+     * changed, the container is refreshed, which fires an ItemSetChangeEvent.
+     * 
+     * @param newSize
+     *            the fetched row count
+     */
+    private void setSizeFromCount(int newSize) {
+        if (newSize != size) {
+            size = newSize;
+            refresh();
+        }
+        sizeUpdated = new Date();
+        sizeDirty = false;
+        debug(null, "Updated row count. New count is: " + size);
+    }
+
+    /**
+     * Starts an exact row count on a background thread, in a transaction of
+     * its own on a connection from the connection pool of the TableQuery. The
+     * result is taken into use by {@link #updateCount()}.
+     */
+    private void scheduleCountRefresh() {
+        final TableQuery tq = (TableQuery) delegate;
+        final StatementHelper sh = tq.getCountStatement();
+        if (countRefresher == null) {
+            countRefresher = new CountRefresher();
+        }
+        countRefresher.schedule(generation, new Callable<Integer>() {
+            public Integer call() throws Exception {
+                try {
+                    return tq.executeDetachedQuery(sh,
+                            new TableQuery.ResultReader<Integer>() {
+                                public Integer read(ResultSet rs)
+                                        throws SQLException {
+                                    rs.next();
+                                    return rs.getInt(1);
+                                }
+                            });
+                } catch (SQLException e) {
+                    debug(e, "Refreshing row count failed.");
+                    throw e;
+                }
+            }
+        });
+    }
+
     /**
      * Fetches property id's (column names and their types) from the data
      * source.
@@ -1057,9 +2088,11 @@ public class SQLContainer implements Container, Container.Filterable,
                         rsmd.isNullable(i) == ResultSetMetaData.columnNullable);
                 propertyTypes.put(colName, type);
             }
-            rs.getStatement().close();
+            StatementCache.closeStatement(rs.getStatement());
             rs.close();
             delegate.commit();
+            propertyMetadata = new PropertyMetadata(propertyIds,
+                    propertyTypes, propertyReadOnly, propertyNullable);
             debug(null, "Property IDs fetched.");
         } catch (SQLException e) {
             debug(e, null);
@@ -1071,7 +2104,7 @@ public class SQLContainer implements Container, Container.Filterable,
             try {
                 if (rs != null) {
                     if (rs.getStatement() != null) {
-                        rs.getStatement().close();
+                        StatementCache.closeStatement(rs.getStatement());
                     }
                     rs.close();
                 }
@@ -1090,9 +2123,15 @@ public class SQLContainer implements Container, Container.Filterable,
     private void getPage() {
         updateCount();
         ResultSet rs = null;
-        ResultSetMetaData rsmd = null;
-        cachedItems.clear();
-        itemIndexes.clear();
+        evictSegment(currentOffset);
+        FetchedPage prefetched = prefetcher != null ? prefetcher.take(
+                currentOffset, generation) : null;
+        if (prefetched != null) {
+            installPage(prefetched);
+            debug(null, "Used prefetched page starting from " + currentOffset);
+            schedulePrefetch();
+            return;
+        }
         try {
             try {
                 delegate.setOrderBy(sorters);
@@ -1102,73 +2141,43 @@ public class SQLContainer implements Container, Container.Filterable,
                 debug(e, null);
             }
             delegate.beginTransaction();
-            rs = delegate.getResults(currentOffset, pageLength * CACHE_RATIO);
-            rsmd = rs.getMetaData();
-            List<String> pKeys = delegate.getPrimaryKeyColumns();
-            // }
-            /* Create new items and column properties */
-            ColumnProperty cp = null;
-            int rowCount = currentOffset;
-            if (!delegate.implementationRespectsPagingLimits()) {
-                rowCount = currentOffset = 0;
-                setPageLengthInternal(size);
+            List<OrderBy> seekOrderBys = null;
+            Object[] seekKeys = null;
+            if (isSeekPagingEnabled()) {
+                seekOrderBys = ((TableQuery) delegate).getSeekOrderBys();
+                seekKeys = seekBookmarks.get(currentOffset);
             }
-            while (rs.next()) {
-                List<ColumnProperty> itemProperties = new ArrayList<ColumnProperty>();
-                /* Generate row itemId based on primary key(s) */
-                Object[] itemId = new Object[pKeys.size()];
-                for (int i = 0; i < pKeys.size(); i++) {
-                    itemId[i] = rs.getObject(pKeys.get(i));
-                }
-                RowId id = null;
-                if (pKeys.isEmpty()) {
-                    id = new ReadOnlyRowId(rs.getRow());
+            FetchedPage page;
+            if (queryResultCache != null && delegate instanceof TableQuery) {
+                page = readPageThroughResultCache((TableQuery) delegate,
+                        seekKeys, seekOrderBys);
+            } else if (isSharedRowCacheUsed()) {
+                page = readPageThroughSharedCache((TableQuery) delegate);
+            } else {
+                if (seekKeys != null) {
+                    rs = ((TableQuery) delegate).getResultsAfter(seekKeys,
+                            pageLength * CACHE_RATIO);
                 } else {
-                    id = new RowId(itemId);
+                    rs = delegate.getResults(currentOffset, pageLength
+                            * CACHE_RATIO);
                 }
-                List<String> propertiesToAdd = new ArrayList<String>(
-                        propertyIds);
-                if (!removedItems.containsKey(id)) {
-                    for (int i = 1; i <= rsmd.getColumnCount(); i++) {
-                        if (!isColumnIdentifierValid(rsmd.getColumnLabel(i))) {
-                            continue;
-                        }
-                        String colName = rsmd.getColumnLabel(i);
-                        Object value = rs.getObject(i);
-                        Class<?> type = value != null ? value.getClass()
-                                : Object.class;
-                        if (value == null) {
-                            for (String propName : propertyTypes.keySet()) {
-                                if (propName.equals(rsmd.getColumnLabel(i))) {
-                                    type = propertyTypes.get(propName);
-                                    break;
-                                }
-                            }
-                        }
-                        /*
-                         * In case there are more than one column with the same
-                         * name, add only the first one. This can easily happen
-                         * if you join many tables where each table has an ID
-                         * column.
-                         */
-                        if (propertiesToAdd.contains(colName)) {
-                            cp = new ColumnProperty(colName,
-                                    propertyReadOnly.get(colName),
-                                    !propertyReadOnly.get(colName),
-                                    propertyNullable.get(colName), value, type);
-                            itemProperties.add(cp);
-                            propertiesToAdd.remove(colName);
-                        }
-                    }
-                    /* Cache item */
-                    itemIndexes.put(rowCount, id);
-                    cachedItems.put(id, new RowItem(this, id, itemProperties));
-                    rowCount++;
+                if (!delegate.implementationRespectsPagingLimits()) {
+                    /*
+                     * All rows were fetched, they replace any cached
+                     * segments.
+                     */
+                    clearCaches();
+                    currentOffset = 0;
+                    setPageLengthInternal(size);
                 }
+                page = readPage(rs, currentOffset, generation,
+                        delegate.getPrimaryKeyColumns(), seekOrderBys,
+                        propertyMetadata);
+                StatementCache.closeStatement(rs.getStatement());
+                rs.close();
             }
-            rs.getStatement().close();
-            rs.close();
             delegate.commit();
+            installPage(page);
             debug(null, "Fetched " + pageLength * CACHE_RATIO
                     + " rows starting from " + currentOffset);
         } catch (SQLException e) {
@@ -1181,7 +2190,7 @@ public class SQLContainer implements Container, Container.Filterable,
             try {
                 if (rs != null) {
                     if (rs.getStatement() != null) {
-                        rs.getStatement().close();
+                        StatementCache.closeStatement(rs.getStatement());
                         rs.close();
                     }
                 }
@@ -1190,6 +2199,514 @@ public class SQLContainer implements Container, Container.Filterable,
             }
             throw new RuntimeException("Failed to fetch page.", e);
         }
+        schedulePrefetch();
+    }
+
+    /**
+     * @return true if pages are read through the shared row cache
+     */
+    private boolean isSharedRowCacheUsed() {
+        return sharedRowCache != null && delegate instanceof TableQuery
+                && !delegate.getPrimaryKeyColumns().isEmpty()
+                && !isSeekPagingEnabled();
+    }
+
+    /**
+     * Reads the page at the current offset through the shared row cache. Only
+     * the ids and versions of the rows are read first; the rows missing from
+     * the shared cache, or cached with another version, are then read by
+     * their ids and added to the shared cache. The transaction must be open.
+     * 
+     * @param tq
+     *            the delegate
+     * @return the page
+     * @throws SQLException
+     */
+    private FetchedPage readPageThroughSharedCache(TableQuery tq)
+            throws SQLException {
+        String tableName = tq.getTableName();
+        Map<RowId, Object> versions = tq.getRowIdsAndVersions(currentOffset,
+                pageLength * CACHE_RATIO);
+        Map<RowId, SharedRowCache.Row> rows = new HashMap<RowId, SharedRowCache.Row>();
+        List<RowId> missing = new ArrayList<RowId>();
+        for (Map.Entry<RowId, Object> version : versions.entrySet()) {
+            SharedRowCache.Row row = sharedRowCache.get(
+                    tq.getConnectionPool(), tableName, version.getKey(),
+                    version.getValue());
+            if (row == null) {
+                missing.add(version.getKey());
+            } else {
+                rows.put(version.getKey(), row);
+            }
+        }
+        int chunkSize = getKeyChunkSize(tq);
+        for (int i = 0; i < missing.size(); i += chunkSize) {
+            List<Object[]> keys = new ArrayList<Object[]>();
+            for (RowId id : missing.subList(i,
+                    Math.min(i + chunkSize, missing.size()))) {
+                keys.add(id.getId());
+            }
+            ResultSet rs = tq.getResultsForKeys(keys);
+            FetchedPage read;
+            try {
+                read = readPage(rs, 0, generation, tq.getPrimaryKeyColumns(),
+                        null, propertyMetadata);
+            } finally {
+                StatementCache.closeStatement(rs.getStatement());
+                rs.close();
+            }
+            for (RowItem item : read.getRows()) {
+                SharedRowCache.Row row = SharedRowCache.createRow(item,
+                        tq.getVersionColumn());
+                sharedRowCache.put(tq.getConnectionPool(), tableName,
+                        item.getId(), row);
+                rows.put(item.getId(), row);
+            }
+        }
+        FetchedPage page = new FetchedPage(currentOffset, generation);
+        for (RowId id : versions.keySet()) {
+            SharedRowCache.Row row = rows.get(id);
+            if (row != null) {
+                page.addRow(createRowItem(id, row), null);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Reads the page at the current offset through the query result cache. If
+     * the page is not cached, it is read from the database, through the
+     * shared row cache if one is used, and cached. Concurrent reads of the
+     * same page by other containers wait for the first one to finish. The
+     * transaction must be open.
+     * 
+     * @param tq
+     *            the delegate
+     * @param seekKeys
+     *            sort key values of the row preceding the page, or null
+     * @param seekOrderBys
+     *            the seek paging ordering, or null if seek paging is not used
+     * @return the page
+     * @throws SQLException
+     */
+    private FetchedPage readPageThroughResultCache(final TableQuery tq,
+            final Object[] seekKeys, final List<OrderBy> seekOrderBys)
+            throws SQLException {
+        final int window = pageLength * CACHE_RATIO;
+        StatementHelper sh = seekKeys != null ? tq.getSeekPageStatement(
+                seekKeys, window) : tq.getPageStatement(currentOffset, window);
+        QueryResultCache.CachedPage cached = queryResultCache.get(
+                tq.getConnectionPool(), tq.getTableName(), sh,
+                new QueryResultCache.Loader<QueryResultCache.CachedPage>() {
+                    public QueryResultCache.CachedPage load()
+                            throws SQLException {
+                        FetchedPage read;
+                        if (isSharedRowCacheUsed()) {
+                            read = readPageThroughSharedCache(tq);
+                        } else {
+                            ResultSet rs = seekKeys != null ? tq
+                                    .getResultsAfter(seekKeys, window) : tq
+                                    .getResults(currentOffset, window);
+                            try {
+                                read = readPage(rs, currentOffset,
+                                        generation, tq.getPrimaryKeyColumns(),
+                                        seekOrderBys, propertyMetadata);
+                            } finally {
+                                StatementCache.closeStatement(rs
+                                        .getStatement());
+                                rs.close();
+                            }
+                        }
+                        return new QueryResultCache.CachedPage(read,
+                                tq.getVersionColumn());
+                    }
+                });
+        List<RowId> ids = cached.getIds();
+        List<SharedRowCache.Row> rows = cached.getRows();
+        FetchedPage page = new FetchedPage(currentOffset, generation);
+        for (int i = 0; i < ids.size(); i++) {
+            page.addRow(createRowItem(ids.get(i), rows.get(i)),
+                    i == ids.size() - 1 ? cached.getLastSeekKeys() : null);
+        }
+        return page;
+    }
+
+    /**
+     * Creates an item of this container from a row of the shared row cache or
+     * of the query result cache.
+     */
+    private RowItem createRowItem(RowId id, SharedRowCache.Row row) {
+        String[] columns = row.getColumns();
+        Object[] values = row.copyValues();
+        List<ColumnProperty> itemProperties = new ArrayList<ColumnProperty>(
+                columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            itemProperties.add(propertyMetadata.createProperty(columns[i],
+                    values[i]));
+        }
+        return new RowItem(this, id, itemProperties);
+    }
+
+    /**
+     * Immutable copy of the column metadata of the container. Rows are built
+     * from a copy so that they can also be read on a background thread.
+     */
+    private static final class PropertyMetadata implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final List<String> ids;
+        private final Map<String, Class<?>> types;
+        private final Map<String, Boolean> readOnly;
+        private final Map<String, Boolean> nullable;
+
+        PropertyMetadata(List<String> ids, Map<String, Class<?>> types,
+                Map<String, Boolean> readOnly, Map<String, Boolean> nullable) {
+            this.ids = Collections.unmodifiableList(new ArrayList<String>(ids));
+            this.types = new HashMap<String, Class<?>>(types);
+            this.readOnly = new HashMap<String, Boolean>(readOnly);
+            this.nullable = new HashMap<String, Boolean>(nullable);
+        }
+
+        List<String> getIds() {
+            return ids;
+        }
+
+        /**
+         * Creates a property of the given column holding the given value.
+         */
+        ColumnProperty createProperty(String colName, Object value) {
+            Class<?> type = value != null ? value.getClass() : types
+                    .get(colName);
+            boolean ro = readOnly.get(colName);
+            return new ColumnProperty(colName, ro, !ro,
+                    nullable.get(colName), value, type != null ? type
+                            : Object.class);
+        }
+    }
+
+    /**
+     * Reads the rows of the given result set into a new FetchedPage. The rows
+     * are built from the given metadata snapshot only, so this method may also
+     * be called from the prefetch thread.
+     * 
+     * @param rs
+     *            ResultSet positioned before the first row of the page
+     * @param offset
+     *            offset of the page
+     * @param generation
+     *            generation of the container when the query was generated
+     * @param pKeys
+     *            primary key column names
+     * @param seekOrderBys
+     *            the ordering used in seek paging mode, or null
+     * @param metadata
+     *            the column metadata of the container
+     * @return the page
+     * @throws SQLException
+     */
+    private FetchedPage readPage(ResultSet rs, int offset, int generation,
+            List<String> pKeys, List<OrderBy> seekOrderBys,
+            PropertyMetadata metadata) throws SQLException {
+        FetchedPage page = new FetchedPage(offset, generation);
+        ResultSetMetaData rsmd = rs.getMetaData();
+        /* Create new items and column properties */
+        while (rs.next()) {
+            Object[] seekKeys = null;
+            if (seekOrderBys != null) {
+                seekKeys = new Object[seekOrderBys.size()];
+                for (int i = 0; i < seekOrderBys.size(); i++) {
+                    seekKeys[i] = rs.getObject(seekOrderBys.get(i).getColumn());
+                }
+            }
+            List<ColumnProperty> itemProperties = new ArrayList<ColumnProperty>();
+            /* Generate row itemId based on primary key(s) */
+            Object[] itemId = new Object[pKeys.size()];
+            for (int i = 0; i < pKeys.size(); i++) {
+                itemId[i] = rs.getObject(pKeys.get(i));
+            }
+            RowId id = null;
+            if (pKeys.isEmpty()) {
+                id = new ReadOnlyRowId(rs.getRow());
+            } else {
+                id = new RowId(itemId);
+            }
+            List<String> propertiesToAdd = new ArrayList<String>(
+                    metadata.getIds());
+            for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+                String colName = rsmd.getColumnLabel(i);
+                /*
+                 * In case there are more than one column with the same name,
+                 * add only the first one. This can easily happen if you join
+                 * many tables where each table has an ID column. Columns that
+                 * are not properties, e.g. the paging row number of MSSQL and
+                 * Oracle, are skipped.
+                 */
+                if (propertiesToAdd.remove(colName)) {
+                    itemProperties.add(metadata.createProperty(colName,
+                            rs.getObject(i)));
+                }
+            }
+            page.addRow(new RowItem(this, id, itemProperties), seekKeys);
+        }
+        return page;
+    }
+
+    /**
+     * Places the rows of the given page into the item cache as a new segment,
+     * skipping rows that have been removed from the container. Least recently
+     * used segments are evicted if the cache grows over the row limit. Pages
+     * fetched for an older generation are ignored.
+     * 
+     * @param page
+     *            the page to install
+     */
+    private void installPage(FetchedPage page) {
+        if (page.getGeneration() != generation) {
+            return;
+        }
+        evictSegment(page.getOffset());
+        List<RowItem> items = new ArrayList<RowItem>(page.getRows().size());
+        int rowCount = page.getOffset();
+        for (RowItem item : page.getRows()) {
+            if (!isRemoved(item.getId())) {
+                /* Cache item */
+                cachedItems.put(item.getId(), item);
+                items.add(item);
+            }
+        }
+        segments.put(page.getOffset(), new PageSegment(page.getOffset(),
+                generation, items));
+        evictSegmentsOverLimit(page.getOffset());
+        if (page.getLastSeekKeys() != null) {
+            storeSeekBookmark(page.getOffset() + page.getFetchedRows(),
+                    page.getLastSeekKeys());
+        }
+    }
+
+    /**
+     * Returns the id of the cached item at the given index, or null if the
+     * index is not covered by a cached segment. The segment is marked as
+     * recently used.
+     * 
+     * @param index
+     *            item index
+     * @return the id of the item or null
+     */
+    private RowId getCachedId(int index) {
+        PageSegment segment = lastSegment;
+        if (segment == null || !segment.contains(index)) {
+            int window = pageLength * CACHE_RATIO;
+            segment = segments.get((index / window) * window);
+            if (segment == null) {
+                return null;
+            }
+            if (segment.getGeneration() != generation) {
+                /* Stale segment, should not be served */
+                evictSegment(segment.getOffset());
+                return null;
+            }
+            if (!segment.contains(index)) {
+                return null;
+            }
+            lastSegment = segment;
+        }
+        return segment.getId(index);
+    }
+
+    /**
+     * Returns the index of the given item if it is covered by a cached segment
+     * of the current generation. The segments are scanned rather than kept in
+     * a reverse map, so that cached rows cost no more memory than their ids.
+     * 
+     * @param itemId
+     *            id of the item
+     * @return the item index, or -1 if the item is not cached by index
+     */
+    private int getCachedIndex(Object itemId) {
+        for (PageSegment segment : segments.values()) {
+            if (segment.getGeneration() == generation) {
+                int index = segment.indexOf(itemId);
+                if (index >= 0) {
+                    return index;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Evicts least recently used segments until the number of cached rows is
+     * within the row limit. The segment at keepOffset is never evicted.
+     * 
+     * @param keepOffset
+     *            offset of the segment that must be kept
+     */
+    private void evictSegmentsOverLimit(int keepOffset) {
+        int limit = Math.max(cacheRowLimit, pageLength * CACHE_RATIO);
+        List<Integer> toEvict = new ArrayList<Integer>();
+        int rows = cachedItems.size();
+        for (PageSegment segment : segments.values()) {
+            if (rows <= limit) {
+                break;
+            }
+            if (segment.getOffset() != keepOffset) {
+                toEvict.add(segment.getOffset());
+                rows -= segment.size();
+            }
+        }
+        for (Integer offset : toEvict) {
+            evictSegment(offset);
+        }
+    }
+
+    /**
+     * Removes the segment at the given offset and its rows from the item
+     * cache.
+     * 
+     * @param offset
+     *            offset of the segment
+     */
+    private void evictSegment(int offset) {
+        PageSegment segment = segments.remove(offset);
+        if (segment == null) {
+            return;
+        }
+        if (segment == lastSegment) {
+            lastSegment = null;
+        }
+        for (RowItem item : segment.getItems()) {
+            if (cachedItems.get(item.getId()) == item) {
+                cachedItems.remove(item.getId());
+            }
+        }
+    }
+
+    /**
+     * Clears the item cache and all cached segments.
+     */
+    private void clearCaches() {
+        cachedItems.clear();
+        segments.clear();
+        lastSegment = null;
+        unindexedSegmentKey = 0;
+    }
+
+    /**
+     * Sets the maximum number of rows kept in the item cache. Rows are cached
+     * in segments of CACHE_RATIO x pageLength rows, and whole segments are
+     * evicted in least recently used order when the limit is exceeded. The
+     * segment of the current page is always kept, even if it is larger than
+     * the limit.
+     * 
+     * @param cacheRowLimit
+     *            maximum number of cached rows
+     */
+    public void setCacheRowLimit(int cacheRowLimit) {
+        if (cacheRowLimit <= 0) {
+            throw new IllegalArgumentException(
+                    "Cache row limit must be greater than zero.");
+        }
+        this.cacheRowLimit = cacheRowLimit;
+        evictSegmentsOverLimit(currentOffset);
+    }
+
+    /**
+     * Returns the maximum number of rows kept in the item cache.
+     * 
+     * @return the cache row limit
+     */
+    public int getCacheRowLimit() {
+        return cacheRowLimit;
+    }
+
+    /**
+     * Starts fetching the page adjacent to the current one, in the direction
+     * the container is being scrolled, on a background thread. The fetch runs
+     * in a transaction of its own through TableQuery.executeDetachedQuery() and
+     * only uses values copied before it is started.
+     */
+    private void schedulePrefetch() {
+        if (!prefetchEnabled || !(delegate instanceof TableQuery)) {
+            return;
+        }
+        int window = pageLength * CACHE_RATIO;
+        final int offset = scrollingForward ? currentOffset + window
+                : currentOffset - window;
+        if (offset < 0 || offset >= size || segments.containsKey(offset)) {
+            return;
+        }
+        TableQuery tq = (TableQuery) delegate;
+        try {
+            tq.setOrderBy(sorters);
+        } catch (UnsupportedOperationException e) {
+            debug(e, null);
+        }
+        final List<OrderBy> seekOrderBys = isSeekPagingEnabled() ? tq
+                .getSeekOrderBys() : null;
+        Object[] seekKeys = seekOrderBys != null ? seekBookmarks.get(offset)
+                : null;
+        final StatementHelper sh = seekKeys != null ? tq.getSeekPageStatement(
+                seekKeys, window) : tq.getPageStatement(offset, window);
+        final List<String> pKeys = new ArrayList<String>(
+                tq.getPrimaryKeyColumns());
+        final TableQuery query = tq;
+        final PropertyMetadata metadata = propertyMetadata;
+        final int fetchGeneration = generation;
+        if (prefetcher == null) {
+            prefetcher = new PagePrefetcher();
+        }
+        prefetcher.schedule(offset, fetchGeneration,
+                new Callable<FetchedPage>() {
+                    public FetchedPage call() throws Exception {
+                        try {
+                            return query.executeDetachedQuery(sh,
+                                    new TableQuery.ResultReader<FetchedPage>() {
+                                        public FetchedPage read(ResultSet rs)
+                                                throws SQLException {
+                                            return readPage(rs, offset,
+                                                    fetchGeneration, pKeys,
+                                                    seekOrderBys, metadata);
+                                        }
+                                    });
+                        } catch (SQLException e) {
+                            debug(e, "Prefetching page failed.");
+                            throw e;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Returns true if the delegate is a TableQuery in seek paging mode.
+     */
+    private boolean isSeekPagingEnabled() {
+        return delegate instanceof TableQuery
+                && ((TableQuery) delegate).isSeekPagingEnabled();
+    }
+
+    /**
+     * Stores the sort key values of the last row of a page so that the page
+     * starting at the given offset can be fetched with a seek query.
+     * 
+     * @param offset
+     *            offset of the page following the row
+     * @param keys
+     *            sort key values of the row
+     */
+    private void storeSeekBookmark(int offset, Object[] keys) {
+        seekBookmarks.put(offset, keys);
+    }
+
+    /**
+     * @return true if the item has been removed but the removal has not been
+     *         committed
+     */
+    private boolean isRemoved(Object itemId) {
+        return removedItems.containsKey(itemId)
+                || removedKeys.containsKey(itemId);
+    }
+
+    private int sizeOfRemovedItems() {
+        return removedItems.size() + removedKeys.size();
     }
 
     private int sizeOfAddedItems() {
@@ -1381,6 +2898,104 @@ public class SQLContainer implements Container, Container.Filterable,
         }
     }
 
+    /**
+     * Lazy collection of the item ids of the container. The iterator streams
+     * the ids from the data source in pages, followed by the ids of the added
+     * items. Each page after the first is fetched starting from the last row
+     * of the previous one; if that row has moved, the rows before it have
+     * changed and the iteration fails.
+     */
+    private class ItemIdCollection extends AbstractCollection<Object> {
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new ItemIdIterator();
+        }
+
+        @Override
+        public int size() {
+            return SQLContainer.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsId(o);
+        }
+    }
+
+    private class ItemIdIterator implements Iterator<Object> {
+        private final int idPageLength = getIdPageLength();
+        private int nextOffset = 0;
+        private boolean allFetched = false;
+        private RowId lastFetchedId;
+        private Iterator<RowId> page = Collections.<RowId> emptyList()
+                .iterator();
+        private Iterator<RowItem> added;
+        private Object next;
+
+        public boolean hasNext() {
+            if (next == null) {
+                next = fetchNext();
+            }
+            return next != null;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object id = next;
+            next = null;
+            return id;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Object fetchNext() {
+            while (true) {
+                while (page.hasNext()) {
+                    RowId id = page.next();
+                    if (!isRemoved(id)) {
+                        return id;
+                    }
+                }
+                if (allFetched) {
+                    break;
+                }
+                List<RowId> ids;
+                if (lastFetchedId == null) {
+                    ids = fetchItemIds(nextOffset, idPageLength);
+                } else {
+                    ids = fetchItemIds(nextOffset - 1, idPageLength + 1);
+                    if (ids.isEmpty() || !ids.get(0).equals(lastFetchedId)) {
+                        throw new ConcurrentModificationException(
+                                "The rows of the container changed during "
+                                        + "iteration. Iterate over a copy of "
+                                        + "getItemIds() to modify the container.");
+                    }
+                    ids = ids.subList(1, ids.size());
+                }
+                nextOffset += ids.size();
+                allFetched = idPageLength == 0 || ids.size() < idPageLength;
+                if (!ids.isEmpty()) {
+                    lastFetchedId = ids.get(ids.size() - 1);
+                }
+                page = ids.iterator();
+            }
+            if (added == null) {
+                added = getFilteredAddedItems().iterator();
+            }
+            return added.hasNext() ? added.next().getId() : null;
+        }
+    }
+
     /**************************************************/
     /** ROWIDCHANGELISTENER PASSING TO QUERYDELEGATE **/
     /**************************************************/
@@ -1409,6 +3024,93 @@ public class SQLContainer implements Container, Container.Filterable,
         }
     }
 
+    /**
+     * Adds a listener that is notified when writing changes behind fails. Note
+     * that the listener is usually called on a background thread.
+     * 
+     * @param listener
+     *            listener to be added
+     */
+    public synchronized void addListener(WriteFailedListener listener) {
+        if (writeFailedListeners == null) {
+            writeFailedListeners = new LinkedList<WriteFailedListener>();
+        }
+        writeFailedListeners.add(listener);
+    }
+
+    /**
+     * Removes a WriteFailedListener.
+     * 
+     * @param listener
+     *            listener to be removed
+     */
+    public synchronized void removeListener(WriteFailedListener listener) {
+        if (writeFailedListeners != null) {
+            writeFailedListeners.remove(listener);
+        }
+    }
+
+    void fireWriteFailed(List<RowId> rowIds, Exception cause) {
+        debug(cause, "Writing rows behind failed");
+        Object[] l;
+        synchronized (this) {
+            if (writeFailedListeners == null) {
+                return;
+            }
+            l = writeFailedListeners.toArray();
+        }
+        WriteFailedEvent event = new WriteFailedEvent(this, rowIds, cause);
+        for (int i = 0; i < l.length; i++) {
+            ((WriteFailedListener) l[i]).writeFailed(event);
+        }
+    }
+
+    /**
+     * Event telling that writing changed rows behind failed. None of the rows
+     * were written, since they are written in one transaction.
+     */
+    @SuppressWarnings("serial")
+    public static class WriteFailedEvent extends EventObject {
+        private final List<RowId> rowIds;
+        private final Exception cause;
+
+        private WriteFailedEvent(SQLContainer source, List<RowId> rowIds,
+                Exception cause) {
+            super(source);
+            this.rowIds = Collections.unmodifiableList(rowIds);
+            this.cause = cause;
+        }
+
+        public SQLContainer getContainer() {
+            return (SQLContainer) getSource();
+        }
+
+        /**
+         * @return the ids of the rows that were not written
+         */
+        public List<RowId> getRowIds() {
+            return rowIds;
+        }
+
+        /**
+         * @return the exception that made the write fail, e.g. an
+         *         {@link OptimisticLockException} or an SQLException
+         */
+        public Exception getCause() {
+            return cause;
+        }
+    }
+
+    /** Listener interface for failures of write-behind. */
+    public interface WriteFailedListener extends Serializable {
+        /**
+         * Lets the listener know that writing changed rows failed.
+         * 
+         * @param event
+         */
+        public void writeFailed(WriteFailedEvent event);
+    }
+
     public boolean isDebugMode() {
         return debugMode;
     }
@@ -1446,6 +3148,21 @@ public class SQLContainer implements Container, Container.Filterable,
         }
     }
 
+    /**
+     * Sets the transport used to pass cache flush notifications to and from
+     * the SQLContainers of other JVMs, e.g. the other nodes of a cluster
+     * connected to the same database. The transport is shared by all the
+     * containers of this JVM that have cache flush notifications enabled. The
+     * previously set transport is stopped.
+     * 
+     * @param transport
+     *            the transport, or null to notify only the containers of this
+     *            JVM
+     */
+    public static void setInvalidationTransport(InvalidationTransport transport) {
+        CacheFlushNotifier.setTransport(transport);
+    }
+
     /******************************************/
     /** Referencing mechanism implementation **/
     /******************************************/
@@ -0,0 +1,398 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * SharedRowCache holds immutable snapshots of table rows shared by all the
+ * SQLContainers of the JVM that use it, so that containers of different
+ * sessions browsing the same table do not each load the same rows. A
+ * container using the cache reads only the ids of a page from the database
+ * and takes the rows found in the cache from it; only the missing rows are
+ * read.
+ * 
+ * Rows are cached by namespace, table name and primary key together with the
+ * value of the version column, if the container's TableQuery has one. The
+ * namespace is the connection pool the rows were read through, so containers
+ * of different databases or tenants never share rows of equally named tables.
+ * A cached row whose version differs from the version read with the page ids
+ * is stale and is read again. Rows without a version can only be known to be
+ * stale when they are written through an SQLContainer, so they expire after
+ * the time to live. Writes made through SQLContainers evict the written rows
+ * in all namespaces.
+ * 
+ * Mutable column values, such as dates and byte arrays, are copied when a row
+ * is cached and when it is handed to a container, so containers cannot change
+ * each other's values.
+ * 
+ * The cache is bounded by the estimated heap size of the cached values, and
+ * least recently used rows are evicted first.
+ */
+public class SharedRowCache {
+
+    /** Default maximum estimated size of the cached rows in bytes */
+    public static final long DEFAULT_MAX_WEIGHT = 32 * 1024 * 1024;
+    /** Default time in milliseconds a row without a version is kept */
+    public static final long DEFAULT_TIME_TO_LIVE = 60000;
+
+    private static SharedRowCache defaultCache;
+
+    private final long maxWeight;
+    private final long timeToLive;
+    private long weight;
+    private long hitCount;
+    private long missCount;
+
+    /** Cached rows in least recently used order */
+    private final LinkedHashMap<Key, Row> rows = new LinkedHashMap<Key, Row>(
+            16, 0.75f, true);
+    /** The namespaces that rows have been cached in */
+    private final Map<Object, Boolean> namespaces = new WeakHashMap<Object, Boolean>();
+
+    /**
+     * Returns the cache shared by the whole JVM, creating it with the default
+     * maximum weight and time to live when first called.
+     * 
+     * @return the default cache
+     */
+    public static synchronized SharedRowCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new SharedRowCache(DEFAULT_MAX_WEIGHT);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Creates a cache holding rows up to the given estimated size, keeping
+     * rows without a version for the default time to live.
+     * 
+     * @param maxWeight
+     *            maximum estimated size of the cached rows in bytes
+     */
+    public SharedRowCache(long maxWeight) {
+        this(maxWeight, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * Creates a cache holding rows up to the given estimated size, keeping
+     * rows without a version for the given time.
+     * 
+     * @param maxWeight
+     *            maximum estimated size of the cached rows in bytes
+     * @param timeToLive
+     *            time in milliseconds a row without a version is kept
+     */
+    public SharedRowCache(long maxWeight, long timeToLive) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum weight must be positive.");
+        }
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException(
+                    "Time to live must be positive.");
+        }
+        this.maxWeight = maxWeight;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Key of a cached row: the namespace, the table name and the primary key.
+     * Namespaces are compared by identity.
+     */
+    private static final class Key {
+        private final Object namespace;
+        private final String tableName;
+        private final RowId id;
+
+        Key(Object namespace, String tableName, RowId id) {
+            this.namespace = namespace;
+            this.tableName = tableName;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(namespace) * 31 + tableName
+                    .hashCode()) * 31 + id.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return namespace == other.namespace
+                    && tableName.equals(other.tableName) && id.equals(other.id);
+        }
+    }
+
+    /**
+     * Immutable snapshot of the column values of a row.
+     */
+    static final class Row {
+        private final Object version;
+        private final String[] columns;
+        private final Object[] values;
+        private final long weight;
+        private final long created = System.currentTimeMillis();
+
+        /**
+         * @param version
+         *            value of the version column, or null
+         * @param columns
+         *            the column names
+         * @param values
+         *            the column values, in the order of the names; not copied
+         */
+        Row(Object version, String[] columns, Object[] values) {
+            this.version = version;
+            this.columns = columns;
+            this.values = values;
+            long w = 64 + 16L * values.length;
+            for (Object value : values) {
+                w += estimateSize(value);
+            }
+            weight = w;
+        }
+
+        Object getVersion() {
+            return version;
+        }
+
+        String[] getColumns() {
+            return columns;
+        }
+
+        /**
+         * @return copies of the column values, in the order of the names
+         */
+        Object[] copyValues() {
+            Object[] copies = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                copies[i] = copyValue(values[i]);
+            }
+            return copies;
+        }
+
+        long getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Takes an immutable snapshot of the values of the given item.
+     * 
+     * @param item
+     *            the item
+     * @param versionColumn
+     *            the name of the version column, or null
+     * @return the snapshot
+     */
+    static Row createRow(RowItem item, String versionColumn) {
+        Collection<?> propertyIds = item.getItemPropertyIds();
+        String[] columns = new String[propertyIds.size()];
+        Object[] values = new Object[columns.length];
+        Object version = null;
+        int i = 0;
+        for (Object propertyId : propertyIds) {
+            columns[i] = (String) propertyId;
+            values[i] = copyValue(item.getItemProperty(propertyId).getValue());
+            if (propertyId.equals(versionColumn)) {
+                version = values[i];
+            }
+            i++;
+        }
+        return new Row(version, columns, values);
+    }
+
+    /**
+     * Copies a column value of a mutable type; other values are returned as
+     * they are.
+     */
+    private static Object copyValue(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * Estimates the heap size of a column value in bytes.
+     */
+    private static long estimateSize(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return 24;
+        } else if (value instanceof Date) {
+            return 32;
+        }
+        return 64;
+    }
+
+    /**
+     * Returns the cached row with the given key and version. A row cached with
+     * another version, or cached without a version for longer than the time to
+     * live, is evicted.
+     * 
+     * @param namespace
+     *            the namespace of the row, e.g. the connection pool it is read
+     *            through
+     * @param tableName
+     *            the table of the row
+     * @param id
+     *            the primary key of the row
+     * @param version
+     *            the current value of the version column, or null
+     * @return the row or null
+     */
+    synchronized Row get(Object namespace, String tableName, RowId id,
+            Object version) {
+        Key key = new Key(namespace, tableName, id);
+        Row row = rows.get(key);
+        if (row != null
+                && (version == null ? row.getVersion() == null
+                        && System.currentTimeMillis() - row.created <= timeToLive
+                        : version.equals(row.getVersion()))) {
+            hitCount++;
+            return row;
+        }
+        if (row != null) {
+            remove(key);
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Caches a row, evicting least recently used rows if the cache grows over
+     * its maximum weight.
+     * 
+     * @param namespace
+     *            the namespace of the row, e.g. the connection pool it was read
+     *            through
+     * @param tableName
+     *            the table of the row
+     * @param id
+     *            the primary key of the row
+     * @param row
+     *            the row
+     */
+    synchronized void put(Object namespace, String tableName, RowId id,
+            Row row) {
+        if (row.getWeight() > maxWeight) {
+            return;
+        }
+        namespaces.put(namespace, Boolean.TRUE);
+        Key key = new Key(namespace, tableName, id);
+        remove(key);
+        rows.put(key, row);
+        weight += row.getWeight();
+        Iterator<Row> i = rows.values().iterator();
+        while (weight > maxWeight && i.hasNext()) {
+            weight -= i.next().getWeight();
+            i.remove();
+        }
+    }
+
+    private void remove(Key key) {
+        Row removed = rows.remove(key);
+        if (removed != null) {
+            weight -= removed.getWeight();
+        }
+    }
+
+    /**
+     * Evicts the rows changed by the given invalidation in all namespaces. All
+     * rows of the table are evicted if the invalidation covers all rows.
+     * 
+     * @param tableName
+     *            the table of the rows
+     * @param invalidation
+     *            the changed rows
+     */
+    synchronized void invalidate(String tableName,
+            CacheInvalidation invalidation) {
+        if (invalidation.isAllRows()) {
+            invalidateTable(tableName);
+            return;
+        }
+        for (Object namespace : namespaces.keySet()) {
+            for (RowId id : invalidation.getRows().keySet()) {
+                remove(new Key(namespace, tableName, id));
+            }
+        }
+    }
+
+    /**
+     * Evicts all the cached rows of the given table in all namespaces.
+     * 
+     * @param tableName
+     *            the table name
+     */
+    public synchronized void invalidateTable(String tableName) {
+        for (Iterator<Map.Entry<Key, Row>> i = rows.entrySet().iterator(); i
+                .hasNext();) {
+            Map.Entry<Key, Row> entry = i.next();
+            if (entry.getKey().tableName.equals(tableName)) {
+                weight -= entry.getValue().getWeight();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Evicts all the cached rows.
+     */
+    public synchronized void clear() {
+        rows.clear();
+        weight = 0;
+    }
+
+    /**
+     * @return the number of cached rows
+     */
+    public synchronized int size() {
+        return rows.size();
+    }
+
+    /**
+     * @return the estimated size of the cached rows in bytes
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @return the number of rows found in the cache
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of rows that had to be read from the database
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,46 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.io.Serializable;
+
+/**
+ * SizePolicy decides how an SQLContainer keeps its row count up to date: how
+ * long a fetched count stays valid, whether an expired count is refreshed in
+ * the background while the old one is still served, and whether a database
+ * estimate may be used instead of an exact count.
+ * 
+ * The default implementation is {@link DefaultSizePolicy}.
+ */
+public interface SizePolicy extends Serializable {
+
+    /**
+     * Returns true if a row count fetched at the given time is still valid.
+     * 
+     * @param sizeUpdated
+     *            the time the count was fetched, in milliseconds
+     * @param now
+     *            the current time, in milliseconds
+     * @return true if the count need not be fetched again
+     */
+    public boolean isSizeValid(long sizeUpdated, long now);
+
+    /**
+     * Returns true if an expired row count should be refreshed on a
+     * background thread. The container keeps serving the previous count until
+     * the new one has arrived. When the row count is not known at all, e.g.
+     * after filters have changed, it is always fetched immediately.
+     * 
+     * @return true to refresh the count in the background
+     */
+    public boolean isAsynchronous();
+
+    /**
+     * Returns true if the row count may be estimated by the database instead
+     * of counted exactly. Estimates are only supported by
+     * {@link com.vaadin.addon.sqlcontainer.query.TableQuery}. If the policy is
+     * also asynchronous, the exact count is fetched in the background after
+     * the estimate has been served.
+     * 
+     * @return true to use an estimated count
+     */
+    public boolean isEstimated();
+}
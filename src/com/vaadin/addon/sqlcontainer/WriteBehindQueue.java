@@ -0,0 +1,169 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.vaadin.addon.sqlcontainer.query.TableQuery;
+
+/**
+ * WriteBehindQueue collects the changes made to the rows of an SQLContainer in
+ * auto commit mode and writes them to the database on a background thread.
+ * Changes to the same row made within the delay are coalesced into one
+ * update, and all the rows queued within the delay are written in one
+ * transaction.
+ * 
+ * The rows are written through a TableQuery of their own, so the writes do
+ * not interfere with the transactions of the container's query. The queue
+ * keeps a snapshot of each changed row, so the items of the container can be
+ * edited while an earlier write is in progress.
+ * 
+ * If the write fails because rows were changed in the database meanwhile, the
+ * changes of the rows are dropped and the rows are read again when the
+ * container is next accessed. Other failures, e.g. a lost connection, put the
+ * snapshots back in the queue, so they are written again with the next
+ * changes or flush.
+ */
+class WriteBehindQueue {
+    private final SQLContainer container;
+    private final TableQuery writer;
+    private final int delay;
+
+    /** Snapshots of the changed rows, in the order they were first changed */
+    private final Map<RowId, RowItem> pending = new LinkedHashMap<RowId, RowItem>();
+    private Future<?> scheduledWrite;
+
+    /** Held while writing, so that writes reach the database in order */
+    private final Object writeLock = new Object();
+
+    /**
+     * @param container
+     *            the container whose changes are written
+     * @param query
+     *            the query of the container
+     * @param delay
+     *            time in milliseconds that changes are collected before they
+     *            are written
+     */
+    WriteBehindQueue(SQLContainer container, TableQuery query, int delay) {
+        this.container = container;
+        this.delay = delay;
+        writer = new TableQuery(query.getTableName(),
+                query.getConnectionPool(), query.getSqlGenerator());
+        writer.setVersionColumn(query.getVersionColumn());
+        writer.setBatchSize(query.getBatchSize());
+    }
+
+    /**
+     * Queues the changes of the given item. The modified state of the item is
+     * reset, since its changes are now held by the queue.
+     * 
+     * @param item
+     *            the changed item
+     */
+    synchronized void enqueue(RowItem item) {
+        RowItem queued = pending.get(item.getId());
+        if (queued == null) {
+            pending.put(item.getId(), item.snapshot());
+        } else {
+            queued.merge(item);
+        }
+        item.commit();
+        if (scheduledWrite == null) {
+            scheduledWrite = BackgroundTasks.schedule(new Callable<Void>() {
+                public Void call() {
+                    write();
+                    return null;
+                }
+            }, delay);
+        }
+    }
+
+    /**
+     * Writes the queued changes immediately on the calling thread, waiting for
+     * a write already in progress to finish first.
+     */
+    void flush() {
+        synchronized (this) {
+            if (scheduledWrite != null) {
+                scheduledWrite.cancel(false);
+            }
+        }
+        write();
+    }
+
+    private void write() {
+        synchronized (writeLock) {
+            List<RowItem> rows;
+            synchronized (this) {
+                scheduledWrite = null;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                rows = new ArrayList<RowItem>(pending.values());
+                pending.clear();
+            }
+            try {
+                writer.beginTransaction();
+                int[] results = writer.storeRows(rows);
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] == 0) {
+                        throw new ConcurrentModificationException(
+                                "Item with the ID '" + rows.get(i).getId()
+                                        + "' has been externally modified.");
+                    }
+                }
+                writer.commit();
+            } catch (Exception e) {
+                try {
+                    writer.rollback();
+                } catch (SQLException ee) {
+                    /* Nothing can be done here */
+                }
+                if (e instanceof OptimisticLockException
+                        || e instanceof ConcurrentModificationException) {
+                    container.writeBehindConflicted(getIds(rows));
+                } else {
+                    requeue(rows);
+                }
+                container.fireWriteFailed(getIds(rows), e);
+                return;
+            }
+            container.writeBehindCompleted(getIds(rows));
+        }
+    }
+
+    /**
+     * Puts the snapshots of rows that could not be written back in the queue,
+     * ahead of the rows queued meanwhile. Changes made to the rows meanwhile
+     * are merged over the snapshots.
+     * 
+     * @param rows
+     *            the snapshots that were not written
+     */
+    private synchronized void requeue(List<RowItem> rows) {
+        Map<RowId, RowItem> newer = new LinkedHashMap<RowId, RowItem>(pending);
+        pending.clear();
+        for (RowItem row : rows) {
+            RowItem later = newer.remove(row.getId());
+            if (later != null) {
+                row.merge(later);
+            }
+            pending.put(row.getId(), row);
+        }
+        pending.putAll(newer);
+    }
+
+    private static List<RowId> getIds(List<RowItem> rows) {
+        List<RowId> ids = new ArrayList<RowId>(rows.size());
+        for (RowItem row : rows) {
+            ids.add(row.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,676 @@
+package com.vaadin.addon.sqlcontainer.connection;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JDBCConnectionPool implementation for applications with many concurrent
+ * sessions. Unlike {@link SimpleJDBCConnectionPool}, reserving and releasing a
+ * connection takes no pool-wide lock:
+ * <ul>
+ * <li>Idle connections are kept in a lock-free queue. A thread first tries to
+ * take back the connection it released last, which is usually still idle.</li>
+ * <li>The number of reserved connections is bounded by a semaphore. When all
+ * connections are in use, a thread waits up to the connection timeout for one
+ * to be released instead of failing immediately.</li>
+ * <li>New connections are opened by the reserving thread without holding any
+ * lock. The initial connections, and replacements for evicted ones, are opened
+ * on a background thread.</li>
+ * <li>Connections idle for longer than the idle timeout are closed, down to
+ * the number of initial connections, and connections older than the maximum
+ * lifetime are closed when they are next released or found idle.</li>
+ * <li>If a {@link ConnectionValidator} is set, connections are validated
+ * according to the {@link ValidationMode}. Broken connections are closed and
+ * replaced on the background thread.</li>
+ * </ul>
+ * 
+ * The pool is set up on first use. The settings should be changed before
+ * that.
+ */
+@SuppressWarnings("serial")
+public class ConcurrentJDBCConnectionPool implements JDBCConnectionPool {
+
+    /** Default time in milliseconds to wait for a connection */
+    public static final long DEFAULT_CONNECTION_TIMEOUT = 30000;
+    /** Default time in milliseconds a connection may stay idle */
+    public static final long DEFAULT_IDLE_TIMEOUT = 600000;
+    /** Default maximum age of a connection in milliseconds */
+    public static final long DEFAULT_MAX_LIFETIME = 1800000;
+    /** Default time in milliseconds a validation is trusted */
+    public static final long DEFAULT_VALIDATION_INTERVAL = 30000;
+
+    /**
+     * When pooled connections are validated.
+     */
+    public enum ValidationMode {
+        /** Every time a connection is reserved */
+        ON_BORROW,
+        /**
+         * When a connection is reserved after having been idle for longer
+         * than the validation interval
+         */
+        WHEN_IDLE,
+        /**
+         * On the background thread, for idle connections not validated within
+         * the validation interval. Reserving never waits for a validation.
+         */
+        BACKGROUND
+    }
+
+    private int initialConnections = 5;
+    private int maxConnections = 20;
+    private long connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long maxLifetime = DEFAULT_MAX_LIFETIME;
+
+    private ConnectionValidator validator;
+    private ValidationMode validationMode = ValidationMode.ON_BORROW;
+    private long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+
+    private String driverName;
+    private String connectionUri;
+    private String userName;
+    private String password;
+
+    /** Connections and bookkeeping, created on first use */
+    private transient volatile PoolState state;
+
+    private transient volatile PoolMetrics metrics;
+
+    /** Runs the housekeeping of all pools */
+    private static ScheduledExecutorService housekeeper;
+
+    public ConcurrentJDBCConnectionPool(String driverName,
+            String connectionUri, String userName, String password) {
+        if (driverName == null) {
+            throw new IllegalArgumentException(
+                    "JDBC driver class name must be given.");
+        }
+        if (connectionUri == null) {
+            throw new IllegalArgumentException(
+                    "Database connection URI must be given.");
+        }
+        if (userName == null) {
+            throw new IllegalArgumentException(
+                    "Database username must be given.");
+        }
+        if (password == null) {
+            throw new IllegalArgumentException(
+                    "Database password must be given.");
+        }
+        this.driverName = driverName;
+        this.connectionUri = connectionUri;
+        this.userName = userName;
+        this.password = password;
+
+        /* Initialize JDBC driver */
+        try {
+            Class.forName(driverName).newInstance();
+        } catch (Exception ex) {
+            throw new RuntimeException("Specified JDBC Driver: " + driverName
+                    + " - initialization failed.", ex);
+        }
+    }
+
+    public ConcurrentJDBCConnectionPool(String driverName,
+            String connectionUri, String userName, String password,
+            int initialConnections, int maxConnections) {
+        this(driverName, connectionUri, userName, password);
+        if (maxConnections < 1 || initialConnections < 0
+                || initialConnections > maxConnections) {
+            throw new IllegalArgumentException(
+                    "Invalid number of initial or maximum connections.");
+        }
+        this.initialConnections = initialConnections;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Sets the time to wait for a connection to become available when all
+     * connections are reserved. Defaults to 30 seconds.
+     * 
+     * @param milliseconds
+     *            the timeout in milliseconds, 0 to fail immediately
+     */
+    public void setConnectionTimeout(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException(
+                    "Connection timeout must not be negative.");
+        }
+        connectionTimeout = milliseconds;
+    }
+
+    public long getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * Sets the time a connection may stay idle before it is closed. The
+     * initial number of connections is kept open regardless. Defaults to ten
+     * minutes.
+     * 
+     * @param milliseconds
+     *            the idle timeout in milliseconds, 0 to keep idle connections
+     *            open
+     */
+    public void setIdleTimeout(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException(
+                    "Idle timeout must not be negative.");
+        }
+        idleTimeout = milliseconds;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the maximum age of a connection. Older connections are closed and
+     * replaced when they are released or found idle; a reserved connection is
+     * never closed. Defaults to 30 minutes.
+     * 
+     * @param milliseconds
+     *            the maximum lifetime in milliseconds, 0 for no limit
+     */
+    public void setMaxLifetime(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException(
+                    "Maximum lifetime must not be negative.");
+        }
+        maxLifetime = milliseconds;
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * Sets the validator used to check that connections still work. By
+     * default connections are not validated.
+     * 
+     * @param validator
+     *            the validator, or null to disable validation
+     */
+    public void setValidator(ConnectionValidator validator) {
+        this.validator = validator;
+    }
+
+    public ConnectionValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Sets when connections are validated. Defaults to
+     * {@link ValidationMode#ON_BORROW}. Has no effect unless a validator is
+     * set.
+     * 
+     * @param validationMode
+     *            the validation mode
+     */
+    public void setValidationMode(ValidationMode validationMode) {
+        if (validationMode == null) {
+            throw new IllegalArgumentException(
+                    "Validation mode must not be null.");
+        }
+        this.validationMode = validationMode;
+    }
+
+    public ValidationMode getValidationMode() {
+        return validationMode;
+    }
+
+    /**
+     * Sets how long a connection is trusted after it was last used or
+     * validated, in the {@link ValidationMode#WHEN_IDLE} and
+     * {@link ValidationMode#BACKGROUND} modes. Defaults to 30 seconds.
+     * 
+     * @param milliseconds
+     *            the validation interval in milliseconds
+     */
+    public void setValidationInterval(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException(
+                    "Validation interval must not be negative.");
+        }
+        validationInterval = milliseconds;
+    }
+
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * Returns the metrics of this pool.
+     * 
+     * @return the metrics
+     */
+    public PoolMetrics getMetrics() {
+        PoolMetrics m = metrics;
+        if (m == null) {
+            synchronized (this) {
+                if (metrics == null) {
+                    metrics = new PoolMetrics(this);
+                }
+                m = metrics;
+            }
+        }
+        return m;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool#reserveConnection
+     * ()
+     */
+    public Connection reserveConnection() throws SQLException {
+        long start = System.nanoTime();
+        PoolState s = getState();
+        try {
+            if (!s.permits.tryAcquire(connectionTimeout,
+                    TimeUnit.MILLISECONDS)) {
+                getMetrics().reserveFailed(System.nanoTime() - start);
+                throw new SQLException("No connection became available in "
+                        + connectionTimeout + " ms.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getMetrics().reserveFailed(System.nanoTime() - start);
+            throw new SQLException("Interrupted while waiting for a connection.");
+        }
+        try {
+            PooledConnection pc = claimIdleConnection(s);
+            if (pc == null) {
+                pc = openConnection(s);
+            }
+            getMetrics().connectionReserved(pc.connection,
+                    System.nanoTime() - start);
+            return pc.connection;
+        } catch (SQLException e) {
+            s.permits.release();
+            getMetrics().reserveFailed(System.nanoTime() - start);
+            throw e;
+        } catch (RuntimeException e) {
+            s.permits.release();
+            throw e;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool#releaseConnection
+     * (java.sql.Connection)
+     */
+    public void releaseConnection(Connection conn) {
+        PoolState s = state;
+        if (conn == null || s == null) {
+            return;
+        }
+        PooledConnection pc = s.connections.get(conn);
+        if (pc == null
+                || !pc.state.compareAndSet(PooledConnection.RESERVED,
+                        PooledConnection.BUSY)) {
+            /* Not reserved from this pool, or already released */
+            return;
+        }
+        getMetrics().connectionReleased(conn);
+        /* Try to roll back if necessary */
+        boolean usable = true;
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+            }
+        } catch (SQLException e) {
+            usable = false;
+        }
+        if (usable && !isExpired(pc, System.currentTimeMillis())) {
+            pc.lastReleased = System.currentTimeMillis();
+            pc.lastValidated = pc.lastReleased;
+            s.lastReleased.set(new WeakReference<PooledConnection>(pc));
+            pc.state.set(PooledConnection.IDLE);
+            s.idle.offer(pc);
+        } else {
+            closeConnection(s, pc);
+        }
+        s.permits.release();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool#destroy()
+     */
+    public synchronized void destroy() {
+        if (metrics != null) {
+            metrics.poolDestroyed();
+        }
+        PoolState s = state;
+        if (s == null) {
+            return;
+        }
+        state = null;
+        s.housekeeping.cancel(false);
+        for (PooledConnection pc : s.connections.values()) {
+            closeConnection(s, pc);
+        }
+    }
+
+    /**
+     * Runs one round of housekeeping: evicts idle connections, validates idle
+     * connections in the {@link ValidationMode#BACKGROUND} mode and opens the
+     * missing initial connections.
+     */
+    void housekeep() {
+        evictIdleConnections();
+        if (validator != null && validationMode == ValidationMode.BACKGROUND) {
+            validateIdleConnections(false);
+        }
+        PoolState s = state;
+        if (s != null) {
+            fillConnections(s);
+        }
+    }
+
+    /**
+     * Validates idle connections and closes the broken ones. A connection is
+     * taken out of the idle queue while it is validated.
+     * 
+     * @param all
+     *            true to validate all idle connections, false to validate
+     *            only those not validated within the validation interval
+     */
+    void validateIdleConnections(boolean all) {
+        PoolState s = state;
+        if (s == null || validator == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (PooledConnection pc : s.idle) {
+            if ((all || now - pc.lastValidated > validationInterval)
+                    && pc.state.compareAndSet(PooledConnection.IDLE,
+                            PooledConnection.BUSY)) {
+                s.idle.remove(pc);
+                if (validator.validate(pc.connection)) {
+                    pc.lastValidated = System.currentTimeMillis();
+                    pc.state.set(PooledConnection.IDLE);
+                    s.idle.offer(pc);
+                } else {
+                    getMetrics().validationFailed(pc.connection);
+                    closeConnection(s, pc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections that have exceeded the idle timeout or the
+     * maximum lifetime.
+     */
+    void evictIdleConnections() {
+        PoolState s = state;
+        if (s == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (PooledConnection pc : s.idle) {
+            boolean idleTooLong = idleTimeout > 0
+                    && now - pc.lastReleased > idleTimeout
+                    && s.connections.size() > initialConnections;
+            if ((idleTooLong || isExpired(pc, now))
+                    && pc.state.compareAndSet(PooledConnection.IDLE,
+                            PooledConnection.BUSY)) {
+                s.idle.remove(pc);
+                closeConnection(s, pc);
+            }
+        }
+    }
+
+    private PoolState getState() {
+        PoolState s = state;
+        if (s == null) {
+            synchronized (this) {
+                s = state;
+                if (s == null) {
+                    s = new PoolState(maxConnections);
+                    state = s;
+                    final PoolState created = s;
+                    s.housekeeping = getHousekeeper().scheduleWithFixedDelay(
+                            new Runnable() {
+                                public void run() {
+                                    if (created == state) {
+                                        housekeep();
+                                    }
+                                }
+                            }, 0, housekeepingInterval(),
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Returns the interval of the housekeeping, a fraction of the shortest
+     * timeout but between one and 30 seconds.
+     */
+    private long housekeepingInterval() {
+        long interval = 30000;
+        if (idleTimeout > 0) {
+            interval = Math.min(interval, idleTimeout / 2);
+        }
+        if (maxLifetime > 0) {
+            interval = Math.min(interval, maxLifetime / 2);
+        }
+        if (validator != null && validationMode == ValidationMode.BACKGROUND) {
+            interval = Math.min(interval, validationInterval / 2);
+        }
+        return Math.max(1000, interval);
+    }
+
+    private static synchronized ScheduledExecutorService getHousekeeper() {
+        if (housekeeper == null) {
+            housekeeper = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r,
+                                    "SQLContainer connection pool housekeeper");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return housekeeper;
+    }
+
+    /**
+     * Takes an idle connection for the calling thread, preferring the one the
+     * thread released last. Connections that have exceeded the maximum
+     * lifetime or fail validation are closed on the way.
+     * 
+     * @return the claimed connection or null if no idle connection is left
+     */
+    private PooledConnection claimIdleConnection(PoolState s) {
+        WeakReference<PooledConnection> last = s.lastReleased.get();
+        PooledConnection pc = null;
+        if (last != null) {
+            s.lastReleased.remove();
+            pc = last.get();
+        }
+        if (pc != null && pc.claim()) {
+            s.idle.remove(pc);
+            if (isUsable(s, pc)) {
+                return pc;
+            }
+        }
+        while ((pc = s.idle.poll()) != null) {
+            /* Skip entries already claimed through the thread-local path */
+            if (pc.claim() && isUsable(s, pc)) {
+                return pc;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks a claimed connection before it is handed out, closing it if it
+     * has exceeded the maximum lifetime or fails validation. After a failed
+     * validation the other idle connections are likely broken as well, so
+     * they are validated on the background thread.
+     */
+    private boolean isUsable(final PoolState s, PooledConnection pc) {
+        long now = System.currentTimeMillis();
+        if (isExpired(pc, now)) {
+            closeConnection(s, pc);
+            return false;
+        }
+        if (validator == null
+                || validationMode == ValidationMode.BACKGROUND
+                || (validationMode == ValidationMode.WHEN_IDLE && now
+                        - pc.lastValidated <= validationInterval)) {
+            return true;
+        }
+        if (validator.validate(pc.connection)) {
+            pc.lastValidated = now;
+            return true;
+        }
+        getMetrics().validationFailed(pc.connection);
+        closeConnection(s, pc);
+        getHousekeeper().execute(new Runnable() {
+            public void run() {
+                if (s == state) {
+                    validateIdleConnections(true);
+                    fillConnections(s);
+                }
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Opens the initial connections that are missing. Each new connection
+     * takes a permit while it is being opened, so the pool never grows over
+     * its maximum size.
+     */
+    private void fillConnections(PoolState s) {
+        while (s == state && s.connections.size() < initialConnections
+                && s.permits.tryAcquire()) {
+            try {
+                PooledConnection pc = openConnection(s);
+                pc.lastReleased = System.currentTimeMillis();
+                pc.state.set(PooledConnection.IDLE);
+                s.idle.offer(pc);
+            } catch (SQLException e) {
+                /* Try again on the next round */
+                return;
+            } finally {
+                s.permits.release();
+            }
+        }
+    }
+
+    private PooledConnection openConnection(PoolState s) throws SQLException {
+        long start = System.nanoTime();
+        Connection c = DriverManager.getConnection(connectionUri, userName,
+                password);
+        c.setAutoCommit(false);
+        StatementCache.register(c);
+        if (driverName.toLowerCase().contains("mysql")) {
+            try {
+                Statement st = c.createStatement();
+                st.execute("SET SESSION sql_mode = 'ANSI'");
+                st.close();
+            } catch (Exception e) {
+                // Failed to set ansi mode; continue
+            }
+        }
+        PooledConnection pc = new PooledConnection(c);
+        s.connections.put(c, pc);
+        getMetrics().connectionCreated(c, System.nanoTime() - start);
+        return pc;
+    }
+
+    private void closeConnection(PoolState s, PooledConnection pc) {
+        if (s.connections.remove(pc.connection) != null) {
+            getMetrics().connectionClosed(pc.connection);
+        }
+        StatementCache.close(pc.connection);
+        try {
+            pc.connection.close();
+        } catch (SQLException e) {
+            // No need to do anything
+        }
+    }
+
+    private boolean isExpired(PooledConnection pc, long now) {
+        return maxLifetime > 0 && now - pc.created > maxLifetime;
+    }
+
+    /**
+     * A connection of the pool. Every change of the state of a connection is
+     * a compare-and-set, so the same connection may be found both through a
+     * thread-local reference and in the idle queue without being handed out
+     * twice, and only one of concurrent releases of a connection takes effect.
+     */
+    private static class PooledConnection {
+        /** In the idle queue */
+        private static final int IDLE = 0;
+        /** Handed out by reserveConnection() */
+        private static final int RESERVED = 1;
+        /** Being released, validated or closed by the pool */
+        private static final int BUSY = 2;
+
+        private final Connection connection;
+        private final long created = System.currentTimeMillis();
+        private volatile long lastReleased;
+        private volatile long lastValidated = created;
+        private final AtomicInteger state = new AtomicInteger(RESERVED);
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return true if the connection was idle and is now reserved
+         */
+        private boolean claim() {
+            return state.compareAndSet(IDLE, RESERVED);
+        }
+    }
+
+    private static class PoolState {
+        /** One permit per connection that may be reserved */
+        private final Semaphore permits;
+        private final Queue<PooledConnection> idle = new ConcurrentLinkedQueue<PooledConnection>();
+        /** All open connections, reserved or idle */
+        private final Map<Connection, PooledConnection> connections = new ConcurrentHashMap<Connection, PooledConnection>();
+        /**
+         * The connection each thread released last. Cleared when the thread
+         * reserves a connection, and weakly referenced so that a closed
+         * connection is not kept reachable by an idle thread.
+         */
+        private final ThreadLocal<WeakReference<PooledConnection>> lastReleased = new ThreadLocal<WeakReference<PooledConnection>>();
+        private ScheduledFuture<?> housekeeping;
+
+        private PoolState(int maxConnections) {
+            permits = new Semaphore(maxConnections);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.vaadin.addon.sqlcontainer.connection;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * ConnectionValidator checks that a pooled connection still works before it
+ * is handed out, so that connections broken e.g. by a database restart or
+ * failover are replaced instead of failing the next query.
+ * 
+ * By default the JDBC 4 method Connection.isValid(int) is used. It is called
+ * reflectively, since JDBC 3 on Java 5 does not have it. For drivers that do
+ * not implement it, a test query such as "SELECT 1" (or "SELECT 1 FROM DUAL"
+ * on Oracle) can be given instead.
+ */
+@SuppressWarnings("serial")
+public class ConnectionValidator implements Serializable {
+
+    /** Default time in seconds a validation may take */
+    public static final int DEFAULT_TIMEOUT = 5;
+
+    /** Connection.isValid(int), or null if the JDBC version lacks it */
+    private static final Method IS_VALID = findIsValid();
+
+    private final String testQuery;
+    private int timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * Creates a validator that uses Connection.isValid(int).
+     */
+    public ConnectionValidator() {
+        this(null);
+    }
+
+    /**
+     * Creates a validator that runs the given query.
+     * 
+     * @param testQuery
+     *            the query to run, or null to use Connection.isValid(int)
+     */
+    public ConnectionValidator(String testQuery) {
+        this.testQuery = testQuery;
+    }
+
+    public String getTestQuery() {
+        return testQuery;
+    }
+
+    /**
+     * Sets the time a validation may take before the connection is considered
+     * broken.
+     * 
+     * @param seconds
+     *            the timeout in seconds, 0 for no timeout
+     */
+    public void setTimeout(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException(
+                    "Validation timeout must not be negative.");
+        }
+        timeout = seconds;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Checks whether the given connection is usable. A test query is run in
+     * its own transaction, which is rolled back.
+     * 
+     * @param conn
+     *            the connection to check
+     * @return true if the connection is usable
+     */
+    public boolean validate(Connection conn) {
+        try {
+            if (testQuery == null) {
+                return isValid(conn);
+            }
+            Statement statement = conn.createStatement();
+            try {
+                statement.setQueryTimeout(timeout);
+                statement.execute(testQuery);
+            } finally {
+                statement.close();
+            }
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean isValid(Connection conn) throws SQLException {
+        if (IS_VALID != null) {
+            try {
+                return (Boolean) IS_VALID.invoke(conn, timeout);
+            } catch (IllegalAccessException e) {
+                /* Fall through to the closed check */
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (!(cause instanceof AbstractMethodError)) {
+                    throw (Error) cause;
+                }
+            }
+        }
+        /* JDBC 3 driver without isValid(), check what can be checked */
+        return !conn.isClosed();
+    }
+
+    private static Method findIsValid() {
+        try {
+            return Connection.class.getMethod("isValid", int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
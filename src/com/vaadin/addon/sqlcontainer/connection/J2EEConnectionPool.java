@@ -13,6 +13,8 @@ public class J2EEConnectionPool implements JDBCConnectionPool {
 
     private DataSource dataSource = null;
 
+    private transient volatile PoolMetrics metrics;
+
     public J2EEConnectionPool(DataSource dataSource) {
         this.dataSource = dataSource;
     }
@@ -21,9 +23,38 @@ public class J2EEConnectionPool implements JDBCConnectionPool {
         this.dataSourceJndiName = dataSourceJndiName;
     }
 
+    /**
+     * Returns the metrics of this pool. The connections are pooled by the
+     * data source, so only the reserved connections and the time getting a
+     * connection from the data source took are tracked; the number of idle
+     * connections is always 0.
+     * 
+     * @return the metrics
+     */
+    public PoolMetrics getMetrics() {
+        PoolMetrics m = metrics;
+        if (m == null) {
+            synchronized (this) {
+                if (metrics == null) {
+                    metrics = new PoolMetrics(this);
+                }
+                m = metrics;
+            }
+        }
+        return m;
+    }
+
     public Connection reserveConnection() throws SQLException {
-        Connection conn = getDataSource().getConnection();
+        long start = System.nanoTime();
+        Connection conn;
+        try {
+            conn = getDataSource().getConnection();
+        } catch (SQLException e) {
+            getMetrics().reserveFailed(System.nanoTime() - start);
+            throw e;
+        }
         conn.setAutoCommit(false);
+        getMetrics().connectionReserved(conn, System.nanoTime() - start);
 
         return conn;
     }
@@ -47,6 +78,11 @@ public class J2EEConnectionPool implements JDBCConnectionPool {
     }
 
     public void releaseConnection(Connection conn) {
+        /*
+         * The connection is handed back to the container, which pools its
+         * statements itself, so statement caching is not enabled for it.
+         */
+        getMetrics().connectionReleased(conn);
         try {
             conn.close();
         } catch (SQLException e) {
@@ -55,6 +91,9 @@ public class J2EEConnectionPool implements JDBCConnectionPool {
     }
 
     public void destroy() {
+        if (metrics != null) {
+            metrics.poolDestroyed();
+        }
         dataSource = null;
     }
 
@@ -0,0 +1,681 @@
+package com.vaadin.addon.sqlcontainer.connection;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * PoolMetrics collects statistics of a connection pool: the number of active
+ * and idle connections, how long reserving a connection takes, how long
+ * opening a connection takes, how many connections failed validation and
+ * which connections have been reserved for suspiciously long.
+ * 
+ * The metrics can be read directly, followed through a {@link PoolListener},
+ * or published as a JMX MBean with {@link #registerMBean(String)}. Listeners
+ * are notified on the thread using the pool, or on a background thread for
+ * suspected leaks, so they should return quickly.
+ * 
+ * All methods are thread-safe.
+ */
+public class PoolMetrics implements PoolMetricsMBean {
+
+    /** Upper bounds in milliseconds of the wait time histogram buckets */
+    public static final long[] WAIT_TIME_BUCKETS = { 1, 5, 10, 50, 100, 500,
+            1000, 5000 };
+
+    private static final String MBEAN_DOMAIN = "com.vaadin.addon.sqlcontainer";
+
+    private final JDBCConnectionPool pool;
+
+    /** Connections opened and not yet closed by the pool */
+    private final AtomicInteger openConnections = new AtomicInteger();
+    /** Reserved connections */
+    private final Map<Connection, Reservation> reservations = new ConcurrentHashMap<Connection, Reservation>();
+
+    private final AtomicLong reserveCount = new AtomicLong();
+    private final AtomicLong failedReserveCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLongArray waitTimeHistogram = new AtomicLongArray(
+            WAIT_TIME_BUCKETS.length + 1);
+
+    private final AtomicLong createdConnections = new AtomicLong();
+    private final AtomicLong totalCreationNanos = new AtomicLong();
+    private final AtomicLong maxCreationNanos = new AtomicLong();
+
+    private final AtomicLong validationFailures = new AtomicLong();
+
+    private volatile long leakThreshold;
+    private volatile boolean stackCaptureEnabled;
+    /** Periodic leak check, scheduled while a leak threshold is set */
+    private ScheduledFuture<?> leakCheck;
+
+    /** Runs the leak checks of all pools */
+    private static ScheduledExecutorService leakChecker;
+
+    private final List<PoolListener> listeners = new CopyOnWriteArrayList<PoolListener>();
+    private ObjectName objectName;
+
+    /**
+     * @param pool
+     *            the pool whose metrics are collected
+     */
+    public PoolMetrics(JDBCConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the pool whose metrics are collected
+     */
+    public JDBCConnectionPool getPool() {
+        return pool;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getActiveConnections
+     * ()
+     */
+    public int getActiveConnections() {
+        return reservations.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getIdleConnections
+     * ()
+     */
+    public int getIdleConnections() {
+        return Math.max(0, openConnections.get() - reservations.size());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getReserveCount()
+     */
+    public long getReserveCount() {
+        return reserveCount.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getFailedReserveCount
+     * ()
+     */
+    public long getFailedReserveCount() {
+        return failedReserveCount.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getAverageWaitTime
+     * ()
+     */
+    public double getAverageWaitTime() {
+        long count = reserveCount.get();
+        return count == 0 ? 0 : toMillis(totalWaitNanos.get()) / count;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getMaxWaitTime()
+     */
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getWaitTimeHistogram
+     * ()
+     */
+    public long[] getWaitTimeHistogram() {
+        long[] histogram = new long[waitTimeHistogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = waitTimeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getCreatedConnections
+     * ()
+     */
+    public long getCreatedConnections() {
+        return createdConnections.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#
+     * getAverageCreationTime()
+     */
+    public double getAverageCreationTime() {
+        long count = createdConnections.get();
+        return count == 0 ? 0 : toMillis(totalCreationNanos.get()) / count;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getMaxCreationTime
+     * ()
+     */
+    public long getMaxCreationTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxCreationNanos.get());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getValidationFailures
+     * ()
+     */
+    public long getValidationFailures() {
+        return validationFailures.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#getLeakThreshold()
+     */
+    public long getLeakThreshold() {
+        return leakThreshold;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#setLeakThreshold
+     * (long)
+     */
+    public synchronized void setLeakThreshold(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException(
+                    "Leak threshold must not be negative.");
+        }
+        leakThreshold = milliseconds;
+        if (leakCheck != null) {
+            leakCheck.cancel(false);
+            leakCheck = null;
+        }
+        if (milliseconds > 0) {
+            long interval = Math.max(1000, Math.min(30000, milliseconds / 2));
+            LeakCheck check = new LeakCheck(this);
+            leakCheck = getLeakChecker().scheduleWithFixedDelay(check,
+                    interval, interval, TimeUnit.MILLISECONDS);
+            check.future = leakCheck;
+        }
+    }
+
+    /**
+     * Checks the metrics for leaks periodically. Holds the metrics weakly, so
+     * that a pool dropped without being destroyed can still be collected.
+     */
+    private static class LeakCheck implements Runnable {
+        private final WeakReference<PoolMetrics> metrics;
+        private volatile ScheduledFuture<?> future;
+
+        private LeakCheck(PoolMetrics metrics) {
+            this.metrics = new WeakReference<PoolMetrics>(metrics);
+        }
+
+        public void run() {
+            PoolMetrics m = metrics.get();
+            if (m != null) {
+                m.checkForLeaks();
+            } else if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getLeakChecker() {
+        if (leakChecker == null) {
+            leakChecker = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r,
+                                    "SQLContainer connection leak checker");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return leakChecker;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#isStackCaptureEnabled
+     * ()
+     */
+    public boolean isStackCaptureEnabled() {
+        return stackCaptureEnabled;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#
+     * setStackCaptureEnabled(boolean)
+     */
+    public void setStackCaptureEnabled(boolean stackCaptureEnabled) {
+        this.stackCaptureEnabled = stackCaptureEnabled;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.connection.PoolMetricsMBean#
+     * getLeakSuspectDescriptions()
+     */
+    public String[] getLeakSuspectDescriptions() {
+        List<LeakSuspect> suspects = getLeakSuspects();
+        String[] descriptions = new String[suspects.size()];
+        for (int i = 0; i < descriptions.length; i++) {
+            descriptions[i] = suspects.get(i).toString();
+        }
+        return descriptions;
+    }
+
+    /**
+     * Returns the connections that have been reserved for longer than the
+     * leak threshold. Returns an empty list if leak detection is disabled.
+     * 
+     * @return the leak suspects
+     */
+    public List<LeakSuspect> getLeakSuspects() {
+        List<LeakSuspect> suspects = new ArrayList<LeakSuspect>();
+        long threshold = leakThreshold;
+        if (threshold == 0) {
+            return suspects;
+        }
+        long now = System.currentTimeMillis();
+        for (Reservation r : reservations.values()) {
+            if (now - r.reservedAt > threshold) {
+                suspects.add(new LeakSuspect(r, now));
+            }
+        }
+        return suspects;
+    }
+
+    /**
+     * Notifies the listeners of connections that have exceeded the leak
+     * threshold since the last check. Each reservation is reported once.
+     * Called on a background thread every half of the leak threshold, between
+     * one and 30 seconds, while a threshold is set; may also be called e.g.
+     * from a monitoring task.
+     */
+    public void checkForLeaks() {
+        long threshold = leakThreshold;
+        if (threshold == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Connection, Reservation> entry : reservations
+                .entrySet()) {
+            Reservation r = entry.getValue();
+            if (!r.reported && now - r.reservedAt > threshold) {
+                r.reported = true;
+                fire(PoolEvent.Type.LEAK_SUSPECTED, entry.getKey(), now
+                        - r.reservedAt, new LeakSuspect(r, now));
+            }
+        }
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server under the name
+     * "com.vaadin.addon.sqlcontainer:type=ConnectionPool,name=<name>".
+     * 
+     * @param name
+     *            the name of the pool
+     * @return the name the MBean was registered with
+     * @throws JMException
+     *             if the registration fails, e.g. because the name is taken
+     */
+    public synchronized ObjectName registerMBean(String name)
+            throws JMException {
+        unregisterMBean();
+        ObjectName on = new ObjectName(MBEAN_DOMAIN
+                + ":type=ConnectionPool,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+        return on;
+    }
+
+    /**
+     * Removes the MBean registered with {@link #registerMBean(String)}, if
+     * any.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            /* Already gone */
+        }
+        objectName = null;
+    }
+
+    /**
+     * Called by the pool when it is destroyed. Unregisters the MBean and stops
+     * the leak checks.
+     */
+    synchronized void poolDestroyed() {
+        unregisterMBean();
+        if (leakCheck != null) {
+            leakCheck.cancel(false);
+            leakCheck = null;
+        }
+    }
+
+    public void addListener(PoolListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(PoolListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Records a successful reservation.
+     * 
+     * @param conn
+     *            the reserved connection
+     * @param waitNanos
+     *            the time the reservation took in nanoseconds
+     */
+    void connectionReserved(Connection conn, long waitNanos) {
+        reserveCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        updateMax(maxWaitNanos, waitNanos);
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        int bucket = 0;
+        while (bucket < WAIT_TIME_BUCKETS.length
+                && waitMillis > WAIT_TIME_BUCKETS[bucket]) {
+            bucket++;
+        }
+        waitTimeHistogram.incrementAndGet(bucket);
+        reservations.put(conn, new Reservation(
+                stackCaptureEnabled ? new Throwable("Connection reserved")
+                        : null));
+        fire(PoolEvent.Type.RESERVED, conn, waitMillis, null);
+    }
+
+    /**
+     * Records a failed reservation.
+     */
+    void reserveFailed(long waitNanos) {
+        failedReserveCount.incrementAndGet();
+        fire(PoolEvent.Type.RESERVE_FAILED, null,
+                TimeUnit.NANOSECONDS.toMillis(waitNanos), null);
+    }
+
+    /**
+     * Records the release of a reserved connection.
+     */
+    void connectionReleased(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        Reservation r = reservations.remove(conn);
+        if (r != null) {
+            fire(PoolEvent.Type.RELEASED, conn, System.currentTimeMillis()
+                    - r.reservedAt, null);
+        }
+    }
+
+    /**
+     * Records the opening of a new connection.
+     */
+    void connectionCreated(Connection conn, long creationNanos) {
+        openConnections.incrementAndGet();
+        createdConnections.incrementAndGet();
+        totalCreationNanos.addAndGet(creationNanos);
+        updateMax(maxCreationNanos, creationNanos);
+        fire(PoolEvent.Type.CREATED, conn,
+                TimeUnit.NANOSECONDS.toMillis(creationNanos), null);
+    }
+
+    /**
+     * Records the closing of a connection opened by the pool.
+     */
+    void connectionClosed(Connection conn) {
+        openConnections.decrementAndGet();
+        reservations.remove(conn);
+        fire(PoolEvent.Type.CLOSED, conn, 0, null);
+    }
+
+    /**
+     * Records a connection that failed validation.
+     */
+    void validationFailed(Connection conn) {
+        validationFailures.incrementAndGet();
+        fire(PoolEvent.Type.VALIDATION_FAILED, conn, 0, null);
+    }
+
+    private void fire(PoolEvent.Type type, Connection conn, long duration,
+            LeakSuspect suspect) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        PoolEvent event = new PoolEvent(this, type, conn, duration, suspect);
+        for (PoolListener listener : listeners) {
+            listener.poolChanged(event);
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private static class Reservation {
+        private final long reservedAt = System.currentTimeMillis();
+        private final String threadName = Thread.currentThread().getName();
+        private final Throwable stack;
+        private volatile boolean reported;
+
+        private Reservation(Throwable stack) {
+            this.stack = stack;
+        }
+    }
+
+    /**
+     * A connection that has been reserved for longer than the leak threshold.
+     */
+    @SuppressWarnings("serial")
+    public static class LeakSuspect implements Serializable {
+        private final long reservedAt;
+        private final long heldTime;
+        private final String threadName;
+        private final StackTraceElement[] stackTrace;
+
+        private LeakSuspect(Reservation r, long now) {
+            reservedAt = r.reservedAt;
+            heldTime = now - r.reservedAt;
+            threadName = r.threadName;
+            stackTrace = r.stack == null ? null : r.stack.getStackTrace();
+        }
+
+        /**
+         * @return the time the connection was reserved, in milliseconds since
+         *         the epoch
+         */
+        public long getReservedAt() {
+            return reservedAt;
+        }
+
+        /**
+         * @return how long the connection had been held when it was reported,
+         *         in milliseconds
+         */
+        public long getHeldTime() {
+            return heldTime;
+        }
+
+        /**
+         * @return the name of the thread that reserved the connection
+         */
+        public String getThreadName() {
+            return threadName;
+        }
+
+        /**
+         * @return the stack of the reserving thread, or null if stack capture
+         *         was disabled
+         */
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Connection held for "
+                    + heldTime + " ms by thread " + threadName);
+            if (stackTrace != null) {
+                for (StackTraceElement element : stackTrace) {
+                    sb.append("\n\tat ").append(element);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Event telling that something happened in a connection pool.
+     */
+    @SuppressWarnings("serial")
+    public static class PoolEvent extends EventObject {
+
+        public enum Type {
+            /** A connection was reserved; the duration is the wait time */
+            RESERVED,
+            /** Reserving a connection failed; the duration is the wait time */
+            RESERVE_FAILED,
+            /** A connection was released; the duration is the time it was held */
+            RELEASED,
+            /** A connection was opened; the duration is the creation time */
+            CREATED,
+            /** A connection was closed by the pool */
+            CLOSED,
+            /** A connection failed validation */
+            VALIDATION_FAILED,
+            /** A connection has been held for longer than the leak threshold */
+            LEAK_SUSPECTED
+        }
+
+        private final Type type;
+        private final transient Connection connection;
+        private final long duration;
+        private final LeakSuspect leakSuspect;
+
+        private PoolEvent(PoolMetrics source, Type type,
+                Connection connection, long duration, LeakSuspect leakSuspect) {
+            super(source);
+            this.type = type;
+            this.connection = connection;
+            this.duration = duration;
+            this.leakSuspect = leakSuspect;
+        }
+
+        public PoolMetrics getMetrics() {
+            return (PoolMetrics) getSource();
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the connection concerned, or null for a failed reservation
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return the duration in milliseconds related to the event, see
+         *         {@link Type}
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the leak suspect of a {@link Type#LEAK_SUSPECTED} event,
+         *         otherwise null
+         */
+        public LeakSuspect getLeakSuspect() {
+            return leakSuspect;
+        }
+    }
+
+    /** Listener interface for connection pool events. */
+    public interface PoolListener extends Serializable {
+        /**
+         * Lets the listener know that something happened in the pool.
+         * 
+         * @param event
+         */
+        public void poolChanged(PoolEvent event);
+    }
+}
@@ -0,0 +1,105 @@
+package com.vaadin.addon.sqlcontainer.connection;
+
+/**
+ * Management interface of the metrics of a connection pool. Times are given
+ * in milliseconds.
+ * 
+ * @see PoolMetrics
+ */
+public interface PoolMetricsMBean {
+
+    /**
+     * @return the number of connections currently reserved
+     */
+    public int getActiveConnections();
+
+    /**
+     * @return the number of open connections waiting in the pool, always 0 for
+     *         pools that do not keep connections themselves
+     */
+    public int getIdleConnections();
+
+    /**
+     * @return the number of successful reservations
+     */
+    public long getReserveCount();
+
+    /**
+     * @return the number of reservations that failed, e.g. because no
+     *         connection became available in time
+     */
+    public long getFailedReserveCount();
+
+    /**
+     * @return the average time a reservation took, including the time spent
+     *         waiting for a connection and opening a new one
+     */
+    public double getAverageWaitTime();
+
+    /**
+     * @return the longest time a reservation took
+     */
+    public long getMaxWaitTime();
+
+    /**
+     * Returns the number of reservations in each wait time bucket. Bucket i
+     * counts the reservations that took at most
+     * {@link PoolMetrics#WAIT_TIME_BUCKETS}[i] milliseconds and more than the
+     * bound of the previous bucket; the last bucket counts the rest.
+     * 
+     * @return the wait time histogram
+     */
+    public long[] getWaitTimeHistogram();
+
+    /**
+     * @return the number of connections opened by the pool
+     */
+    public long getCreatedConnections();
+
+    /**
+     * @return the average time opening a connection took
+     */
+    public double getAverageCreationTime();
+
+    /**
+     * @return the longest time opening a connection took
+     */
+    public long getMaxCreationTime();
+
+    /**
+     * @return the number of connections that failed validation
+     */
+    public long getValidationFailures();
+
+    /**
+     * @return the time after which a reserved connection is reported as a
+     *         possible leak, 0 if leak detection is disabled
+     */
+    public long getLeakThreshold();
+
+    /**
+     * @param milliseconds
+     *            the time after which a reserved connection is reported as a
+     *            possible leak, 0 to disable leak detection
+     */
+    public void setLeakThreshold(long milliseconds);
+
+    /**
+     * @return true if the stack of the reserving thread is captured for leak
+     *         reports
+     */
+    public boolean isStackCaptureEnabled();
+
+    /**
+     * @param stackCaptureEnabled
+     *            true to capture the stack of the reserving thread for leak
+     *            reports
+     */
+    public void setStackCaptureEnabled(boolean stackCaptureEnabled);
+
+    /**
+     * @return descriptions of the connections held for longer than the leak
+     *         threshold
+     */
+    public String[] getLeakSuspectDescriptions();
+}
@@ -29,6 +29,10 @@ public class SimpleJDBCConnectionPool implements JDBCConnectionPool {
 
     private boolean initialized;
 
+    private ConnectionValidator validator;
+
+    private transient volatile PoolMetrics metrics;
+
     public SimpleJDBCConnectionPool(String driverName, String connectionUri,
             String userName, String password) throws SQLException {
         if (driverName == null) {
@@ -69,6 +73,42 @@ public class SimpleJDBCConnectionPool implements JDBCConnectionPool {
         this.maxConnections = maxConnections;
     }
 
+    /**
+     * Sets the validator used to check that an available connection still
+     * works before it is reserved. Broken connections are closed and replaced.
+     * Validation runs without holding the lock of the pool, so a slow
+     * validation only delays the thread reserving the connection. By default
+     * connections are not validated.
+     * 
+     * @param validator
+     *            the validator, or null to disable validation
+     */
+    public synchronized void setValidator(ConnectionValidator validator) {
+        this.validator = validator;
+    }
+
+    public synchronized ConnectionValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Returns the metrics of this pool.
+     * 
+     * @return the metrics
+     */
+    public PoolMetrics getMetrics() {
+        PoolMetrics m = metrics;
+        if (m == null) {
+            synchronized (this) {
+                if (metrics == null) {
+                    metrics = new PoolMetrics(this);
+                }
+                m = metrics;
+            }
+        }
+        return m;
+    }
+
     private void initializeConnections() throws SQLException {
         availableConnections = new HashSet<Connection>(initialConnections);
         reservedConnections = new HashSet<Connection>(initialConnections);
@@ -78,22 +118,71 @@ public class SimpleJDBCConnectionPool implements JDBCConnectionPool {
         initialized = true;
     }
 
-    public synchronized Connection reserveConnection() throws SQLException {
+    public Connection reserveConnection() throws SQLException {
+        long start = System.nanoTime();
+        PoolMetrics m = getMetrics();
+        Connection c;
+        try {
+            c = reserve();
+        } catch (SQLException e) {
+            m.reserveFailed(System.nanoTime() - start);
+            throw e;
+        }
+        m.connectionReserved(c, System.nanoTime() - start);
+        return c;
+    }
+
+    private Connection reserve() throws SQLException {
+        Connection c;
+        while ((c = takeAvailable()) != null) {
+            ConnectionValidator v = getValidator();
+            if (v == null || v.validate(c)) {
+                return c;
+            }
+            /* Broken connection, close and discard it */
+            getMetrics().validationFailed(c);
+            synchronized (this) {
+                reservedConnections.remove(c);
+            }
+            getMetrics().connectionClosed(c);
+            StatementCache.close(c);
+            try {
+                c.close();
+            } catch (SQLException e) {
+                /* Nothing needs to be done */
+            }
+        }
+        return createReserved();
+    }
+
+    /**
+     * Moves an available connection to the reserved connections.
+     * 
+     * @return the connection, or null if no connection is available
+     */
+    private synchronized Connection takeAvailable() throws SQLException {
         if (!initialized) {
             initializeConnections();
         }
         if (availableConnections.isEmpty()) {
-            if (reservedConnections.size() < maxConnections) {
-                availableConnections.add(createConnection());
-            } else {
-                throw new SQLException("Connection limit has been reached.");
-            }
+            return null;
         }
-
         Connection c = availableConnections.iterator().next();
         availableConnections.remove(c);
         reservedConnections.add(c);
+        return c;
+    }
 
+    /**
+     * Opens a new connection and adds it to the reserved connections, unless
+     * the connection limit has been reached.
+     */
+    private synchronized Connection createReserved() throws SQLException {
+        if (reservedConnections.size() >= maxConnections) {
+            throw new SQLException("Connection limit has been reached.");
+        }
+        Connection c = createConnection();
+        reservedConnections.add(c);
         return c;
     }
 
@@ -101,6 +190,10 @@ public class SimpleJDBCConnectionPool implements JDBCConnectionPool {
         if (conn == null || !initialized) {
             return;
         }
+        boolean reserved = reservedConnections.contains(conn);
+        if (reserved) {
+            getMetrics().connectionReleased(conn);
+        }
         /* Try to roll back if necessary */
         try {
             if (!conn.getAutoCommit()) {
@@ -108,6 +201,10 @@ public class SimpleJDBCConnectionPool implements JDBCConnectionPool {
             }
         } catch (SQLException e) {
             /* Roll back failed, close and discard connection */
+            if (reserved) {
+                getMetrics().connectionClosed(conn);
+            }
+            StatementCache.close(conn);
             try {
                 conn.close();
             } catch (SQLException e1) {
@@ -121,9 +218,11 @@ public class SimpleJDBCConnectionPool implements JDBCConnectionPool {
     }
 
     private Connection createConnection() throws SQLException {
+        long start = System.nanoTime();
         Connection c = DriverManager.getConnection(connectionUri, userName,
                 password);
         c.setAutoCommit(false);
+        StatementCache.register(c);
         if (driverName.toLowerCase().contains("mysql")) {
             try {
                 Statement s = c.createStatement();
@@ -133,11 +232,20 @@ public class SimpleJDBCConnectionPool implements JDBCConnectionPool {
                 // Failed to set ansi mode; continue
             }
         }
+        getMetrics().connectionCreated(c, System.nanoTime() - start);
         return c;
     }
 
     public void destroy() {
+        if (metrics != null) {
+            metrics.poolDestroyed();
+        }
+        if (!initialized) {
+            return;
+        }
         for (Connection c : availableConnections) {
+            getMetrics().connectionClosed(c);
+            StatementCache.close(c);
             try {
                 c.close();
             } catch (SQLException e) {
@@ -145,6 +253,8 @@ public class SimpleJDBCConnectionPool implements JDBCConnectionPool {
             }
         }
         for (Connection c : reservedConnections) {
+            getMetrics().connectionClosed(c);
+            StatementCache.close(c);
             try {
                 c.close();
             } catch (SQLException e) {
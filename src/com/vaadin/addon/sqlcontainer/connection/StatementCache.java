@@ -0,0 +1,294 @@
+package com.vaadin.addon.sqlcontainer.connection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StatementCache keeps the prepared statements of one connection open so that
+ * identical SQL does not need to be parsed again by the driver and the
+ * database. Statements are keyed by their SQL text and the generated key
+ * columns requested, and the least recently used statement is closed when the
+ * cache is full.
+ * 
+ * Caching is enabled by the connection pool: a pool that owns the lifetime of
+ * its connections calls {@link #register(Connection)} when it opens a
+ * connection and {@link #close(Connection)} before closing it, as
+ * {@link SimpleJDBCConnectionPool} and {@link ConcurrentJDBCConnectionPool}
+ * do. Connections of other pools have no cache, so their statements are
+ * prepared and closed as usual and nothing keeps the connections reachable.
+ * 
+ * A statement obtained from the cache must not be closed by the caller; use
+ * {@link #closeStatement(Statement)} instead, which only clears the
+ * parameters of cached statements. A cached statement is handed out to one
+ * caller at a time: preparing the same SQL again before the statement has
+ * been released returns a new statement that is closed on release, so two
+ * open result sets never share a statement.
+ * 
+ * A connection, and thus its cache, is expected to be used by one thread at a
+ * time.
+ */
+public class StatementCache {
+
+    /** Maximum number of open statements kept per connection */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** The caches of the registered connections, keyed by identity */
+    private static final ConcurrentMap<ConnectionKey, StatementCache> caches = new ConcurrentHashMap<ConnectionKey, StatementCache>();
+
+    private static final AtomicLong totalHits = new AtomicLong();
+    private static final AtomicLong totalMisses = new AtomicLong();
+
+    private final Connection connection;
+    private final int capacity;
+    private final LinkedHashMap<List<Object>, PreparedStatement> statements;
+    /** The statements held by the cache, for identifying them on close */
+    private final Map<Statement, Object> held = new IdentityHashMap<Statement, Object>();
+    /** The statements handed out and not yet released */
+    private final Map<Statement, Boolean> inUse = new IdentityHashMap<Statement, Boolean>();
+
+    private long hits;
+    private long misses;
+
+    private StatementCache(Connection connection, int capacity) {
+        this.connection = connection;
+        this.capacity = capacity;
+        statements = new LinkedHashMap<List<Object>, PreparedStatement>(16,
+                0.75f, true);
+    }
+
+    /**
+     * Identity of a connection, as connection wrappers may implement equals()
+     * in ways that do not suit a cache key.
+     */
+    private static final class ConnectionKey {
+        private final Connection connection;
+
+        ConnectionKey(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(connection);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ConnectionKey
+                    && ((ConnectionKey) obj).connection == connection;
+        }
+    }
+
+    /**
+     * Enables statement caching for the given connection. Called by a
+     * connection pool when it opens a connection; the pool must call
+     * {@link #close(Connection)} before closing the connection.
+     * 
+     * @param conn
+     *            a connection owned by the calling pool
+     * @return the statement cache of the connection
+     */
+    public static StatementCache register(Connection conn) {
+        if (conn == null) {
+            throw new IllegalArgumentException("Connection must be given.");
+        }
+        StatementCache cache = new StatementCache(conn, DEFAULT_CAPACITY);
+        StatementCache existing = caches.putIfAbsent(new ConnectionKey(conn),
+                cache);
+        return existing != null ? existing : cache;
+    }
+
+    /**
+     * Returns the statement cache of the given connection.
+     * 
+     * @param conn
+     *            a connection
+     * @return the statement cache of the connection, or null if its pool has
+     *         not enabled statement caching
+     */
+    public static StatementCache forConnection(Connection conn) {
+        if (conn == null) {
+            throw new IllegalArgumentException("Connection must be given.");
+        }
+        return caches.get(new ConnectionKey(conn));
+    }
+
+    /**
+     * Closes all the statements cached for the given connection and discards
+     * its cache. Must be called before the connection is closed. Does nothing
+     * if the connection has no cache.
+     * 
+     * @param conn
+     *            the connection about to be closed
+     */
+    public static void close(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        StatementCache cache = caches.remove(new ConnectionKey(conn));
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Releases a statement after use. Statements held by a statement cache
+     * stay open for reuse and only have their parameters cleared; other
+     * statements are closed.
+     * 
+     * @param statement
+     *            the statement to release, may be null
+     * @throws SQLException
+     */
+    public static void closeStatement(Statement statement)
+            throws SQLException {
+        if (statement == null) {
+            return;
+        }
+        StatementCache cache = caches.get(new ConnectionKey(statement
+                .getConnection()));
+        if (cache != null && cache.release(statement)) {
+            ((PreparedStatement) statement).clearParameters();
+        } else {
+            statement.close();
+        }
+    }
+
+    /**
+     * @return the number of cache hits of all connections
+     */
+    public static long getTotalHitCount() {
+        return totalHits.get();
+    }
+
+    /**
+     * @return the number of cache misses of all connections
+     */
+    public static long getTotalMissCount() {
+        return totalMisses.get();
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL, reusing a cached one if
+     * possible. The statement must be released with
+     * {@link #closeStatement(Statement)}.
+     * 
+     * @param sql
+     *            the SQL text of the statement
+     * @return an open prepared statement
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, null);
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL that makes the given
+     * generated key columns available, reusing a cached one if possible. A
+     * cached statement still in use returns a new statement instead.
+     * 
+     * @param sql
+     *            the SQL text of the statement
+     * @param keyColumns
+     *            the generated key columns to return, or null
+     * @return an open prepared statement
+     * @throws SQLException
+     */
+    public synchronized PreparedStatement prepare(String sql,
+            String[] keyColumns) throws SQLException {
+        List<Object> key = new ArrayList<Object>(2);
+        key.add(sql);
+        key.add(keyColumns == null ? null : Arrays.asList(keyColumns));
+        PreparedStatement pstmt = statements.get(key);
+        if (pstmt != null && !inUse.containsKey(pstmt)) {
+            hits++;
+            totalHits.incrementAndGet();
+            inUse.put(pstmt, Boolean.TRUE);
+            return pstmt;
+        }
+        misses++;
+        totalMisses.incrementAndGet();
+        boolean cache = pstmt == null;
+        if (keyColumns == null) {
+            pstmt = connection.prepareStatement(sql);
+        } else {
+            pstmt = connection.prepareStatement(sql, keyColumns);
+        }
+        if (!cache) {
+            /* The cached statement is in use; this one is closed on release */
+            return pstmt;
+        }
+        if (statements.size() >= capacity) {
+            List<Object> eldest = statements.keySet().iterator().next();
+            PreparedStatement evicted = statements.remove(eldest);
+            held.remove(evicted);
+            if (!inUse.containsKey(evicted)) {
+                closeQuietly(evicted);
+            }
+        }
+        statements.put(key, pstmt);
+        held.put(pstmt, key);
+        inUse.put(pstmt, Boolean.TRUE);
+        return pstmt;
+    }
+
+    /**
+     * @return the number of statements currently cached
+     */
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    /**
+     * @return the number of times a cached statement was reused
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of times a statement had to be prepared
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Marks the given statement released.
+     * 
+     * @return true if the statement is held by the cache and stays open,
+     *         false if it must be closed
+     */
+    private synchronized boolean release(Statement statement) {
+        inUse.remove(statement);
+        return held.containsKey(statement);
+    }
+
+    private synchronized void clear() {
+        for (PreparedStatement pstmt : statements.values()) {
+            closeQuietly(pstmt);
+        }
+        statements.clear();
+        held.clear();
+        inUse.clear();
+    }
+
+    private void closeQuietly(PreparedStatement pstmt) {
+        try {
+            pstmt.close();
+        } catch (SQLException e) {
+            /* The statement is discarded anyway */
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.vaadin.addon.sqlcontainer.filters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Item;
+
+/**
+ * Filter that matches items whose property value is one of the given values.
+ * Translated into "column IN (?, ?, ...)" when used with a TableQuery.
+ */
+public class In implements Filter {
+
+    private final Object propertyId;
+    private final List<Object> values;
+
+    public In(Object propertyId, Collection<?> values) {
+        if (values == null || values.isEmpty()) {
+            throw new IllegalArgumentException("Values must be given.");
+        }
+        this.propertyId = propertyId;
+        this.values = Collections.unmodifiableList(new ArrayList<Object>(
+                values));
+    }
+
+    public Object getPropertyId() {
+        return propertyId;
+    }
+
+    public List<Object> getValues() {
+        return values;
+    }
+
+    public boolean passesFilter(Object itemId, Item item)
+            throws UnsupportedOperationException {
+        Object value = item.getItemProperty(getPropertyId()).getValue();
+        return values.contains(value);
+    }
+
+    public boolean appliesToProperty(Object propertyId) {
+        return getPropertyId() != null && getPropertyId().equals(propertyId);
+    }
+
+    @Override
+    public int hashCode() {
+        return (getPropertyId() != null ? getPropertyId().hashCode() : 0)
+                + getValues().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        // Only objects of the same class can be equal
+        if (obj == null || !getClass().equals(obj.getClass())) {
+            return false;
+        }
+        final In o = (In) obj;
+
+        boolean propertyIdEqual = (null != getPropertyId()) ? getPropertyId()
+                .equals(o.getPropertyId()) : null == o.getPropertyId();
+        return propertyIdEqual && getValues().equals(o.getValues());
+    }
+}
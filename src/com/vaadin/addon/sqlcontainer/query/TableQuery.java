@@ -7,13 +7,18 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EventObject;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.vaadin.addon.sqlcontainer.ColumnProperty;
 import com.vaadin.addon.sqlcontainer.OptimisticLockException;
@@ -22,12 +27,18 @@ import com.vaadin.addon.sqlcontainer.RowItem;
 import com.vaadin.addon.sqlcontainer.TemporaryRowId;
 import com.vaadin.addon.sqlcontainer.Util;
 import com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool;
+import com.vaadin.addon.sqlcontainer.connection.StatementCache;
+import com.vaadin.addon.sqlcontainer.filters.In;
 import com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator;
+import com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator;
 import com.vaadin.addon.sqlcontainer.query.generator.MSSQLGenerator;
+import com.vaadin.addon.sqlcontainer.query.generator.NullOrdering;
 import com.vaadin.addon.sqlcontainer.query.generator.SQLGenerator;
 import com.vaadin.addon.sqlcontainer.query.generator.StatementHelper;
 import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.And;
 import com.vaadin.data.util.filter.Compare.Equal;
+import com.vaadin.data.util.filter.Or;
 
 @SuppressWarnings("serial")
 public class TableQuery implements QueryDelegate,
@@ -45,6 +56,38 @@ public class TableQuery implements QueryDelegate,
     /** SQLGenerator instance to use for generating queries */
     private SQLGenerator sqlGenerator;
 
+    /** Keyset (seek) pagination mode, disabled by default */
+    private boolean seekPagingEnabled = false;
+
+    /** Where the database sorts NULLs, and the columns that can not be NULL */
+    private NullOrdering nullOrdering = NullOrdering.LOW;
+    private final Set<String> nonNullColumns = new HashSet<String>();
+
+    /** Estimates below this are replaced by an exact count */
+    public static final int DEFAULT_EXACT_COUNT_THRESHOLD = 100000;
+    private int exactCountThreshold = DEFAULT_EXACT_COUNT_THRESHOLD;
+
+    /** Maximum number of rows sent to the database in one JDBC batch */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Cleared when the driver has returned SUCCESS_NO_INFO for a batch, after
+     * which versioned statements are no longer batched
+     */
+    private boolean batchCountsReported = true;
+    private static final String BATCH_SAVEPOINT = "SQLCONTAINER_BATCH";
+
+    /**
+     * Maximum number of primary key values bound to one query that looks up
+     * rows by key. SQL Server accepts at most 2100 parameters per statement
+     * and Oracle at most 1000 values in an IN list.
+     */
+    public static final int MAX_KEY_PARAMETERS = 1000;
+
+    /** Reuse of prepared statements through the connection's StatementCache */
+    private boolean statementCacheEnabled = true;
+
     /** Fields related to Connection and Transaction handling */
     private JDBCConnectionPool connectionPool;
     private transient Connection activeConnection;
@@ -108,8 +151,7 @@ public class TableQuery implements QueryDelegate,
      */
     public int getCount() throws SQLException {
         debug("Fetching count...");
-        StatementHelper sh = sqlGenerator.generateSelectQuery(tableName,
-                filters, null, 0, 0, "COUNT(*)");
+        StatementHelper sh = getCountStatement();
         boolean shouldCloseTransaction = false;
         if (!transactionOpen) {
             shouldCloseTransaction = true;
@@ -118,7 +160,7 @@ public class TableQuery implements QueryDelegate,
         ResultSet r = executeQuery(sh);
         r.next();
         int count = r.getInt(1);
-        r.getStatement().close();
+        StatementCache.closeStatement(r.getStatement());
         r.close();
         if (shouldCloseTransaction) {
             commit();
@@ -126,6 +168,102 @@ public class TableQuery implements QueryDelegate,
         return count;
     }
 
+    /**
+     * Generates the statement used by {@link #getCount()} with the currently
+     * set filters, without executing it.
+     * 
+     * @return StatementHelper containing the query and its parameter values
+     */
+    public StatementHelper getCountStatement() {
+        return sqlGenerator.generateSelectQuery(tableName, filters, null, 0, 0,
+                "COUNT(*)");
+    }
+
+    /**
+     * Returns an estimate of the number of rows matching the currently set
+     * filters. Estimates are meant for sizing scroll bars of huge tables, where
+     * an exact count would be too slow.
+     * 
+     * The estimate is read from the statistics of the database, as provided by
+     * {@link ExtendedSQLGenerator#generateEstimatedCountQuery(String, List)}.
+     * If the generator or the database can not estimate the count, or if the
+     * estimate is below the exact count threshold, the exact count is returned
+     * instead.
+     * 
+     * @return the estimated row count
+     * @throws SQLException
+     */
+    public int getEstimatedCount() throws SQLException {
+        ExtendedSQLGenerator generator = getExtendedGenerator();
+        if (generator == null) {
+            return getCount();
+        }
+        StatementHelper sh = generator.generateEstimatedCountQuery(tableName,
+                filters);
+        if (sh == null) {
+            return getCount();
+        }
+        debug("Fetching count estimate...");
+        boolean shouldCloseTransaction = false;
+        if (!transactionOpen) {
+            shouldCloseTransaction = true;
+            beginTransaction();
+        }
+        int estimate;
+        ResultSet rs = null;
+        try {
+            rs = executeQuery(sh);
+            estimate = generator.readEstimatedCount(rs);
+        } catch (SQLException e) {
+            if (!shouldCloseTransaction) {
+                throw e;
+            }
+            /* E.g. no access to the statistics, count exactly instead */
+            debug("Count estimate failed: " + e.getMessage());
+            estimate = -1;
+        } finally {
+            if (rs != null) {
+                if (rs.getStatement() != null) {
+                    StatementCache.closeStatement(rs.getStatement());
+                }
+                rs.close();
+            }
+            if (shouldCloseTransaction) {
+                rollback();
+            }
+        }
+        if (estimate < exactCountThreshold) {
+            return getCount();
+        }
+        return estimate;
+    }
+
+    /**
+     * Sets the row count below which {@link #getEstimatedCount()} returns the
+     * exact count instead of the estimate. Counting small tables exactly is
+     * cheap, and avoids showing a wrong size where it would be noticed.
+     * 
+     * @param exactCountThreshold
+     *            the threshold, zero to always use the estimate when available
+     */
+    public void setExactCountThreshold(int exactCountThreshold) {
+        if (exactCountThreshold < 0) {
+            throw new IllegalArgumentException(
+                    "Threshold must not be negative.");
+        }
+        this.exactCountThreshold = exactCountThreshold;
+    }
+
+    /**
+     * Returns the row count below which {@link #getEstimatedCount()} returns
+     * the exact count.
+     * 
+     * @return the threshold
+     */
+    public int getExactCountThreshold() {
+        return exactCountThreshold;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -133,21 +271,383 @@ public class TableQuery implements QueryDelegate,
      * int)
      */
     public ResultSet getResults(int offset, int pagelength) throws SQLException {
-        StatementHelper sh;
+        return executeQuery(getPageStatement(offset, pagelength));
+    }
+
+    /**
+     * Fetches a page of rows like {@link #getResults(int, int)}, but only
+     * selects the primary key columns. Used when only the identities of the
+     * rows are needed.
+     * 
+     * @param offset
+     *            the first item of the page to load
+     * @param pagelength
+     *            the length of the page to load, 0 for all rows
+     * @return a ResultSet containing the primary key columns of the rows
+     * @throws SQLException
+     */
+    public ResultSet getPrimaryKeyResults(int offset, int pagelength)
+            throws SQLException {
+        return getPrimaryKeyResults(offset, pagelength, false);
+    }
+
+    /**
+     * Fetches a page of rows like {@link #getResults(int, int)}, but only
+     * selects the primary key columns and, if requested and set, the version
+     * column.
+     * 
+     * @param offset
+     *            the first item of the page to load
+     * @param pagelength
+     *            the length of the page to load, 0 for all rows
+     * @param includeVersion
+     *            true to also select the version column
+     * @return a ResultSet containing the selected columns of the rows
+     * @throws SQLException
+     */
+    public ResultSet getPrimaryKeyResults(int offset, int pagelength,
+            boolean includeVersion) throws SQLException {
+        return executeQuery(sqlGenerator.generateSelectQuery(tableName,
+                filters, getSeekOrderBys(), offset, pagelength,
+                getPrimaryKeyColumnList(includeVersion)));
+    }
+
+    /**
+     * Returns the select list of the primary key columns.
+     * 
+     * @param includeVersion
+     *            true to also include the version column, if set
+     * @return the select list, or null to select all the columns if the
+     *         generator can not generate a column list
+     */
+    private String getPrimaryKeyColumnList(boolean includeVersion) {
+        ExtendedSQLGenerator generator = getExtendedGenerator();
+        if (generator == null) {
+            return null;
+        }
+        List<String> columns = new ArrayList<String>(primaryKeyColumns);
+        if (includeVersion && versionColumn != null
+                && !columns.contains(versionColumn)) {
+            columns.add(versionColumn);
+        }
+        return generator.generateColumnList(columns);
+    }
+
+    /**
+     * Returns the generator as an ExtendedSQLGenerator.
+     * 
+     * @return the generator, or null if it only implements SQLGenerator
+     */
+    private ExtendedSQLGenerator getExtendedGenerator() {
+        if (sqlGenerator instanceof ExtendedSQLGenerator) {
+            return (ExtendedSQLGenerator) sqlGenerator;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the generator as an ExtendedSQLGenerator, for operations that
+     * have no fallback.
+     * 
+     * @throws UnsupportedOperationException
+     *             if the generator only implements SQLGenerator
+     */
+    private ExtendedSQLGenerator requireExtendedGenerator() {
+        ExtendedSQLGenerator generator = getExtendedGenerator();
+        if (generator == null) {
+            throw new UnsupportedOperationException(
+                    "The SQL generator does not implement ExtendedSQLGenerator.");
+        }
+        return generator;
+    }
+
+    /**
+     * Returns the maximum number of rows to look up by primary key with one
+     * query, so that the number of bound key values stays within
+     * {@link #MAX_KEY_PARAMETERS} also with a composite primary key.
+     * 
+     * @return the maximum number of keys per query, at least one
+     */
+    public int getMaxKeysPerQuery() {
+        return Math.max(1,
+                MAX_KEY_PARAMETERS / Math.max(1, primaryKeyColumns.size()));
+    }
+
+    /**
+     * Fetches the rows with the given primary key values in one query, using
+     * "WHERE pk IN (...)". With a composite primary key the rows are matched
+     * with "(pk1 = ? AND pk2 = ?) OR ...". The currently set filters are
+     * applied, so rows that do not pass them are not returned. The rows are
+     * returned in no particular order. At most {@link #getMaxKeysPerQuery()}
+     * keys should be given at a time.
+     * 
+     * @param keys
+     *            primary key values of the rows, one array per row
+     * @return a ResultSet containing the rows found
+     * @throws SQLException
+     */
+    public ResultSet getResultsForKeys(List<Object[]> keys)
+            throws SQLException {
+        return getResultsForKeys(keys, true);
+    }
+
+    /**
+     * Fetches the rows with the given primary key values like
+     * {@link #getResultsForKeys(List)}, optionally ignoring the currently set
+     * filters.
+     * 
+     * @param keys
+     *            primary key values of the rows, one array per row
+     * @param applyFilters
+     *            false to return the rows even if they do not pass the filters
+     * @return a ResultSet containing the rows found
+     * @throws SQLException
+     */
+    public ResultSet getResultsForKeys(List<Object[]> keys,
+            boolean applyFilters) throws SQLException {
+        if (keys == null || keys.isEmpty()) {
+            throw new IllegalArgumentException("Keys must be given.");
+        }
+        ArrayList<Filter> filtersAndKeys = new ArrayList<Filter>();
+        if (applyFilters && filters != null) {
+            filtersAndKeys.addAll(filters);
+        }
+        if (primaryKeyColumns.size() == 1) {
+            List<Object> values = new ArrayList<Object>();
+            for (Object[] key : keys) {
+                values.add(key[0]);
+            }
+            filtersAndKeys.add(new In(primaryKeyColumns.get(0), values));
+        } else {
+            Filter[] rows = new Filter[keys.size()];
+            for (int i = 0; i < rows.length; i++) {
+                Filter[] columns = new Filter[primaryKeyColumns.size()];
+                for (int j = 0; j < columns.length; j++) {
+                    columns[j] = new Equal(primaryKeyColumns.get(j),
+                            keys.get(i)[j]);
+                }
+                rows[i] = new And(columns);
+            }
+            filtersAndKeys.add(rows.length == 1 ? rows[0] : new Or(rows));
+        }
+        return executeQuery(sqlGenerator.generateSelectQuery(tableName,
+                filtersAndKeys, null, 0, 0, null));
+    }
+
+    /**
+     * Generates the statement used by {@link #getResults(int, int)} with the
+     * currently set filters and ordering, without executing it.
+     * 
+     * @param offset
+     *            the first item of the page to load
+     * @param pagelength
+     *            the length of the page to load
+     * @return StatementHelper containing the query and its parameter values
+     */
+    public StatementHelper getPageStatement(int offset, int pagelength) {
         /*
          * If no ordering is explicitly set, results will be ordered by the
-         * first primary key column.
+         * primary key columns. The primary key columns are always appended to
+         * the ordering to make it total, so that pages line up with seek
+         * pages and with the positions given by getRowPosition().
          */
-        if (orderBys == null || orderBys.isEmpty()) {
-            List<OrderBy> ob = new ArrayList<OrderBy>();
-            ob.add(new OrderBy(primaryKeyColumns.get(0), true));
-            sh = sqlGenerator.generateSelectQuery(tableName, filters, ob,
-                    offset, pagelength, null);
-        } else {
-            sh = sqlGenerator.generateSelectQuery(tableName, filters, orderBys,
-                    offset, pagelength, null);
+        return sqlGenerator.generateSelectQuery(tableName, filters,
+                getSeekOrderBys(), offset, pagelength, null);
+    }
+
+    /**
+     * Executes a paged query that returns the rows following the row with the
+     * given sort key values, using the ordering returned by
+     * {@link #getSeekOrderBys()}. Unlike {@link #getResults(int, int)} the
+     * database does not need to scan and discard the rows before the page, so
+     * the cost of fetching a page does not grow with its offset.
+     * 
+     * @param lastKeyValues
+     *            values of the {@link #getSeekOrderBys()} columns in the last
+     *            row of the previous page
+     * @param pagelength
+     *            the length of the page to load
+     * @return a ResultSet containing the rows of the page
+     * @throws SQLException
+     */
+    public ResultSet getResultsAfter(Object[] lastKeyValues, int pagelength)
+            throws SQLException {
+        return executeQuery(getSeekPageStatement(lastKeyValues, pagelength));
+    }
+
+    /**
+     * Generates the statement used by
+     * {@link #getResultsAfter(Object[], int)} with the currently set filters
+     * and ordering, without executing it.
+     * 
+     * @param lastKeyValues
+     *            values of the {@link #getSeekOrderBys()} columns in the last
+     *            row of the previous page
+     * @param pagelength
+     *            the length of the page to load
+     * @return StatementHelper containing the query and its parameter values
+     * @throws UnsupportedOperationException
+     *             if the generator is not an {@link ExtendedSQLGenerator}
+     */
+    public StatementHelper getSeekPageStatement(Object[] lastKeyValues,
+            int pagelength) {
+        List<OrderBy> ob = getSeekOrderBys();
+        return requireExtendedGenerator().generateSeekQuery(tableName, filters,
+                ob, getNullOrdering(ob, lastKeyValues), lastKeyValues,
+                pagelength, null);
+    }
+
+    /**
+     * Returns the NULL ordering of the database if the given sorted columns
+     * or key values may contain NULLs.
+     * 
+     * @return the NULL ordering, or null if no NULLs need to be handled
+     */
+    private NullOrdering getNullOrdering(List<OrderBy> ob, Object[] keyValues) {
+        for (int i = 0; i < ob.size(); i++) {
+            String column = ob.get(i).getColumn();
+            if (keyValues[i] == null
+                    || !(primaryKeyColumns.contains(column) || nonNullColumns
+                            .contains(column))) {
+                return nullOrdering;
+            }
         }
-        return executeQuery(sh);
+        return null;
+    }
+
+    /**
+     * Returns the ordering used when fetching pages: the currently set
+     * ordering followed by the primary key columns not already part of it.
+     * The primary key columns act as tie-breakers, making the ordering total.
+     * 
+     * @return list of OrderBys, never empty
+     */
+    public List<OrderBy> getSeekOrderBys() {
+        List<OrderBy> ob = new ArrayList<OrderBy>();
+        List<String> orderedColumns = new ArrayList<String>();
+        if (orderBys != null) {
+            for (OrderBy o : orderBys) {
+                ob.add(o);
+                orderedColumns.add(o.getColumn());
+            }
+        }
+        for (String colName : primaryKeyColumns) {
+            if (!orderedColumns.contains(colName)) {
+                ob.add(new OrderBy(colName, true));
+            }
+        }
+        return ob;
+    }
+
+    /**
+     * Returns the zero-based position of the row with the given primary key
+     * values in the result set defined by the current filters and ordering,
+     * using a single COUNT query. If the ordering contains columns other than
+     * the primary key columns, the row itself is read first to get its sort
+     * key values.
+     * 
+     * Rows with NULLs in the sorted columns are counted where the database
+     * reports to sort NULLs.
+     * 
+     * @param keys
+     *            the primary key values of the row
+     * @return the position of the row, or -1 if the row does not match the
+     *         current filters or the generator is not an
+     *         {@link ExtendedSQLGenerator}
+     * @throws SQLException
+     */
+    public int getRowPosition(Object... keys) throws SQLException {
+        ExtendedSQLGenerator generator = getExtendedGenerator();
+        if (generator == null) {
+            return -1;
+        }
+        List<OrderBy> ob = getSeekOrderBys();
+        Object[] keyValues = new Object[ob.size()];
+        boolean rowNeeded = false;
+        for (int i = 0; i < ob.size(); i++) {
+            int pkIndex = primaryKeyColumns.indexOf(ob.get(i).getColumn());
+            if (pkIndex >= 0) {
+                keyValues[i] = keys[pkIndex];
+            } else {
+                rowNeeded = true;
+            }
+        }
+        boolean shouldCloseTransaction = false;
+        if (!transactionOpen) {
+            shouldCloseTransaction = true;
+            beginTransaction();
+        }
+        ResultSet rs = null;
+        try {
+            if (rowNeeded) {
+                ArrayList<Filter> filtersAndKeys = new ArrayList<Filter>();
+                if (filters != null) {
+                    filtersAndKeys.addAll(filters);
+                }
+                int ix = 0;
+                for (String colName : primaryKeyColumns) {
+                    filtersAndKeys.add(new Equal(colName, keys[ix]));
+                    ix++;
+                }
+                List<String> columns = new ArrayList<String>();
+                for (OrderBy o : ob) {
+                    columns.add(o.getColumn());
+                }
+                rs = executeQuery(sqlGenerator.generateSelectQuery(tableName,
+                        filtersAndKeys, null, 0, 0,
+                        generator.generateColumnList(columns)));
+                if (!rs.next()) {
+                    return -1;
+                }
+                for (int i = 0; i < ob.size(); i++) {
+                    keyValues[i] = rs.getObject(ob.get(i).getColumn());
+                }
+                StatementCache.closeStatement(rs.getStatement());
+                rs.close();
+                rs = null;
+            }
+            rs = executeQuery(generator.generateRowPositionQuery(tableName,
+                    filters, ob, getNullOrdering(ob, keyValues), keyValues));
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            if (rs != null) {
+                if (rs.getStatement() != null) {
+                    StatementCache.closeStatement(rs.getStatement());
+                }
+                rs.close();
+            }
+            if (shouldCloseTransaction) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Enables or disables keyset (seek) pagination. When enabled, an
+     * SQLContainer using this query fetches pages that directly follow an
+     * already fetched page with {@link #getResultsAfter(Object[], int)}
+     * instead of LIMIT/OFFSET. Pages that are jumped to still use an offset.
+     * 
+     * Rows with NULLs in the sorted columns are placed where the database
+     * reports to sort NULLs. Note that seek pagination is only used with an
+     * {@link ExtendedSQLGenerator}.
+     * 
+     * @param seekPagingEnabled
+     *            true to enable seek pagination
+     */
+    public void setSeekPagingEnabled(boolean seekPagingEnabled) {
+        this.seekPagingEnabled = seekPagingEnabled;
+    }
+
+    /**
+     * Returns whether keyset (seek) pagination is enabled.
+     * 
+     * @return true if seek pagination is enabled
+     */
+    public boolean isSeekPagingEnabled() {
+        return seekPagingEnabled
+                && sqlGenerator instanceof ExtendedSQLGenerator;
     }
 
     /*
@@ -191,6 +691,613 @@ public class TableQuery implements QueryDelegate,
         return result;
     }
 
+    /**
+     * Stores the given rows in the database table. Rows with a temporary row
+     * id are inserted and the others are updated, exactly as with
+     * {@link #storeRow(RowItem)}, but rows that produce the same SQL statement
+     * share one prepared statement. Updates are sent to the database in JDBC
+     * batches of at most {@link #getBatchSize()} rows. Inserts are executed
+     * in the order of the list; consecutive rows with the same columns are
+     * inserted with multi-row INSERT statements of at most
+     * {@link #getBatchSize()} rows if the SQL generator supports them, and the
+     * returned keys are mapped back to the rows in order.
+     * 
+     * @param rows
+     *            the rows to store
+     * @return number of affected rows for each row, in the order of the given
+     *         list. {@link Statement#SUCCESS_NO_INFO} is returned for rows
+     *         whose count the driver did not report, unless a version column
+     *         is set.
+     * @throws OptimisticLockException
+     *             if a version column is set and any of the updates did not
+     *             affect a row. The ids of all such rows are reported; the
+     *             other rows have been stored.
+     * @throws SQLException
+     */
+    public int[] storeRows(List<RowItem> rows) throws SQLException {
+        if (rows == null) {
+            throw new IllegalArgumentException("Rows argument must be non-null.");
+        }
+        int[] results = new int[rows.size()];
+        BatchGroup inserts = new BatchGroup();
+        Map<String, BatchGroup> updates = new LinkedHashMap<String, BatchGroup>();
+        for (int i = 0; i < rows.size(); i++) {
+            RowItem row = rows.get(i);
+            setVersionColumnFlagInProperty(row);
+            if (row.getId() instanceof TemporaryRowId) {
+                inserts.statements.add(sqlGenerator.generateInsertQuery(
+                        tableName, row));
+                inserts.rowIndexes.add(i);
+            } else {
+                addToBatchGroup(updates,
+                        sqlGenerator.generateUpdateQuery(tableName, row), i);
+            }
+        }
+        if (!inserts.statements.isEmpty()) {
+            executeInserts(inserts, rows, results);
+        }
+        for (BatchGroup group : updates.values()) {
+            executeBatchGroup(group, results);
+        }
+        throwIfConflicts(rows, results,
+                "Someone else changed the rows that were being updated.");
+        return results;
+    }
+
+    /**
+     * Removes the given rows from the database table. The deletions are sent
+     * to the database in JDBC batches of at most {@link #getBatchSize()} rows.
+     * 
+     * @param rows
+     *            the rows to remove
+     * @return number of removed rows for each row, in the order of the given
+     *         list. {@link Statement#SUCCESS_NO_INFO} is returned for rows
+     *         whose count the driver did not report, unless a version column
+     *         is set.
+     * @throws OptimisticLockException
+     *             if a version column is set and any of the rows was not
+     *             removed. The ids of all such rows are reported; the other
+     *             rows have been removed.
+     * @throws SQLException
+     */
+    public int[] removeRows(List<RowItem> rows) throws SQLException {
+        if (rows == null) {
+            throw new IllegalArgumentException("Rows argument must be non-null.");
+        }
+        int[] results = new int[rows.size()];
+        Map<String, BatchGroup> deletes = new LinkedHashMap<String, BatchGroup>();
+        for (int i = 0; i < rows.size(); i++) {
+            addToBatchGroup(deletes, sqlGenerator.generateDeleteQuery(
+                    getTableName(), primaryKeyColumns, versionColumn,
+                    rows.get(i)), i);
+        }
+        for (BatchGroup group : deletes.values()) {
+            executeBatchGroup(group, results);
+        }
+        throwIfConflicts(rows, results,
+                "Someone else changed the rows that were being deleted.");
+        return results;
+    }
+
+    /**
+     * Removes all the rows that pass the currently set filters. Without a
+     * version column this is a single "DELETE FROM table WHERE filters"
+     * statement. With a version column the keys and versions of the rows are
+     * read first and the rows are removed with
+     * {@link #removeRowsByKey(Map)}, so that rows changed by someone else are
+     * detected.
+     * 
+     * @return the number of removed rows
+     * @throws OptimisticLockException
+     *             if a version column is set and some of the rows were changed
+     *             by someone else
+     * @throws UnsupportedOperationException
+     *             if the generator is not an {@link ExtendedSQLGenerator}
+     * @throws SQLException
+     */
+    public int removeAllRows() throws SQLException {
+        ExtendedSQLGenerator generator = requireExtendedGenerator();
+        if (versionColumn != null) {
+            return removeRowsByKey(getRowIdsAndVersions());
+        }
+        debug("Removing all rows");
+        return executeUpdate(generator.generateDeleteQuery(tableName, filters));
+    }
+
+    /**
+     * Reads the ids of all the rows that pass the currently set filters, and
+     * the values of their version column. Only the primary key and version
+     * columns are selected.
+     * 
+     * @return the ids of the rows mapped to their versions, or to null if no
+     *         version column is set
+     * @throws SQLException
+     */
+    public Map<RowId, Object> getRowIdsAndVersions() throws SQLException {
+        return getRowIdsAndVersions(0, 0);
+    }
+
+    /**
+     * Reads the ids and versions of a page of the rows passing the current
+     * filters, in the order of {@link #getResults(int, int)}. Only the primary
+     * key and version columns are selected.
+     * 
+     * @param offset
+     *            the first row of the page
+     * @param pagelength
+     *            the length of the page, 0 for all rows
+     * @return the ids of the rows mapped to their versions, or to null if no
+     *         version column is set
+     * @throws SQLException
+     */
+    public Map<RowId, Object> getRowIdsAndVersions(int offset, int pagelength)
+            throws SQLException {
+        boolean shouldCloseTransaction = false;
+        if (!transactionOpen) {
+            shouldCloseTransaction = true;
+            beginTransaction();
+        }
+        Map<RowId, Object> rows = new LinkedHashMap<RowId, Object>();
+        ResultSet rs = getPrimaryKeyResults(offset, pagelength, true);
+        try {
+            while (rs.next()) {
+                Object[] key = new Object[primaryKeyColumns.size()];
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = rs.getObject(primaryKeyColumns.get(i));
+                }
+                rows.put(new RowId(key), versionColumn == null ? null : rs
+                        .getObject(versionColumn));
+            }
+        } finally {
+            StatementCache.closeStatement(rs.getStatement());
+            rs.close();
+        }
+        if (shouldCloseTransaction) {
+            commit();
+        }
+        return rows;
+    }
+
+    /**
+     * Removes the rows with the given ids in chunks of at most
+     * {@link #getBatchSize()} rows, using "DELETE ... WHERE pk IN (...)". With
+     * a composite primary key the rows are matched with
+     * "(pk1 = ? AND pk2 = ?) OR ...". With a version column each row is
+     * deleted with "WHERE pk = ? AND version = ?", sent in JDBC batches, so
+     * that the rows failing the version check can be identified.
+     * 
+     * @param rows
+     *            ids of the rows mapped to their versions. The versions are
+     *            ignored if no version column is set.
+     * @return the number of removed rows
+     * @throws OptimisticLockException
+     *             if a version column is set and some of the rows were not
+     *             removed. The ids of all such rows are reported.
+     * @throws UnsupportedOperationException
+     *             if rows are given and the generator is not an
+     *             {@link ExtendedSQLGenerator}
+     * @throws SQLException
+     */
+    public int removeRowsByKey(Map<RowId, Object> rows) throws SQLException {
+        if (rows == null) {
+            throw new IllegalArgumentException("Rows argument must be non-null.");
+        }
+        if (versionColumn != null) {
+            return removeVersionedRowsByKey(rows);
+        }
+        int removed = 0;
+        int chunkSize = Math.min(batchSize, getMaxKeysPerQuery());
+        List<RowId> chunk = new ArrayList<RowId>();
+        for (RowId id : rows.keySet()) {
+            chunk.add(id);
+            if (chunk.size() == chunkSize) {
+                removed += removeKeyChunk(chunk);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            removed += removeKeyChunk(chunk);
+        }
+        return removed;
+    }
+
+    private int removeKeyChunk(List<RowId> chunk) throws SQLException {
+        Filter filter;
+        if (primaryKeyColumns.size() == 1) {
+            List<Object> values = new ArrayList<Object>();
+            for (RowId id : chunk) {
+                values.add(id.getId()[0]);
+            }
+            filter = new In(primaryKeyColumns.get(0), values);
+        } else {
+            Filter[] rowFilters = new Filter[chunk.size()];
+            for (int i = 0; i < rowFilters.length; i++) {
+                rowFilters[i] = getKeyFilter(chunk.get(i).getId(), null);
+            }
+            filter = rowFilters.length == 1 ? rowFilters[0] : new Or(
+                    rowFilters);
+        }
+        return executeUpdate(requireExtendedGenerator().generateDeleteQuery(
+                tableName, Collections.singletonList(filter)));
+    }
+
+    private int removeVersionedRowsByKey(Map<RowId, Object> rows)
+            throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        ExtendedSQLGenerator generator = requireExtendedGenerator();
+        List<RowId> ids = new ArrayList<RowId>(rows.keySet());
+        int[] results = new int[ids.size()];
+        BatchGroup deletes = new BatchGroup();
+        for (int i = 0; i < ids.size(); i++) {
+            deletes.statements.add(generator.generateDeleteQuery(tableName,
+                    Collections.singletonList(getKeyFilter(ids.get(i)
+                            .getId(), rows.get(ids.get(i))))));
+            deletes.rowIndexes.add(i);
+        }
+        executeBatchGroup(deletes, results);
+        List<RowId> conflicts = new ArrayList<RowId>();
+        int removed = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == 0) {
+                conflicts.add(ids.get(i));
+            } else if (results[i] > 0) {
+                removed += results[i];
+            }
+        }
+        if (!conflicts.isEmpty()) {
+            throw new OptimisticLockException(
+                    "Someone else changed the rows that were being deleted.",
+                    conflicts);
+        }
+        return removed;
+    }
+
+    /**
+     * Returns a filter matching the row with the given primary key values,
+     * and the given version if a version column is set.
+     */
+    private Filter getKeyFilter(Object[] key, Object version) {
+        List<Filter> columns = new ArrayList<Filter>();
+        for (int j = 0; j < primaryKeyColumns.size(); j++) {
+            columns.add(new Equal(primaryKeyColumns.get(j), key[j]));
+        }
+        if (versionColumn != null) {
+            columns.add(new Equal(versionColumn, version));
+        }
+        return new And(columns.toArray(new Filter[0]));
+    }
+
+    /**
+     * Throws an OptimisticLockException listing the rows whose update count
+     * is zero, if a version column is set.
+     */
+    private void throwIfConflicts(List<RowItem> rows, int[] results,
+            String message) {
+        if (versionColumn == null) {
+            return;
+        }
+        List<RowId> conflicts = new ArrayList<RowId>();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == 0) {
+                conflicts.add(rows.get(i).getId());
+            }
+        }
+        if (!conflicts.isEmpty()) {
+            throw new OptimisticLockException(message, conflicts);
+        }
+    }
+
+    /**
+     * Enables or disables the reuse of prepared statements. When enabled (the
+     * default), the statements executed by this query are kept open in the
+     * {@link StatementCache} of the connection they were prepared on, so that
+     * page fetches, counts and row updates with identical SQL are not parsed
+     * again while the connection lives. Statements are only cached for the
+     * connections of pools that enable caching, such as
+     * {@link com.vaadin.addon.sqlcontainer.connection.SimpleJDBCConnectionPool}.
+     * 
+     * @param statementCacheEnabled
+     *            true to reuse prepared statements
+     */
+    public void setStatementCacheEnabled(boolean statementCacheEnabled) {
+        this.statementCacheEnabled = statementCacheEnabled;
+    }
+
+    /**
+     * Returns whether prepared statements are reused.
+     * 
+     * @return true if the statement cache is enabled
+     */
+    public boolean isStatementCacheEnabled() {
+        return statementCacheEnabled;
+    }
+
+    /**
+     * Sets the maximum number of rows sent to the database in one JDBC batch
+     * by {@link #storeRows(List)} and {@link #removeRows(List)}. A batch size
+     * of one sends every row separately, but still reuses the prepared
+     * statement.
+     * 
+     * @param batchSize
+     *            the batch size, at least one
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Batch size must be at least one.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the maximum number of rows sent to the database in one JDBC
+     *         batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Statements and the indexes of the rows they were generated for. The
+     * statements of a group in a batch map share the same SQL.
+     */
+    private static class BatchGroup {
+        private final List<StatementHelper> statements = new ArrayList<StatementHelper>();
+        private final List<Integer> rowIndexes = new ArrayList<Integer>();
+    }
+
+    private static void addToBatchGroup(Map<String, BatchGroup> groups,
+            StatementHelper sh, int rowIndex) {
+        BatchGroup group = groups.get(sh.getQueryString());
+        if (group == null) {
+            group = new BatchGroup();
+            groups.put(sh.getQueryString(), group);
+        }
+        group.statements.add(sh);
+        group.rowIndexes.add(rowIndex);
+    }
+
+    /**
+     * Executes the statements of the group in JDBC batches using either the
+     * active connection if a transaction is already open, or a new connection
+     * from this query's connection pool. The update counts are stored in the
+     * results array at the row indexes of the group.
+     * 
+     * If a version column is set, the conflicts are detected from the update
+     * counts, so drivers that return {@link Statement#SUCCESS_NO_INFO} for a
+     * batch can not be trusted with versioned statements. Such a batch is
+     * rolled back to a savepoint set before it and executed again row by row,
+     * and the later versioned statements of this query are not batched at
+     * all. They are not batched either if a savepoint can not be set.
+     */
+    private void executeBatchGroup(BatchGroup group, int[] results)
+            throws SQLException {
+        String sql = group.statements.get(0).getQueryString();
+        Connection c = null;
+        PreparedStatement pstmt = null;
+        try {
+            if (transactionOpen && activeConnection != null) {
+                c = activeConnection;
+            } else {
+                c = connectionPool.reserveConnection();
+            }
+            pstmt = prepareStatement(c, sql, null);
+            int size = group.statements.size();
+            for (int start = 0; start < size; start += batchSize) {
+                int end = Math.min(start + batchSize, size);
+                Savepoint savepoint = null;
+                if (versionColumn != null) {
+                    savepoint = batchCountsReported ? setSavepoint(c) : null;
+                    if (savepoint == null) {
+                        executeOneByOne(pstmt, group, start, end, results);
+                        continue;
+                    }
+                }
+                for (int i = start; i < end; i++) {
+                    group.statements.get(i)
+                            .setParameterValuesToStatement(pstmt);
+                    pstmt.addBatch();
+                }
+                debug("DB -> " + sql + " (batch of " + (end - start) + ")");
+                int[] counts = pstmt.executeBatch();
+                if (savepoint != null) {
+                    boolean reported = true;
+                    for (int count : counts) {
+                        reported &= count != Statement.SUCCESS_NO_INFO;
+                    }
+                    if (!reported) {
+                        batchCountsReported = false;
+                        c.rollback(savepoint);
+                    }
+                    releaseSavepoint(c, savepoint);
+                    if (!reported) {
+                        executeOneByOne(pstmt, group, start, end, results);
+                        continue;
+                    }
+                }
+                for (int j = 0; j < counts.length; j++) {
+                    results[group.rowIndexes.get(start + j)] = counts[j];
+                }
+            }
+        } finally {
+            if (pstmt != null) {
+                StatementCache.closeStatement(pstmt);
+            }
+            if (!transactionOpen) {
+                connectionPool.releaseConnection(c);
+            }
+        }
+    }
+
+    /**
+     * Executes the statements of the group from start (inclusive) to end
+     * (exclusive) one at a time with the given prepared statement.
+     */
+    private void executeOneByOne(PreparedStatement pstmt, BatchGroup group,
+            int start, int end, int[] results) throws SQLException {
+        for (int i = start; i < end; i++) {
+            StatementHelper sh = group.statements.get(i);
+            sh.setParameterValuesToStatement(pstmt);
+            debug("DB -> " + sh.getQueryString());
+            results[group.rowIndexes.get(i)] = pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Sets a savepoint in the given connection, or returns null if the
+     * connection does not support savepoints.
+     */
+    private static Savepoint setSavepoint(Connection c) {
+        try {
+            if (c.getAutoCommit() || !c.getMetaData().supportsSavepoints()) {
+                return null;
+            }
+            return c.setSavepoint(BATCH_SAVEPOINT);
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Releases the given savepoint. Not all drivers support releasing
+     * savepoints; they are released at the end of the transaction anyway.
+     */
+    private static void releaseSavepoint(Connection c, Savepoint savepoint) {
+        try {
+            c.releaseSavepoint(savepoint);
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * Executes the insert statements in the given order and adds a
+     * RowIdChangeEvent for each inserted row to the event buffer.
+     * Consecutive rows with the same columns are inserted with one multi-row
+     * INSERT of at most {@link #getBatchSize()} rows, if the SQL generator
+     * supports it. Otherwise the rows are inserted one by one, reusing one
+     * prepared statement for each distinct SQL string.
+     */
+    private void executeInserts(BatchGroup inserts, List<RowItem> rows,
+            int[] results) throws SQLException {
+        Connection c = null;
+        Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        try {
+            if (transactionOpen && activeConnection != null) {
+                c = activeConnection;
+            } else {
+                c = connectionPool.reserveConnection();
+            }
+            int start = 0;
+            while (start < inserts.statements.size()) {
+                String sql = inserts.statements.get(start).getQueryString();
+                int end = start + 1;
+                while (end < inserts.statements.size()
+                        && end - start < batchSize
+                        && inserts.statements.get(end).getQueryString()
+                                .equals(sql)) {
+                    end++;
+                }
+                List<RowItem> chunk = new ArrayList<RowItem>();
+                for (int i = start; i < end; i++) {
+                    chunk.add(rows.get(inserts.rowIndexes.get(i)));
+                }
+                StatementHelper multiRow = null;
+                if (chunk.size() > 1 && getExtendedGenerator() != null) {
+                    multiRow = getExtendedGenerator()
+                            .generateMultiRowInsertQuery(tableName, chunk,
+                                    primaryKeyColumns);
+                }
+                if (multiRow != null) {
+                    executeMultiRowInsert(c, multiRow, chunk);
+                    for (int i = start; i < end; i++) {
+                        results[inserts.rowIndexes.get(i)] = 1;
+                    }
+                } else {
+                    for (int i = start; i < end; i++) {
+                        StatementHelper sh = inserts.statements.get(i);
+                        PreparedStatement pstmt = statements.get(sql);
+                        if (pstmt == null) {
+                            pstmt = prepareStatement(c, sql,
+                                    primaryKeyColumns.toArray(new String[0]));
+                            statements.put(sql, pstmt);
+                        }
+                        int rowIndex = inserts.rowIndexes.get(i);
+                        RowItem row = rows.get(rowIndex);
+                        sh.setParameterValuesToStatement(pstmt);
+                        debug("DB -> " + sql);
+                        results[rowIndex] = pstmt.executeUpdate();
+                        ResultSet genKeys = pstmt.getGeneratedKeys();
+                        try {
+                            RowId newId = getNewRowId(row, genKeys);
+                            bufferedEvents.add(new RowIdChangeEvent(row
+                                    .getId(), newId));
+                        } finally {
+                            genKeys.close();
+                        }
+                    }
+                }
+                start = end;
+            }
+        } finally {
+            for (PreparedStatement pstmt : statements.values()) {
+                StatementCache.closeStatement(pstmt);
+            }
+            if (!transactionOpen) {
+                connectionPool.releaseConnection(c);
+            }
+        }
+    }
+
+    /**
+     * Executes a multi-row insert and maps the returned keys, in order, to
+     * the given rows. A RowIdChangeEvent is added to the event buffer for each
+     * row.
+     * 
+     * @throws SQLException
+     *             if the database did not return the keys of every row
+     */
+    private void executeMultiRowInsert(Connection c, StatementHelper sh,
+            List<RowItem> rows) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet keys = null;
+        try {
+            debug("DB -> " + sh.getQueryString());
+            if (getExtendedGenerator().isInsertReturningKeys()) {
+                pstmt = prepareStatement(c, sh.getQueryString(), null);
+                sh.setParameterValuesToStatement(pstmt);
+                keys = pstmt.executeQuery();
+            } else {
+                pstmt = prepareStatement(c, sh.getQueryString(),
+                        primaryKeyColumns.toArray(new String[0]));
+                sh.setParameterValuesToStatement(pstmt);
+                pstmt.executeUpdate();
+                keys = pstmt.getGeneratedKeys();
+            }
+            List<Map<String, Object>> keyValues = new ArrayList<Map<String, Object>>();
+            while (keys.next()) {
+                keyValues.add(readKeyValues(keys));
+            }
+            if (keyValues.size() != rows.size()) {
+                throw new SQLException("Expected keys of " + rows.size()
+                        + " inserted rows, got " + keyValues.size());
+            }
+            for (int i = 0; i < rows.size(); i++) {
+                RowItem row = rows.get(i);
+                bufferedEvents.add(new RowIdChangeEvent(row.getId(),
+                        getNewRowId(row, keyValues.get(i))));
+            }
+        } finally {
+            if (keys != null) {
+                keys.close();
+            }
+            if (pstmt != null) {
+                StatementCache.closeStatement(pstmt);
+            }
+        }
+    }
+
     private void setVersionColumnFlagInProperty(RowItem row) {
         ColumnProperty versionProperty = (ColumnProperty) row
                 .getItemProperty(versionColumn);
@@ -217,7 +1324,7 @@ public class TableQuery implements QueryDelegate,
         setVersionColumnFlagInProperty(row);
         /* Generate query */
         StatementHelper sh = sqlGenerator.generateInsertQuery(tableName, row);
-        PreparedStatement pstmt = activeConnection.prepareStatement(
+        PreparedStatement pstmt = prepareStatement(activeConnection,
                 sh.getQueryString(), primaryKeyColumns.toArray(new String[0]));
         sh.setParameterValuesToStatement(pstmt);
         debug("DB -> " + sh.getQueryString());
@@ -230,13 +1337,11 @@ public class TableQuery implements QueryDelegate,
             ResultSet generatedKeys = pstmt.getGeneratedKeys();
             RowId newId = getNewRowId(row, generatedKeys);
             generatedKeys.close();
-            pstmt.clearParameters();
-            pstmt.close();
+            StatementCache.closeStatement(pstmt);
             commit();
             return newId;
         } else {
-            pstmt.clearParameters();
-            pstmt.close();
+            StatementCache.closeStatement(pstmt);
             /* On failure return null */
             return null;
         }
@@ -360,6 +1465,33 @@ public class TableQuery implements QueryDelegate,
         return sqlGenerator;
     }
 
+    public JDBCConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL from the statement cache
+     * of the connection, or a new statement if the cache is disabled or the
+     * connection pool does not cache statements. The
+     * statement must be released with
+     * {@link StatementCache#closeStatement(java.sql.Statement)}.
+     * 
+     * @param keyColumns
+     *            the generated key columns to return, or null
+     */
+    private PreparedStatement prepareStatement(Connection c, String sql,
+            String[] keyColumns) throws SQLException {
+        StatementCache cache = statementCacheEnabled ? StatementCache
+                .forConnection(c) : null;
+        if (cache != null) {
+            return cache.prepare(sql, keyColumns);
+        }
+        if (keyColumns == null) {
+            return c.prepareStatement(sql);
+        }
+        return c.prepareStatement(sql, keyColumns);
+    }
+
     /**
      * Executes the given query string using either the active connection if a
      * transaction is already open, or a new connection from this query's
@@ -378,12 +1510,83 @@ public class TableQuery implements QueryDelegate,
         } else {
             throw new SQLException("No active transaction!");
         }
-        PreparedStatement pstmt = c.prepareStatement(sh.getQueryString());
+        PreparedStatement pstmt = prepareStatement(c, sh.getQueryString(),
+                null);
         sh.setParameterValuesToStatement(pstmt);
         debug("DB -> " + sh.getQueryString());
         return pstmt.executeQuery();
     }
 
+    /**
+     * Executes the given query in a transaction of its own, on a connection
+     * reserved from the connection pool for the duration of the call, and
+     * passes the results to the given reader. The transaction is committed, or
+     * rolled back on failure, and the connection released before returning.
+     * 
+     * The transaction and the statement cache of this TableQuery are not
+     * used, so this method may be called from a background thread while the
+     * TableQuery is used elsewhere.
+     * 
+     * @param sh
+     *            an instance of StatementHelper, containing the query string
+     *            and parameter values.
+     * @param reader
+     *            reads the results
+     * @return the value returned by the reader
+     * @throws SQLException
+     */
+    public <T> T executeDetachedQuery(StatementHelper sh,
+            ResultReader<T> reader) throws SQLException {
+        Connection c = connectionPool.reserveConnection();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        boolean committed = false;
+        try {
+            c.setAutoCommit(false);
+            pstmt = c.prepareStatement(sh.getQueryString());
+            sh.setParameterValuesToStatement(pstmt);
+            debug("DB -> " + sh.getQueryString());
+            rs = pstmt.executeQuery();
+            T result = reader.read(rs);
+            rs.close();
+            rs = null;
+            c.commit();
+            committed = true;
+            return result;
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (!committed) {
+                    c.rollback();
+                }
+            } catch (SQLException e) {
+                /* The original failure is more interesting. */
+                debug(e.getMessage());
+            } finally {
+                connectionPool.releaseConnection(c);
+            }
+        }
+    }
+
+    /**
+     * Reads the results of a query executed with
+     * {@link TableQuery#executeDetachedQuery(StatementHelper, ResultReader)}.
+     */
+    public interface ResultReader<T> {
+        /**
+         * @param rs
+         *            the results, positioned before the first row
+         * @return the value read
+         * @throws SQLException
+         */
+        T read(ResultSet rs) throws SQLException;
+    }
+
     /**
      * Executes the given update query string using either the active connection
      * if a transaction is already open, or a new connection from this query's
@@ -404,15 +1607,14 @@ public class TableQuery implements QueryDelegate,
             } else {
                 c = connectionPool.reserveConnection();
             }
-            pstmt = c.prepareStatement(sh.getQueryString());
+            pstmt = prepareStatement(c, sh.getQueryString(), null);
             sh.setParameterValuesToStatement(pstmt);
             debug("DB -> " + sh.getQueryString());
             int retval = pstmt.executeUpdate();
             return retval;
         } finally {
             if (pstmt != null) {
-                pstmt.clearParameters();
-                pstmt.close();
+                StatementCache.closeStatement(pstmt);
             }
             if (!transactionOpen) {
                 connectionPool.releaseConnection(c);
@@ -446,7 +1648,7 @@ public class TableQuery implements QueryDelegate,
             } else {
                 c = connectionPool.reserveConnection();
             }
-            pstmt = c.prepareStatement(sh.getQueryString(),
+            pstmt = prepareStatement(c, sh.getQueryString(),
                     primaryKeyColumns.toArray(new String[0]));
             sh.setParameterValuesToStatement(pstmt);
             debug("DB -> " + sh.getQueryString());
@@ -460,8 +1662,7 @@ public class TableQuery implements QueryDelegate,
                 genKeys.close();
             }
             if (pstmt != null) {
-                pstmt.clearParameters();
-                pstmt.close();
+                StatementCache.closeStatement(pstmt);
             }
             if (!transactionOpen) {
                 connectionPool.releaseConnection(c);
@@ -472,7 +1673,8 @@ public class TableQuery implements QueryDelegate,
     /**
      * Fetches name(s) of primary key column(s) from DB metadata.
      * 
-     * Also tries to get the escape string to be used in search strings.
+     * Also tries to get the escape string to be used in search strings, and
+     * reads where NULLs are sorted and which columns can not be NULL.
      */
     private void fetchMetaData() {
         Connection c = null;
@@ -504,6 +1706,15 @@ public class TableQuery implements QueryDelegate,
                 if (!names.isEmpty()) {
                     primaryKeyColumns = names;
                 }
+                rs = dbmd.getColumns(null, null, tableName, null);
+                while (rs.next()) {
+                    int nullable = rs.getInt("NULLABLE");
+                    if (nullable == DatabaseMetaData.columnNoNulls) {
+                        nonNullColumns.add(rs.getString("COLUMN_NAME"));
+                    }
+                }
+                rs.close();
+                nullOrdering = NullOrdering.of(dbmd);
                 if (primaryKeyColumns == null || primaryKeyColumns.isEmpty()) {
                     throw new IllegalArgumentException(
                             "Primary key constraints have not been defined for the table \""
@@ -531,14 +1742,36 @@ public class TableQuery implements QueryDelegate,
     private RowId getNewRowId(RowItem row, ResultSet genKeys) {
         try {
             /* Fetch primary key values and generate a map out of them. */
-            Map<String, Object> values = new HashMap<String, Object>();
-            ResultSetMetaData rsmd = genKeys.getMetaData();
-            int colCount = rsmd.getColumnCount();
+            Map<String, Object> values;
             if (genKeys.next()) {
-                for (int i = 1; i <= colCount; i++) {
-                    values.put(rsmd.getColumnName(i), genKeys.getObject(i));
-                }
+                values = readKeyValues(genKeys);
+            } else {
+                values = new HashMap<String, Object>();
             }
+            return getNewRowId(row, values);
+        } catch (Exception e) {
+            debug("Failed to fetch key values on insert: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the key values of the current row of the result set into a map
+     * keyed by column name.
+     */
+    private Map<String, Object> readKeyValues(ResultSet keys)
+            throws SQLException {
+        Map<String, Object> values = new HashMap<String, Object>();
+        ResultSetMetaData rsmd = keys.getMetaData();
+        int colCount = rsmd.getColumnCount();
+        for (int i = 1; i <= colCount; i++) {
+            values.put(rsmd.getColumnName(i), keys.getObject(i));
+        }
+        return values;
+    }
+
+    private RowId getNewRowId(RowItem row, Map<String, Object> values) {
+        try {
             /* Generate new RowId */
             List<Object> newRowId = new ArrayList<Object>();
             if (values.size() == 1) {
@@ -607,7 +1840,7 @@ public class TableQuery implements QueryDelegate,
             ix++;
         }
         StatementHelper sh = sqlGenerator.generateSelectQuery(tableName,
-                filtersAndKeys, orderBys, 0, 0, "*");
+                filtersAndKeys, null, 0, 0, getPrimaryKeyColumnList(false));
 
         boolean shouldCloseTransaction = false;
         if (!transactionOpen) {
@@ -622,7 +1855,7 @@ public class TableQuery implements QueryDelegate,
         } finally {
             if (rs != null) {
                 if (rs.getStatement() != null) {
-                    rs.getStatement().close();
+                    StatementCache.closeStatement(rs.getStatement());
                 }
                 rs.close();
             }
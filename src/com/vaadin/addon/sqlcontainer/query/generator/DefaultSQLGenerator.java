@@ -1,6 +1,12 @@
 package com.vaadin.addon.sqlcontainer.query.generator;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -12,6 +18,13 @@ import com.vaadin.addon.sqlcontainer.query.OrderBy;
 import com.vaadin.addon.sqlcontainer.query.generator.filter.QueryBuilder;
 import com.vaadin.addon.sqlcontainer.query.generator.filter.StringDecorator;
 import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Compare.Equal;
+import com.vaadin.data.util.filter.Compare.Greater;
+import com.vaadin.data.util.filter.Compare.Less;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
 
 /**
  * Generates generic SQL that is supported by HSQLDB, MySQL and PostgreSQL.
@@ -19,7 +32,27 @@ import com.vaadin.data.Container.Filter;
  * @author Jonatan Kronqvist / IT Mill Ltd
  */
 @SuppressWarnings("serial")
-public class DefaultSQLGenerator implements SQLGenerator {
+public class DefaultSQLGenerator implements ExtendedSQLGenerator {
+
+    /** Maximum number of cached UPDATE query strings */
+    private static final int MAX_CACHED_UPDATE_QUERIES = 256;
+
+    /**
+     * UPDATE query strings by table, updated columns, row identifier columns
+     * and quoting, least recently used first.
+     */
+    private final Map<List<Object>, String> updateQueries = Collections
+            .synchronizedMap(new LinkedHashMap<List<Object>, String>(16,
+                    0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<List<Object>, String> eldest) {
+                    return size() > MAX_CACHED_UPDATE_QUERIES;
+                }
+            });
+
+    /** Multi-row INSERT queries, disabled by default */
+    private boolean multiRowInsertEnabled = false;
 
     public DefaultSQLGenerator() {
 
@@ -74,6 +107,119 @@ public class DefaultSQLGenerator implements SQLGenerator {
         return sh;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator#
+     * generateColumnList(java.util.List)
+     */
+    public String generateColumnList(List<String> columns) {
+        if (columns == null || columns.isEmpty()) {
+            throw new IllegalArgumentException("Columns must be given.");
+        }
+        StringBuffer list = new StringBuffer();
+        for (String column : columns) {
+            if (list.length() > 0) {
+                list.append(", ");
+            }
+            list.append(QueryBuilder.quote(column));
+        }
+        return list.toString();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator#
+     * generateSeekQuery(java.lang.String, java.util.List, java.util.List,
+     * com.vaadin.addon.sqlcontainer.query.generator.NullOrdering,
+     * java.lang.Object[], int, java.lang.String)
+     */
+    public StatementHelper generateSeekQuery(String tableName,
+            List<Filter> filters, List<OrderBy> orderBys,
+            NullOrdering nullOrdering, Object[] lastKeyValues, int pagelength,
+            String toSelect) {
+        if (orderBys == null || orderBys.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Ordering must be given for a seek query.");
+        }
+        if (lastKeyValues == null || lastKeyValues.length != orderBys.size()) {
+            throw new IllegalArgumentException(
+                    "A key value must be given for each ordering column.");
+        }
+        List<Filter> seekFilters = new ArrayList<Filter>();
+        if (filters != null) {
+            seekFilters.addAll(filters);
+        }
+        seekFilters.add(generateSeekFilter(orderBys, nullOrdering,
+                lastKeyValues, true));
+        /*
+         * The seek condition replaces the offset, so the dialect specific
+         * paging of generateSelectQuery is reused with an offset of zero.
+         */
+        return generateSelectQuery(tableName, seekFilters, orderBys, 0,
+                pagelength, toSelect);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator#
+     * generateRowPositionQuery(java.lang.String, java.util.List,
+     * java.util.List,
+     * com.vaadin.addon.sqlcontainer.query.generator.NullOrdering,
+     * java.lang.Object[])
+     */
+    public StatementHelper generateRowPositionQuery(String tableName,
+            List<Filter> filters, List<OrderBy> orderBys,
+            NullOrdering nullOrdering, Object[] keyValues) {
+        if (orderBys == null || orderBys.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Ordering must be given for a row position query.");
+        }
+        if (keyValues == null || keyValues.length != orderBys.size()) {
+            throw new IllegalArgumentException(
+                    "A key value must be given for each ordering column.");
+        }
+        List<Filter> positionFilters = new ArrayList<Filter>();
+        if (filters != null) {
+            positionFilters.addAll(filters);
+        }
+        positionFilters.add(generateSeekFilter(orderBys, nullOrdering,
+                keyValues, false));
+        return generateSelectQuery(tableName, positionFilters, null, 0, 0,
+                "COUNT(*)");
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator#
+     * generateEstimatedCountQuery(java.lang.String, java.util.List)
+     */
+    public StatementHelper generateEstimatedCountQuery(String tableName,
+            List<Filter> filters) {
+        /* No generic way to estimate, the exact count is used. */
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator#
+     * readEstimatedCount(java.sql.ResultSet)
+     */
+    public int readEstimatedCount(ResultSet rs) throws SQLException {
+        if (!rs.next()) {
+            return -1;
+        }
+        long estimate = rs.getLong(1);
+        if (rs.wasNull() || estimate < 0) {
+            return -1;
+        }
+        return (int) Math.min(estimate, Integer.MAX_VALUE);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -89,38 +235,73 @@ public class DefaultSQLGenerator implements SQLGenerator {
             throw new IllegalArgumentException("Updated item must be given.");
         }
         StatementHelper sh = new StatementHelper();
-        StringBuffer query = new StringBuffer();
-        query.append("UPDATE ").append(tableName).append(" SET");
 
         /* Generate column<->value and rowidentifiers map */
         Map<String, Object> columnToValueMap = generateColumnToValueMap(item);
         Map<String, Object> rowIdentifiers = generateRowIdentifiers(item);
-        /* Generate columns and values to update */
-        boolean first = true;
+        /*
+         * Only update the modified columns. If none of them has been modified,
+         * all of them are written.
+         */
+        List<String> columns = new ArrayList<String>();
         for (String column : columnToValueMap.keySet()) {
+            if (((ColumnProperty) item.getItemProperty(column)).isModified()) {
+                columns.add(column);
+            }
+        }
+        if (columns.isEmpty()) {
+            columns.addAll(columnToValueMap.keySet());
+        }
+        Collections.sort(columns);
+        List<String> identifiers = new ArrayList<String>(
+                rowIdentifiers.keySet());
+        Collections.sort(identifiers);
+
+        /* Reuse the query string generated for the same set of columns */
+        List<Object> shape = Arrays.asList(tableName, columns, identifiers,
+                QueryBuilder.quote(""));
+        String query = updateQueries.get(shape);
+        if (query == null) {
+            query = generateUpdateQueryString(tableName, columns, identifiers);
+            updateQueries.put(shape, query);
+        }
+        for (String column : columns) {
+            sh.addParameterValue(columnToValueMap.get(column), item
+                    .getItemProperty(column).getType());
+        }
+        for (String column : identifiers) {
+            sh.addParameterValue(rowIdentifiers.get(column), item
+                    .getItemProperty(column).getType());
+        }
+        sh.setQueryString(query);
+        return sh;
+    }
+
+    private String generateUpdateQueryString(String tableName,
+            List<String> columns, List<String> identifiers) {
+        StringBuffer query = new StringBuffer();
+        query.append("UPDATE ").append(tableName).append(" SET");
+        /* Generate columns to update */
+        boolean first = true;
+        for (String column : columns) {
             if (first) {
                 query.append(" " + QueryBuilder.quote(column) + " = ?");
             } else {
                 query.append(", " + QueryBuilder.quote(column) + " = ?");
             }
-            sh.addParameterValue(columnToValueMap.get(column), item
-                    .getItemProperty(column).getType());
             first = false;
         }
         /* Generate identifiers for the row to be updated */
         first = true;
-        for (String column : rowIdentifiers.keySet()) {
+        for (String column : identifiers) {
             if (first) {
                 query.append(" WHERE " + QueryBuilder.quote(column) + " = ?");
             } else {
                 query.append(" AND " + QueryBuilder.quote(column) + " = ?");
             }
-            sh.addParameterValue(rowIdentifiers.get(column), item
-                    .getItemProperty(column).getType());
             first = false;
         }
-        sh.setQueryString(query.toString());
-        return sh;
+        return query.toString();
     }
 
     /*
@@ -174,6 +355,110 @@ public class DefaultSQLGenerator implements SQLGenerator {
         return sh;
     }
 
+    /**
+     * Enables or disables the generation of multi-row INSERT queries. While
+     * disabled (the default),
+     * {@link #generateMultiRowInsertQuery(String, List, List)} returns null and
+     * new rows are inserted one by one. Only enable this if the database and
+     * its JDBC driver return the generated keys of every row inserted by one
+     * statement, in the order of the rows.
+     * 
+     * @param multiRowInsertEnabled
+     *            true to generate multi-row INSERT queries
+     */
+    public void setMultiRowInsertEnabled(boolean multiRowInsertEnabled) {
+        this.multiRowInsertEnabled = multiRowInsertEnabled;
+    }
+
+    /**
+     * @return true if multi-row INSERT queries are generated
+     */
+    public boolean isMultiRowInsertEnabled() {
+        return multiRowInsertEnabled;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator#
+     * generateMultiRowInsertQuery(java.lang.String, java.util.List,
+     * java.util.List)
+     */
+    public StatementHelper generateMultiRowInsertQuery(String tableName,
+            List<RowItem> items, List<String> keyColumns) {
+        if (tableName == null || tableName.trim().equals("")) {
+            throw new IllegalArgumentException("Table name must be given.");
+        }
+        if (items == null || items.isEmpty()) {
+            throw new IllegalArgumentException("New items must be given.");
+        }
+        List<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+        for (RowItem item : items) {
+            if (!(item.getId() instanceof TemporaryRowId)) {
+                throw new IllegalArgumentException(
+                        "Cannot generate an insert query for item already in database.");
+            }
+            Map<String, Object> columnToValueMap = generateColumnToValueMap(item);
+            if (!values.isEmpty()
+                    && !columnToValueMap.keySet().equals(
+                            values.get(0).keySet())) {
+                throw new IllegalArgumentException(
+                        "All items must have the same columns.");
+            }
+            values.add(columnToValueMap);
+        }
+        if (!multiRowInsertEnabled) {
+            return null;
+        }
+        List<String> columns = new ArrayList<String>(values.get(0).keySet());
+        Collections.sort(columns);
+        StatementHelper sh = new StatementHelper();
+        StringBuffer query = new StringBuffer();
+        query.append("INSERT INTO ").append(tableName).append(" (");
+        query.append(generateColumnList(columns)).append(") VALUES ");
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                query.append(", ");
+            }
+            query.append("(");
+            for (int j = 0; j < columns.size(); j++) {
+                if (j > 0) {
+                    query.append(", ");
+                }
+                query.append("?");
+                sh.addParameterValue(values.get(i).get(columns.get(j)), items
+                        .get(i).getItemProperty(columns.get(j)).getType());
+            }
+            query.append(")");
+        }
+        query.append(generateInsertReturningClause(keyColumns));
+        sh.setQueryString(query.toString());
+        return sh;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator#isInsertReturningKeys
+     * ()
+     */
+    public boolean isInsertReturningKeys() {
+        return false;
+    }
+
+    /**
+     * Generates the clause appended to a multi-row insert query to return the
+     * generated keys, e.g. RETURNING.
+     * 
+     * @param keyColumns
+     *            the key columns to return
+     * @return the clause, or an empty string
+     */
+    protected String generateInsertReturningClause(List<String> keyColumns) {
+        return "";
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -226,6 +511,28 @@ public class DefaultSQLGenerator implements SQLGenerator {
         return sh;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.sqlcontainer.query.generator.ExtendedSQLGenerator#generateDeleteQuery
+     * (java.lang.String, java.util.List)
+     */
+    public StatementHelper generateDeleteQuery(String tableName,
+            List<Filter> filters) {
+        if (tableName == null || tableName.trim().equals("")) {
+            throw new IllegalArgumentException("Table name must be given.");
+        }
+        StatementHelper sh = new StatementHelper();
+        StringBuffer query = new StringBuffer();
+        query.append("DELETE FROM ").append(tableName);
+        if (filters != null) {
+            query.append(QueryBuilder.getWhereStringForFilters(filters, sh));
+        }
+        sh.setQueryString(query.toString());
+        return sh;
+    }
+
     /**
      * Generates sorting rules as an ORDER BY -clause
      * 
@@ -271,6 +578,98 @@ public class DefaultSQLGenerator implements SQLGenerator {
         return sb;
     }
 
+    /**
+     * Generates a filter matching the rows that come after (or before) the row
+     * with the given sort key values in the given ordering. For the ordering
+     * (k1, k2) this produces "k1 > ? OR (k1 = ? AND k2 > ?)", with the
+     * comparison flipped for descending columns. The expanded form is used
+     * instead of a row value comparison since it also handles mixed sort
+     * directions and is supported by every database.
+     * 
+     * If a NULL ordering is given, NULLs are placed according to it: "k1 > ?"
+     * becomes "(k1 > ? OR k1 IS NULL)" where NULLs sort after the values, and
+     * NULL key values are matched with "k1 IS NULL" and "k1 IS NOT NULL". The
+     * NULL terms are added for every column, since the generator does not
+     * know which columns can contain NULLs.
+     * 
+     * @param orderBys
+     *            the ordering conditions
+     * @param nullOrdering
+     *            where the database sorts NULLs, or null if the sorted columns
+     *            contain no NULLs
+     * @param keyValues
+     *            the sort key values of the reference row
+     * @param after
+     *            true to match rows after the reference row, false to match
+     *            rows before it
+     * @return the filter
+     */
+    protected Filter generateSeekFilter(List<OrderBy> orderBys,
+            NullOrdering nullOrdering, Object[] keyValues, boolean after) {
+        if (nullOrdering == null && Arrays.asList(keyValues).contains(null)) {
+            throw new IllegalArgumentException(
+                    "NULL ordering must be given for NULL key values.");
+        }
+        List<Filter> alternatives = new ArrayList<Filter>();
+        for (int i = 0; i < orderBys.size(); i++) {
+            OrderBy o = orderBys.get(i);
+            Filter beyond = generateBeyondFilter(o, nullOrdering,
+                    keyValues[i], after);
+            if (beyond == null) {
+                continue;
+            }
+            List<Filter> conditions = new ArrayList<Filter>();
+            for (int j = 0; j < i; j++) {
+                String column = orderBys.get(j).getColumn();
+                if (keyValues[j] == null) {
+                    conditions.add(new IsNull(column));
+                } else {
+                    conditions.add(new Equal(column, keyValues[j]));
+                }
+            }
+            conditions.add(beyond);
+            if (conditions.size() == 1) {
+                alternatives.add(conditions.get(0));
+            } else {
+                alternatives.add(new And(conditions.toArray(new Filter[0])));
+            }
+        }
+        if (alternatives.isEmpty()) {
+            /* No row can come after (or before) the reference row */
+            String column = orderBys.get(0).getColumn();
+            return new And(new IsNull(column), new Not(new IsNull(column)));
+        }
+        if (alternatives.size() == 1) {
+            return alternatives.get(0);
+        }
+        return new Or(alternatives.toArray(new Filter[0]));
+    }
+
+    /**
+     * Generates a filter matching the values of one ordering column that come
+     * strictly after (or before) the given value.
+     * 
+     * @return the filter, or null if no value comes after (or before) it
+     */
+    private Filter generateBeyondFilter(OrderBy o, NullOrdering nullOrdering,
+            Object value, boolean after) {
+        boolean nullsBeyond = nullOrdering != null
+                && nullOrdering.isLast(o.isAscending()) == after;
+        if (value == null) {
+            return nullsBeyond ? null : new Not(new IsNull(o.getColumn()));
+        }
+        Filter compare;
+        if (o.isAscending() == after) {
+            compare = new Greater(o.getColumn(), value);
+        } else {
+            compare = new Less(o.getColumn(), value);
+        }
+        if (nullsBeyond) {
+            return new Or(compare, new IsNull(o.getColumn()));
+        }
+        return compare;
+    }
+
     protected Map<String, Object> generateColumnToValueMap(RowItem item) {
         Map<String, Object> columnToValueMap = new HashMap<String, Object>();
         for (Object id : item.getItemPropertyIds()) {
@@ -0,0 +1,176 @@
+package com.vaadin.addon.sqlcontainer.query.generator;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import com.vaadin.addon.sqlcontainer.RowItem;
+import com.vaadin.addon.sqlcontainer.query.OrderBy;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Optional extension of {@link SQLGenerator} generating the queries used by
+ * the set-based and paging optimizations of TableQuery: selecting only some
+ * columns, keyset pagination, row positions, estimated counts, multi-row
+ * inserts and filtered deletes. All the generators included implement it.
+ * 
+ * A TableQuery whose generator only implements SQLGenerator falls back to
+ * selecting all columns, offset paging, exact counts and row by row writes.
+ */
+public interface ExtendedSQLGenerator extends SQLGenerator {
+    /**
+     * Generates the select list for a query that only needs the given columns,
+     * e.g. the primary key columns when only the identities of the rows are
+     * needed. The result can be passed as the toSelect parameter of
+     * {@link #generateSelectQuery(String, List, List, int, int, String)}.
+     * 
+     * @param columns
+     *            Names of the columns to select
+     * @return the select list
+     */
+    public String generateColumnList(List<String> columns);
+
+    /**
+     * Generates a SELECT query that continues an ordered result set after the
+     * row whose sort key values are given (keyset or "seek" pagination).
+     * Instead of skipping rows with an offset, the query only selects rows
+     * whose sort key tuple comes after the given one in the given ordering.
+     * 
+     * The ordering must be total, i.e. it should end with the primary key
+     * column(s) so that no two rows share the same sort key tuple. Rows with
+     * NULLs in the sorted columns are placed according to the given NULL
+     * ordering.
+     * 
+     * @param tableName
+     *            Name of the table queried
+     * @param filters
+     *            The filters, converted into a WHERE clause
+     * @param orderBys
+     *            The ordering conditions, converted into an ORDER BY clause.
+     *            Must not be null or empty.
+     * @param nullOrdering
+     *            where the database sorts NULLs, or null if the sorted columns
+     *            contain no NULLs
+     * @param lastKeyValues
+     *            Values of the orderBys columns in the last row of the
+     *            previous page, in the same order as orderBys
+     * @param pagelength
+     *            The number of rows to be returned when the query executes
+     * @param toSelect
+     *            String containing what to select, e.g. "*"
+     * @return StatementHelper instance containing the query string for a
+     *         PreparedStatement and the values required for the parameters
+     */
+    public StatementHelper generateSeekQuery(String tableName,
+            List<Filter> filters, List<OrderBy> orderBys,
+            NullOrdering nullOrdering, Object[] lastKeyValues, int pagelength,
+            String toSelect);
+
+    /**
+     * Generates a SELECT COUNT(*) query that counts the rows coming before the
+     * row with the given sort key values in the given ordering. The result is
+     * the zero-based position of that row in the ordered and filtered result
+     * set.
+     * 
+     * The ordering must be total, i.e. it should end with the primary key
+     * column(s) so that no two rows share the same sort key tuple. Rows with
+     * NULLs in the sorted columns are counted according to the given NULL
+     * ordering.
+     * 
+     * @param tableName
+     *            Name of the table queried
+     * @param filters
+     *            The filters, converted into a WHERE clause
+     * @param orderBys
+     *            The ordering conditions. Must not be null or empty.
+     * @param nullOrdering
+     *            where the database sorts NULLs, or null if the sorted columns
+     *            contain no NULLs
+     * @param keyValues
+     *            Values of the orderBys columns in the row whose position is
+     *            queried, in the same order as orderBys
+     * @return StatementHelper instance containing the query string for a
+     *         PreparedStatement and the values required for the parameters
+     */
+    public StatementHelper generateRowPositionQuery(String tableName,
+            List<Filter> filters, List<OrderBy> orderBys,
+            NullOrdering nullOrdering, Object[] keyValues);
+
+    /**
+     * Generates a query that returns an estimate of the number of rows
+     * matching the given filters, based on the statistics of the database
+     * instead of an exact count. The result of the query is read with
+     * {@link #readEstimatedCount(ResultSet)}.
+     * 
+     * @param tableName
+     *            Name of the table queried
+     * @param filters
+     *            The filters, converted into a WHERE clause
+     * @return StatementHelper instance containing the query string for a
+     *         PreparedStatement and the values required for the parameters,
+     *         or null if the database can not estimate the row count for the
+     *         given filters
+     */
+    public StatementHelper generateEstimatedCountQuery(String tableName,
+            List<Filter> filters);
+
+    /**
+     * Reads the row count estimate from the result of a query generated by
+     * {@link #generateEstimatedCountQuery(String, List)}.
+     * 
+     * @param rs
+     *            ResultSet of the estimate query, positioned before the first
+     *            row
+     * @return the estimated row count, or -1 if no estimate is available
+     * @throws SQLException
+     */
+    public int readEstimatedCount(ResultSet rs) throws SQLException;
+
+    /**
+     * Generates a single INSERT query for inserting several new rows. All the
+     * items must have the same set of columns, i.e. generateInsertQuery must
+     * produce the same query string for each of them.
+     * 
+     * If {@link #isInsertReturningKeys()} is true, executing the query
+     * returns a result set with the given key columns of the inserted rows.
+     * Otherwise the keys are read with Statement.getGeneratedKeys(). In both
+     * cases the keys are expected in the order of the items.
+     * 
+     * @param tableName
+     *            Name of the table queried
+     * @param items
+     *            New RowItems to be inserted into the database.
+     * @param keyColumns
+     *            the names of the columns whose generated values are returned
+     * @return StatementHelper instance containing the query string for a
+     *         PreparedStatement and the values required for the parameters,
+     *         or null if the database does not support inserting several rows
+     *         with one statement, or does not return their keys in the order
+     *         of the items
+     */
+    public StatementHelper generateMultiRowInsertQuery(String tableName,
+            List<RowItem> items, List<String> keyColumns);
+
+    /**
+     * @return true if the queries generated by
+     *         {@link #generateMultiRowInsertQuery(String, List, List)} return
+     *         the generated keys as a result set, false if the keys must be
+     *         read with Statement.getGeneratedKeys()
+     */
+    public boolean isInsertReturningKeys();
+
+    /**
+     * Generates a DELETE query for deleting all the rows that pass the given
+     * filters from the database.
+     * 
+     * @param tableName
+     *            Name of the table queried
+     * @param filters
+     *            The filters, converted into a WHERE clause. Null or empty
+     *            deletes every row of the table.
+     * @return StatementHelper instance containing the query string for a
+     *         PreparedStatement and the values required for the parameters
+     */
+    public StatementHelper generateDeleteQuery(String tableName,
+            List<Filter> filters);
+}
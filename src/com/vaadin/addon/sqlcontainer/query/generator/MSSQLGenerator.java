@@ -2,6 +2,7 @@ package com.vaadin.addon.sqlcontainer.query.generator;
 
 import java.util.List;
 
+import com.vaadin.addon.sqlcontainer.RowItem;
 import com.vaadin.addon.sqlcontainer.query.OrderBy;
 import com.vaadin.addon.sqlcontainer.query.generator.filter.QueryBuilder;
 import com.vaadin.data.Container.Filter;
@@ -98,4 +99,43 @@ public class MSSQLGenerator extends DefaultSQLGenerator {
         sh.setQueryString(query.toString());
         return sh;
     }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * generateEstimatedCountQuery(java.lang.String, java.util.List)
+     */
+    @Override
+    public StatementHelper generateEstimatedCountQuery(String tableName,
+            List<Filter> filters) {
+        if (filters != null && !filters.isEmpty()) {
+            /* Partition statistics only cover the unfiltered table */
+            return null;
+        }
+        StatementHelper sh = new StatementHelper();
+        sh.setQueryString("SELECT SUM(p.rows) FROM sys.partitions p"
+                + " WHERE p.object_id = OBJECT_ID(?) AND p.index_id < 2");
+        sh.addParameterValue(tableName);
+        return sh;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * generateMultiRowInsertQuery(java.lang.String, java.util.List,
+     * java.util.List)
+     */
+    @Override
+    public StatementHelper generateMultiRowInsertQuery(String tableName,
+            List<RowItem> items, List<String> keyColumns) {
+        /*
+         * The keys returned by OUTPUT INSERTED are not guaranteed to be in the
+         * order of the VALUES list, so they could not be mapped to the
+         * inserted rows, and OUTPUT without INTO fails on tables with
+         * triggers. Rows are inserted one at a time instead.
+         */
+        return null;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.vaadin.addon.sqlcontainer.query.generator;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Generates SQL for MySQL. The generated queries are the same as those of
+ * {@link DefaultSQLGenerator}, but row counts can be estimated from the query
+ * optimizer using EXPLAIN.
+ */
+@SuppressWarnings("serial")
+public class MySQLGenerator extends DefaultSQLGenerator {
+
+    public MySQLGenerator() {
+
+    }
+
+    /**
+     * Construct a MySQLGenerator with the specified identifiers for start and
+     * end of quoted strings. The identifiers may be different depending on the
+     * database engine and it's settings.
+     * 
+     * @param quoteStart
+     *            the identifier (character) denoting the start of a quoted
+     *            string
+     * @param quoteEnd
+     *            the identifier (character) denoting the end of a quoted string
+     */
+    public MySQLGenerator(String quoteStart, String quoteEnd) {
+        super(quoteStart, quoteEnd);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * generateEstimatedCountQuery(java.lang.String, java.util.List)
+     */
+    @Override
+    public StatementHelper generateEstimatedCountQuery(String tableName,
+            List<Filter> filters) {
+        StatementHelper sh = generateSelectQuery(tableName, filters, null, 0,
+                0, "*");
+        sh.setQueryString("EXPLAIN " + sh.getQueryString());
+        return sh;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * readEstimatedCount(java.sql.ResultSet)
+     */
+    @Override
+    public int readEstimatedCount(ResultSet rs) throws SQLException {
+        if (!rs.next()) {
+            return -1;
+        }
+        long rows = rs.getLong("rows");
+        if (rs.wasNull()) {
+            return -1;
+        }
+        /* MySQL 5.7 and later estimate the share of rows the WHERE keeps */
+        double filtered = 100;
+        try {
+            filtered = rs.getDouble("filtered");
+            if (rs.wasNull()) {
+                filtered = 100;
+            }
+        } catch (SQLException e) {
+            /* No filtered column in older versions */
+        }
+        return (int) Math.min(Math.round(rows * filtered / 100),
+                Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,60 @@
+package com.vaadin.addon.sqlcontainer.query.generator;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+/**
+ * Where a database sorts NULL values, as reported by its
+ * {@link DatabaseMetaData}. Needed by the seek and row position queries of
+ * {@link ExtendedSQLGenerator}, since NULLs can not be compared with the
+ * sort key values.
+ */
+public enum NullOrdering {
+    /** NULLs sort after all values, i.e. last in ascending order */
+    HIGH,
+    /** NULLs sort before all values, i.e. first in ascending order */
+    LOW,
+    /** NULLs sort first regardless of the sort direction */
+    FIRST,
+    /** NULLs sort last regardless of the sort direction */
+    LAST;
+
+    /**
+     * @param ascending
+     *            the sort direction
+     * @return true if NULLs come after the other values in the given sort
+     *         direction
+     */
+    public boolean isLast(boolean ascending) {
+        switch (this) {
+        case HIGH:
+            return ascending;
+        case LOW:
+            return !ascending;
+        case FIRST:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Returns the NULL ordering of the database described by the given
+     * metadata.
+     * 
+     * @param dbmd
+     *            the database metadata
+     * @return the NULL ordering
+     * @throws SQLException
+     */
+    public static NullOrdering of(DatabaseMetaData dbmd) throws SQLException {
+        if (dbmd.nullsAreSortedAtStart()) {
+            return FIRST;
+        } else if (dbmd.nullsAreSortedAtEnd()) {
+            return LAST;
+        } else if (dbmd.nullsAreSortedHigh()) {
+            return HIGH;
+        }
+        return LOW;
+    }
+}
@@ -2,6 +2,7 @@ package com.vaadin.addon.sqlcontainer.query.generator;
 
 import java.util.List;
 
+import com.vaadin.addon.sqlcontainer.RowItem;
 import com.vaadin.addon.sqlcontainer.query.OrderBy;
 import com.vaadin.addon.sqlcontainer.query.generator.filter.QueryBuilder;
 import com.vaadin.data.Container.Filter;
@@ -96,4 +97,58 @@ public class OracleGenerator extends DefaultSQLGenerator {
         sh.setQueryString(query.toString());
         return sh;
     }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * generateEstimatedCountQuery(java.lang.String, java.util.List)
+     */
+    @Override
+    public StatementHelper generateEstimatedCountQuery(String tableName,
+            List<Filter> filters) {
+        if (filters != null && !filters.isEmpty()) {
+            /* Table statistics only cover the unfiltered table */
+            return null;
+        }
+        StatementHelper sh = new StatementHelper();
+        int dot = tableName.lastIndexOf('.');
+        if (dot < 0) {
+            sh.setQueryString("SELECT NUM_ROWS FROM USER_TABLES"
+                    + " WHERE TABLE_NAME = ?");
+        } else {
+            sh.setQueryString("SELECT NUM_ROWS FROM ALL_TABLES"
+                    + " WHERE OWNER = ? AND TABLE_NAME = ?");
+            sh.addParameterValue(catalogName(tableName.substring(0, dot)));
+        }
+        sh.addParameterValue(catalogName(tableName.substring(dot + 1)));
+        return sh;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * generateMultiRowInsertQuery(java.lang.String, java.util.List,
+     * java.util.List)
+     */
+    @Override
+    public StatementHelper generateMultiRowInsertQuery(String tableName,
+            List<RowItem> items, List<String> keyColumns) {
+        /* Oracle does not support VALUES lists with several rows */
+        return null;
+    }
+
+    /**
+     * Converts a table or schema name to the form stored in the data
+     * dictionary: quoted names keep their case, others are upper case.
+     */
+    private String catalogName(String name) {
+        name = name.trim();
+        if (name.length() > 1 && name.startsWith("\"")
+                && name.endsWith("\"")) {
+            return name.substring(1, name.length() - 1);
+        }
+        return name.toUpperCase();
+    }
 }
\ No newline at end of file
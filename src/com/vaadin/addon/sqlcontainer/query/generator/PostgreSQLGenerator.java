@@ -0,0 +1,98 @@
+package com.vaadin.addon.sqlcontainer.query.generator;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Generates SQL for PostgreSQL. The generated queries are the same as those of
+ * {@link DefaultSQLGenerator}, but row counts can be estimated from the query
+ * planner using EXPLAIN, and multi-row inserts, if enabled, return the
+ * generated keys with RETURNING.
+ */
+@SuppressWarnings("serial")
+public class PostgreSQLGenerator extends DefaultSQLGenerator {
+
+    private static final Pattern ROWS_PATTERN = Pattern
+            .compile("rows=(\\d+)");
+
+    public PostgreSQLGenerator() {
+
+    }
+
+    /**
+     * Construct a PostgreSQLGenerator with the specified identifiers for start
+     * and end of quoted strings. The identifiers may be different depending on
+     * the database engine and it's settings.
+     * 
+     * @param quoteStart
+     *            the identifier (character) denoting the start of a quoted
+     *            string
+     * @param quoteEnd
+     *            the identifier (character) denoting the end of a quoted string
+     */
+    public PostgreSQLGenerator(String quoteStart, String quoteEnd) {
+        super(quoteStart, quoteEnd);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * generateEstimatedCountQuery(java.lang.String, java.util.List)
+     */
+    @Override
+    public StatementHelper generateEstimatedCountQuery(String tableName,
+            List<Filter> filters) {
+        StatementHelper sh = generateSelectQuery(tableName, filters, null, 0,
+                0, "*");
+        sh.setQueryString("EXPLAIN " + sh.getQueryString());
+        return sh;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * readEstimatedCount(java.sql.ResultSet)
+     */
+    @Override
+    public int readEstimatedCount(ResultSet rs) throws SQLException {
+        /* The first line describes the top node of the plan */
+        if (!rs.next()) {
+            return -1;
+        }
+        String plan = rs.getString(1);
+        Matcher m = ROWS_PATTERN.matcher(plan == null ? "" : plan);
+        if (!m.find()) {
+            return -1;
+        }
+        return (int) Math.min(Long.parseLong(m.group(1)), Integer.MAX_VALUE);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * generateInsertReturningClause(java.util.List)
+     */
+    @Override
+    protected String generateInsertReturningClause(List<String> keyColumns) {
+        return " RETURNING " + generateColumnList(keyColumns);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator#
+     * isInsertReturningKeys()
+     */
+    @Override
+    public boolean isInsertReturningKeys() {
+        return true;
+    }
+}
@@ -8,6 +8,7 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,6 +40,13 @@ public class StatementHelper {
         return queryString;
     }
 
+    /**
+     * @return the parameter values of the statement, in order
+     */
+    public List<Object> getParameterValues() {
+        return Collections.unmodifiableList(parameters);
+    }
+
     public void addParameterValue(Object parameter) {
         if (parameter != null) {
             parameters.add(parameter);
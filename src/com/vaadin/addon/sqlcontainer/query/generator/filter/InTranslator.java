@@ -0,0 +1,29 @@
+package com.vaadin.addon.sqlcontainer.query.generator.filter;
+
+import com.vaadin.addon.sqlcontainer.filters.In;
+import com.vaadin.addon.sqlcontainer.query.generator.StatementHelper;
+import com.vaadin.data.Container.Filter;
+
+public class InTranslator implements FilterTranslator {
+
+    public boolean translatesFilter(Filter filter) {
+        return filter instanceof In;
+    }
+
+    public String getWhereStringForFilter(Filter filter, StatementHelper sh) {
+        In in = (In) filter;
+        StringBuilder result = new StringBuilder(
+                QueryBuilder.quote(in.getPropertyId())).append(" IN (");
+        boolean first = true;
+        for (Object value : in.getValues()) {
+            if (!first) {
+                result.append(", ");
+            }
+            result.append("?");
+            sh.addParameterValue(value);
+            first = false;
+        }
+        return result.append(")").toString();
+    }
+
+}
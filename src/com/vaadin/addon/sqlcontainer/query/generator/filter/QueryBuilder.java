@@ -19,6 +19,7 @@ public class QueryBuilder {
         addFilterTranslator(new OrTranslator());
         addFilterTranslator(new LikeTranslator());
         addFilterTranslator(new BetweenTranslator());
+        addFilterTranslator(new InTranslator());
         addFilterTranslator(new CompareTranslator());
         addFilterTranslator(new NotTranslator());
         addFilterTranslator(new IsNullTranslator());
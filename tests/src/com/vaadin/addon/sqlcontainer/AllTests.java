@@ -4,16 +4,23 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import com.vaadin.addon.sqlcontainer.connection.ConcurrentJDBCConnectionPoolTest;
+import com.vaadin.addon.sqlcontainer.connection.ConnectionValidatorTest;
 import com.vaadin.addon.sqlcontainer.connection.J2EEConnectionPoolTest;
+import com.vaadin.addon.sqlcontainer.connection.PoolMetricsTest;
 import com.vaadin.addon.sqlcontainer.connection.SimpleJDBCConnectionPoolTest;
+import com.vaadin.addon.sqlcontainer.connection.StatementCacheTest;
 import com.vaadin.addon.sqlcontainer.filters.BetweenTest;
+import com.vaadin.addon.sqlcontainer.filters.InTest;
 import com.vaadin.addon.sqlcontainer.filters.LikeTest;
 import com.vaadin.addon.sqlcontainer.query.QueryBuilderTest;
 import com.vaadin.addon.sqlcontainer.query.FreeformQueryTest;
 import com.vaadin.addon.sqlcontainer.query.TableQueryTest;
 import com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator;
 import com.vaadin.addon.sqlcontainer.query.generator.MSSQLGenerator;
+import com.vaadin.addon.sqlcontainer.query.generator.MySQLGenerator;
 import com.vaadin.addon.sqlcontainer.query.generator.OracleGenerator;
+import com.vaadin.addon.sqlcontainer.query.generator.PostgreSQLGenerator;
 import com.vaadin.addon.sqlcontainer.query.generator.SQLGenerator;
 import com.vaadin.addon.sqlcontainer.query.generator.SQLGeneratorsTest;
 
@@ -25,7 +32,11 @@ import com.vaadin.addon.sqlcontainer.query.generator.SQLGeneratorsTest;
         SQLContainerTableQueryTest.class, ColumnPropertyTest.class,
         TableQueryTest.class, SQLGeneratorsTest.class, UtilTest.class,
         TicketTests.class, BetweenTest.class, ReadOnlyRowIdTest.class,
-        ReferenceTest.class })
+        ReferenceTest.class, InTest.class, StatementCacheTest.class,
+        ConcurrentJDBCConnectionPoolTest.class, ConnectionValidatorTest.class,
+        PoolMetricsTest.class, ChangeLogInvalidationTransportTest.class,
+        SharedRowCacheTest.class, QueryResultCacheTest.class,
+        BackgroundTasksTest.class })
 public class AllTests {
     /* Set the DB used for testing here! */
     public enum DB {
@@ -85,6 +96,7 @@ public class AllTests {
                     "create table VERSIONED (ID integer auto_increment not null, TEXT varchar(255), VERSION tinyint default 0, primary key(ID))",
                     "CREATE TRIGGER upd_version BEFORE UPDATE ON VERSIONED"
                             + " FOR EACH ROW SET NEW.VERSION = @VERSION+1" };
+            sqlGen = new MySQLGenerator();
             break;
         case POSTGRESQL:
             offset = 1;
@@ -109,6 +121,7 @@ public class AllTests {
                     "CREATE TRIGGER \"mytable_modify_dt_tr\" BEFORE UPDATE"
                             + "   ON VERSIONED FOR EACH ROW"
                             + "   EXECUTE PROCEDURE \"public\".\"zz_row_version\"();" };
+            sqlGen = new PostgreSQLGenerator();
             break;
         case MSSQL:
             offset = 1;
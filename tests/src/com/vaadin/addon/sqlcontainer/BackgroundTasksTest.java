@@ -0,0 +1,46 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackgroundTasksTest {
+
+    @Test
+    public void submit_executorSaturated_dropsOptionalAndRunsOtherTasksOnCaller()
+            throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<Void> blocker = new Callable<Void>() {
+            public Void call() throws Exception {
+                release.await();
+                return null;
+            }
+        };
+        try {
+            int submitted = 0;
+            Future<Void> optional;
+            do {
+                optional = BackgroundTasks.submitOptional(blocker);
+                submitted++;
+            } while (!optional.isCancelled()
+                    && submitted <= BackgroundTasks.MAX_THREADS
+                            + BackgroundTasks.MAX_QUEUED_TASKS);
+            Assert.assertTrue(optional.isCancelled());
+
+            final Thread caller = Thread.currentThread();
+            Future<Boolean> required = BackgroundTasks
+                    .submit(new Callable<Boolean>() {
+                        public Boolean call() {
+                            return Thread.currentThread() == caller;
+                        }
+                    });
+            Assert.assertTrue(required.isDone());
+            Assert.assertTrue(required.get());
+        } finally {
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool;
+import com.vaadin.addon.sqlcontainer.connection.SimpleJDBCConnectionPool;
+import com.vaadin.addon.sqlcontainer.query.TableQuery;
+
+public class ChangeLogInvalidationTransportTest {
+    private JDBCConnectionPool connectionPool;
+    private ChangeLogInvalidationTransport local;
+    private ChangeLogInvalidationTransport remote;
+    private final List<CacheInvalidation> localReceived = new ArrayList<CacheInvalidation>();
+    private final List<CacheInvalidation> remoteReceived = new ArrayList<CacheInvalidation>();
+
+    private static class CollectingReceiver implements
+            InvalidationTransport.Receiver {
+        private final List<CacheInvalidation> received;
+
+        public CollectingReceiver(List<CacheInvalidation> received) {
+            this.received = received;
+        }
+
+        public void invalidationReceived(CacheInvalidation invalidation) {
+            received.add(invalidation);
+        }
+    }
+
+    @Before
+    public void setUp() throws SQLException {
+        connectionPool = new SimpleJDBCConnectionPool(AllTests.dbDriver,
+                AllTests.dbURL, AllTests.dbUser, AllTests.dbPwd, 2, 2);
+        DataGenerator.addPeopleToDatabase(connectionPool);
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        try {
+            statement.execute("drop table SQLCONTAINER_CHANGELOG");
+        } catch (SQLException e) {
+            // Will fail if table doesn't exist, which is OK.
+            conn.rollback();
+        }
+        statement.execute("create table SQLCONTAINER_CHANGELOG (ID bigint "
+                + "generated always as identity primary key, "
+                + "NODE varchar(36) not null, CREATED timestamp not null, "
+                + "PAYLOAD varbinary(65536) not null)");
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+
+        local = new ChangeLogInvalidationTransport(connectionPool);
+        local.setPollInterval(60000);
+        remote = new ChangeLogInvalidationTransport(connectionPool);
+        remote.setPollInterval(60000);
+        local.start(new CollectingReceiver(localReceived));
+        remote.start(new CollectingReceiver(remoteReceived));
+    }
+
+    @After
+    public void tearDown() {
+        SQLContainer.setInvalidationTransport(null);
+        local.stop();
+        remote.stop();
+        connectionPool.destroy();
+    }
+
+    private static CacheInvalidation update(int id) {
+        return new CacheInvalidation("people", null, Collections.singletonMap(
+                new RowId(new Object[] { id }),
+                CacheInvalidation.Operation.UPDATE));
+    }
+
+    private int countEntries() throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        ResultSet rs = statement
+                .executeQuery("select count(*) from SQLCONTAINER_CHANGELOG");
+        rs.next();
+        int count = rs.getInt(1);
+        rs.close();
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+        return count;
+    }
+
+    @Test
+    public void poll_entryPublishedByOtherNode_passesInvalidationOn() {
+        local.publish(update(1));
+        local.flush();
+        remote.poll();
+        local.poll();
+
+        Assert.assertTrue(localReceived.isEmpty());
+        Assert.assertEquals(1, remoteReceived.size());
+        CacheInvalidation received = remoteReceived.get(0);
+        Assert.assertEquals("people", received.getTableName());
+        Assert.assertEquals(CacheInvalidation.Operation.UPDATE, received
+                .getRows().get(new RowId(new Object[] { 1 })));
+    }
+
+    @Test
+    public void poll_calledAgain_doesNotRepeatEntries() {
+        local.publish(update(1));
+        local.flush();
+        remote.poll();
+        remote.poll();
+        Assert.assertEquals(1, remoteReceived.size());
+    }
+
+    @Test
+    public void poll_entryCommittedAfterHigherIds_passesInvalidationOn()
+            throws SQLException {
+        local.publish(update(1));
+        local.flush();
+        restartChangeLogIds(10);
+        local.publish(update(2));
+        local.flush();
+        remote.poll();
+        Assert.assertEquals(1, remoteReceived.size());
+
+        /* An entry that got a lower id but became visible only now */
+        restartChangeLogIds(5);
+        local.publish(update(3));
+        local.flush();
+
+        remote.poll();
+        remote.poll();
+        Assert.assertEquals(2, remoteReceived.size());
+        Assert.assertTrue(remoteReceived.get(1).getRows().containsKey(
+                new RowId(new Object[] { 3 })));
+    }
+
+    private void restartChangeLogIds(int id) throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.execute("alter table SQLCONTAINER_CHANGELOG "
+                + "alter column ID restart with " + id);
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+    }
+
+    @Test
+    public void flush_burstOfInvalidations_writesOneEntryPerTable()
+            throws SQLException {
+        local.publish(update(1));
+        local.publish(update(2));
+        local.publish(new CacheInvalidation("people", null, Collections
+                .singletonMap(new RowId(new Object[] { 1 }),
+                        CacheInvalidation.Operation.DELETE)));
+        local.publish(new CacheInvalidation(null, "SELECT * FROM people",
+                null));
+        local.flush();
+
+        Assert.assertEquals(2, countEntries());
+        remote.poll();
+        Assert.assertEquals(2, remoteReceived.size());
+        CacheInvalidation people = remoteReceived.get(0);
+        Assert.assertEquals(2, people.getRows().size());
+        Assert.assertEquals(CacheInvalidation.Operation.DELETE, people
+                .getRows().get(new RowId(new Object[] { 1 })));
+        Assert.assertTrue(remoteReceived.get(1).isAllRows());
+    }
+
+    @Test
+    public void poll_typedCompositeKey_passesKeyValuesOn() {
+        RowId id = new RowId(new Object[] { 7L, "A/B", new BigDecimal("1.50"),
+                new Timestamp(123456789L), null });
+        local.publish(new CacheInvalidation("people", null, Collections
+                .singletonMap(id, CacheInvalidation.Operation.INSERT)));
+        local.flush();
+        remote.poll();
+        Assert.assertEquals(CacheInvalidation.Operation.INSERT, remoteReceived
+                .get(0).getRows().get(id));
+    }
+
+    @Test
+    public void poll_keyOfUnsupportedType_invalidatesAllRows() {
+        local.publish(new CacheInvalidation("people", null, Collections
+                .singletonMap(new RowId(new Object[] { new byte[] { 1 } }),
+                        CacheInvalidation.Operation.UPDATE)));
+        local.flush();
+        remote.poll();
+        Assert.assertEquals("people", remoteReceived.get(0).getTableName());
+        Assert.assertTrue(remoteReceived.get(0).isAllRows());
+    }
+
+    @Test
+    public void poll_javaSerializedPayload_skipsEntry() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(update(1));
+        out.close();
+        Connection conn = connectionPool.reserveConnection();
+        PreparedStatement pstmt = conn
+                .prepareStatement("insert into SQLCONTAINER_CHANGELOG "
+                        + "(NODE, CREATED, PAYLOAD) values (?, ?, ?)");
+        pstmt.setString(1, "other");
+        pstmt.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+        pstmt.setBytes(3, bytes.toByteArray());
+        pstmt.executeUpdate();
+        pstmt.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+
+        remote.poll();
+        Assert.assertTrue(remoteReceived.isEmpty());
+    }
+
+    @Test
+    public void flush_moreRowsThanMaximum_invalidatesAllRows() {
+        local.setMaxRows(1);
+        local.publish(update(1));
+        local.publish(update(2));
+        local.flush();
+        remote.poll();
+        Assert.assertTrue(remoteReceived.get(0).isAllRows());
+    }
+
+    @Test
+    public void publish_withDelay_writtenInBackground() throws Exception {
+        local.setPublishDelay(10);
+        local.publish(update(1));
+        for (int i = 0; i < 100 && countEntries() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, countEntries());
+    }
+
+    @Test
+    public void poll_entriesOlderThanRetentionTime_deletesEntries()
+            throws Exception {
+        local.publish(update(1));
+        local.flush();
+        remote.setRetentionTime(1);
+        Thread.sleep(10);
+        remote.poll();
+        Assert.assertEquals(0, countEntries());
+    }
+
+    @Test
+    public void setInvalidationTransport_rowRemovedOnOtherNode_refreshesLocalContainer()
+            throws SQLException {
+        local.stop();
+        SQLContainer.setInvalidationTransport(local);
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        SQLContainer container = new SQLContainer(query);
+        container.enableCacheFlushNotifications();
+        Assert.assertEquals(4, container.size());
+
+        /* Another node removes a row and publishes the change */
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate("delete from people where \"ID\" = 3");
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+        remote.publish(new CacheInvalidation(query.getTableName(), null,
+                Collections.singletonMap(new RowId(new Object[] { 3 }),
+                        CacheInvalidation.Operation.DELETE)));
+        remote.flush();
+
+        local.poll();
+        Assert.assertEquals(3, container.size());
+    }
+
+    @Test
+    public void setInvalidationTransport_containerWrites_publishesInvalidation()
+            throws SQLException {
+        local.stop();
+        SQLContainer.setInvalidationTransport(local);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setAutoCommit(true);
+        container.enableCacheFlushNotifications();
+        container.removeItem(container.lastItemId());
+        local.flush();
+
+        remote.poll();
+        Assert.assertEquals(1, remoteReceived.size());
+        Assert.assertEquals(CacheInvalidation.Operation.DELETE, remoteReceived
+                .get(0).getRows().values().iterator().next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_nullConnectionPool_shouldFail() {
+        new ChangeLogInvalidationTransport(null);
+    }
+}
@@ -129,4 +129,27 @@ public class DataGenerator {
         conn.commit();
         connectionPool.releaseConnection(conn);
     }
+
+    public static void addCompositeKeyRows(JDBCConnectionPool connectionPool,
+            int count) throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        try {
+            statement.execute("drop table COMPOSITE");
+        } catch (SQLException e) {
+            // Will fail if table doesn't exist, which is OK.
+            conn.rollback();
+        }
+        statement.execute("create table COMPOSITE (A integer not null, "
+                + "B integer not null, C integer not null, "
+                + "D integer not null, E integer not null, NAME varchar(32), "
+                + "primary key (A, B, C, D, E))");
+        for (int i = 0; i < count; i++) {
+            statement.executeUpdate("insert into COMPOSITE values (" + i
+                    + ", 1, 2, 3, 4, 'Row " + i + "')");
+        }
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+    }
 }
@@ -0,0 +1,264 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool;
+import com.vaadin.addon.sqlcontainer.connection.SimpleJDBCConnectionPool;
+import com.vaadin.addon.sqlcontainer.query.TableQuery;
+import com.vaadin.addon.sqlcontainer.query.generator.StatementHelper;
+import com.vaadin.data.util.filter.Compare.Equal;
+
+public class QueryResultCacheTest {
+    private JDBCConnectionPool connectionPool;
+    private QueryResultCache cache;
+
+    @Before
+    public void setUp() throws SQLException {
+        connectionPool = new SimpleJDBCConnectionPool(AllTests.dbDriver,
+                AllTests.dbURL, AllTests.dbUser, AllTests.dbPwd, 2, 2);
+        DataGenerator.addPeopleToDatabase(connectionPool);
+        cache = new QueryResultCache(QueryResultCache.DEFAULT_MAX_WEIGHT,
+                QueryResultCache.DEFAULT_TIME_TO_LIVE);
+    }
+
+    @After
+    public void tearDown() {
+        connectionPool.destroy();
+    }
+
+    private SQLContainer createContainer() throws SQLException {
+        return createContainer(connectionPool);
+    }
+
+    private SQLContainer createContainer(JDBCConnectionPool pool)
+            throws SQLException {
+        TableQuery query = new TableQuery("people", pool, AllTests.sqlGen);
+        SQLContainer container = new SQLContainer(query);
+        container.setQueryResultCache(cache);
+        return container;
+    }
+
+    private void executeUpdate(String sql) throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate(sql);
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+    }
+
+    @Test
+    public void getItem_secondContainer_takesPageAndCountFromCache()
+            throws SQLException {
+        SQLContainer first = createContainer();
+        Object id = first.firstItemId();
+        Assert.assertEquals("Ville", first.getContainerProperty(id, "NAME")
+                .getValue());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(2, cache.getMissCount());
+
+        SQLContainer second = createContainer();
+        Assert.assertEquals(4, second.size());
+        Assert.assertEquals("Ville", second.getContainerProperty(id, "NAME")
+                .getValue());
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertTrue(cache.getHitCount() >= 2);
+        Assert.assertNotSame(first.getItem(id), second.getItem(id));
+    }
+
+    @Test
+    public void getItem_differentFilter_readsSeparateResults()
+            throws SQLException {
+        SQLContainer first = createContainer();
+        first.getItem(first.firstItemId());
+        long misses = cache.getMissCount();
+
+        SQLContainer second = createContainer();
+        second.addContainerFilter(new Equal("NAME", "Pelle"));
+        Assert.assertEquals(1, second.size());
+        Assert.assertEquals("Pelle", second.getContainerProperty(
+                second.firstItemId(), "NAME").getValue());
+        Assert.assertTrue(cache.getMissCount() > misses);
+    }
+
+    @Test
+    public void getItem_containerOfOtherConnectionPool_readsSeparateResults()
+            throws SQLException {
+        SQLContainer first = createContainer();
+        first.getItem(first.firstItemId());
+
+        JDBCConnectionPool otherPool = new SimpleJDBCConnectionPool(
+                AllTests.dbDriver, AllTests.dbURL, AllTests.dbUser,
+                AllTests.dbPwd, 2, 2);
+        try {
+            SQLContainer second = createContainer(otherPool);
+            second.getItem(second.firstItemId());
+            Assert.assertEquals(4, cache.getMissCount());
+            Assert.assertEquals(4, cache.size());
+        } finally {
+            otherPool.destroy();
+        }
+    }
+
+    @Test
+    public void setValue_autoCommit_evictsResultsOfTable()
+            throws SQLException {
+        SQLContainer first = createContainer();
+        first.setAutoCommit(true);
+        Object id = first.firstItemId();
+        first.getContainerProperty(id, "NAME").setValue("Viljami");
+        Assert.assertEquals(0, cache.size());
+
+        SQLContainer second = createContainer();
+        Assert.assertEquals("Viljami",
+                second.getContainerProperty(id, "NAME").getValue());
+    }
+
+    @Test
+    public void commit_modifiedItem_evictsResultsOfTable() throws SQLException {
+        SQLContainer first = createContainer();
+        Object id = first.firstItemId();
+        first.getContainerProperty(id, "NAME").setValue("Viljami");
+        first.commit();
+
+        SQLContainer second = createContainer();
+        Assert.assertEquals("Viljami",
+                second.getContainerProperty(id, "NAME").getValue());
+    }
+
+    @Test
+    public void setValue_containersSubscribedToNotifications_invalidatesCacheOnce()
+            throws SQLException {
+        final AtomicInteger invalidations = new AtomicInteger();
+        cache = new QueryResultCache(QueryResultCache.DEFAULT_MAX_WEIGHT,
+                QueryResultCache.DEFAULT_TIME_TO_LIVE) {
+            @Override
+            public synchronized void invalidateTable(String tableName) {
+                invalidations.incrementAndGet();
+                super.invalidateTable(tableName);
+            }
+        };
+        List<SQLContainer> containers = new ArrayList<SQLContainer>();
+        for (int i = 0; i < 3; i++) {
+            SQLContainer container = createContainer();
+            container.enableCacheFlushNotifications();
+            containers.add(container);
+        }
+        SQLContainer writer = containers.get(0);
+        writer.setAutoCommit(true);
+        writer.getContainerProperty(writer.firstItemId(), "NAME").setValue(
+                "Viljami");
+        Assert.assertEquals(1, invalidations.get());
+    }
+
+    @Test
+    public void getItem_resultExpired_readsPageAgain() throws SQLException,
+            InterruptedException {
+        cache = new QueryResultCache(QueryResultCache.DEFAULT_MAX_WEIGHT, 50);
+        SQLContainer first = createContainer();
+        Object id = first.firstItemId();
+        first.getItem(id);
+        executeUpdate("update people set NAME = 'Viljami' where ID = "
+                + ((RowId) id).getId()[0]);
+        Thread.sleep(100);
+
+        SQLContainer second = createContainer();
+        Assert.assertEquals("Viljami",
+                second.getContainerProperty(id, "NAME").getValue());
+    }
+
+    @Test
+    public void get_overMaximumWeight_evictsLeastRecentlyUsedResults()
+            throws SQLException {
+        cache = new QueryResultCache(1000,
+                QueryResultCache.DEFAULT_TIME_TO_LIVE);
+        SQLContainer container = createContainer();
+        Assert.assertEquals("Börje", container.getContainerProperty(
+                container.lastItemId(), "NAME").getValue());
+        Assert.assertTrue(cache.getWeight() <= 1000);
+    }
+
+    @Test
+    public void get_concurrentMisses_loadsOnce() throws Exception {
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        final StatementHelper sh = query.getCountStatement();
+        final String tableName = query.getTableName();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final QueryResultCache.Loader<Integer> loader = new QueryResultCache.Loader<Integer>() {
+            public Integer load() throws SQLException {
+                loads.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 4;
+            }
+        };
+        final List<Integer> results = new ArrayList<Integer>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Integer result = cache.get(connectionPool,
+                                tableName, sh, loader);
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        started.await();
+        Thread.sleep(50);
+        release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(Integer.valueOf(4), results.get(2));
+    }
+
+    @Test
+    public void invalidateTable_duringLoad_resultIsNotCached()
+            throws SQLException {
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        final String tableName = query.getTableName();
+        cache.get(connectionPool, tableName, query.getCountStatement(),
+                new QueryResultCache.Loader<Integer>() {
+                    public Integer load() throws SQLException {
+                        cache.invalidateTable(tableName);
+                        return 4;
+                    }
+                });
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_zeroTimeToLive_shouldFail() {
+        new QueryResultCache(QueryResultCache.DEFAULT_MAX_WEIGHT, 0);
+    }
+}
@@ -1,12 +1,21 @@
 package com.vaadin.addon.sqlcontainer;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.math.BigDecimal;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.easymock.EasyMock;
 import org.junit.After;
@@ -19,8 +28,13 @@ import com.vaadin.addon.sqlcontainer.SQLContainer.ItemSetChangeEvent;
 import com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool;
 import com.vaadin.addon.sqlcontainer.connection.SimpleJDBCConnectionPool;
 import com.vaadin.addon.sqlcontainer.filters.Like;
+import com.vaadin.addon.sqlcontainer.query.FreeformQuery;
 import com.vaadin.addon.sqlcontainer.query.OrderBy;
 import com.vaadin.addon.sqlcontainer.query.TableQuery;
+import com.vaadin.addon.sqlcontainer.query.generator.DefaultSQLGenerator;
+import com.vaadin.addon.sqlcontainer.query.generator.SQLGenerator;
+import com.vaadin.addon.sqlcontainer.query.generator.StatementHelper;
+import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Container.ItemSetChangeListener;
 import com.vaadin.data.Item;
 
@@ -189,6 +203,105 @@ public class SQLContainerTableQueryTest {
         }
     }
 
+    @Test
+    public void getItemIds_table5000rows_iteratesAllIdsInContainerOrder()
+            throws SQLException {
+        DataGenerator.addFiveThousandPeople(connectionPool);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.sort(new Object[] { "NAME" }, new boolean[] { true });
+        Collection<?> itemIds = container.getItemIds();
+        Assert.assertEquals(5000, itemIds.size());
+        int index = 0;
+        for (Object id : itemIds) {
+            Assert.assertEquals(container.getIdByIndex(index), id);
+            index++;
+        }
+        Assert.assertEquals(5000, index);
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void getItemIds_tableRemovingWhileIteratingAutoCommit_shouldFail()
+            throws SQLException {
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setPageLength(1);
+        container.setAutoCommit(true);
+        for (Object id : container.getItemIds()) {
+            container.removeItem(id);
+        }
+    }
+
+    @Test
+    public void getItemIds_tableRemovingWhileIteratingBuffered_removesAll()
+            throws SQLException {
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setPageLength(1);
+        for (Object id : container.getItemIds()) {
+            container.removeItem(id);
+        }
+        Assert.assertEquals(0, container.size());
+    }
+
+    @Test
+    public void getItemIds_tableRemovingWhileIteratingCopyAutoCommit_removesAll()
+            throws SQLException {
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setPageLength(1);
+        container.setAutoCommit(true);
+        for (Object id : new ArrayList<Object>(container.getItemIds())) {
+            container.removeItem(id);
+        }
+        Assert.assertEquals(0, container.size());
+    }
+
+    @Test
+    public void getItems_fiveColumnKeyUncachedIds_fetchesItemsByCompositeKey()
+            throws SQLException {
+        DataGenerator.addCompositeKeyRows(connectionPool, 5);
+        TableQuery query = new TableQuery("composite", connectionPool,
+                AllTests.sqlGen);
+        Assert.assertEquals(TableQuery.MAX_KEY_PARAMETERS / 5,
+                query.getMaxKeysPerQuery());
+        List<Object> ids = new ArrayList<Object>(new SQLContainer(query)
+                .getItemIds());
+        Assert.assertEquals(5, ids.size());
+
+        SQLContainer container = new SQLContainer(new TableQuery("composite",
+                connectionPool, AllTests.sqlGen));
+        Map<Object, Item> items = container.getItems(ids);
+        Assert.assertEquals(5, items.size());
+        Assert.assertEquals("Row 4", items.get(ids.get(4))
+                .getItemProperty("NAME").getValue());
+    }
+
+    @Test
+    public void getItems_table5000rowsUncachedIds_returnsItemsInGivenOrder()
+            throws SQLException {
+        DataGenerator.addFiveThousandPeople(connectionPool);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        List<Object> ids = new ArrayList<Object>();
+        for (int i = 4999; i >= 0; i -= 7) {
+            ids.add(container.getIdByIndex(i));
+        }
+        ids.add(new RowId(new Object[] { 1337 + 5000 + offset }));
+        SQLContainer other = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        Map<Object, Item> items = other.getItems(ids);
+        Assert.assertEquals(ids.size() - 1, items.size());
+        Assert.assertEquals(ids.subList(0, ids.size() - 1),
+                new ArrayList<Object>(items.keySet()));
+        for (Object id : items.keySet()) {
+            Assert.assertEquals(container.getItem(id).getItemProperty("NAME")
+                    .getValue(), items.get(id).getItemProperty("NAME")
+                    .getValue());
+            Assert.assertSame(items.get(id), other.getItem(id));
+        }
+    }
+
     @Test
     public void getType_tableNAMEPropertyId_returnsString() throws SQLException {
         SQLContainer container = new SQLContainer(new TableQuery("people",
@@ -273,6 +386,153 @@ public class SQLContainerTableQueryTest {
         }
     }
 
+    @Test
+    public void indexOfId_table5000RowsSortedByNameItemNotCached_returnsIndexOfItem()
+            throws SQLException {
+        DataGenerator.addFiveThousandPeople(connectionPool);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.sort(new Object[] { "NAME" }, new boolean[] { false });
+        Object itemId = container.getIdByIndex(3210);
+        SQLContainer other = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        other.sort(new Object[] { "NAME" }, new boolean[] { false });
+        Assert.assertEquals(3210, other.indexOfId(itemId));
+        Assert.assertEquals(itemId, other.getIdByIndex(3210));
+    }
+
+    @Test
+    public void getIdByIndex_table5000rowsSeekPagingSortedByName_returnsSameIdsAsOffsetPaging()
+            throws SQLException {
+        DataGenerator.addFiveThousandPeople(connectionPool);
+        TableQuery seekQuery = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        seekQuery.setSeekPagingEnabled(true);
+        SQLContainer seekContainer = new SQLContainer(seekQuery);
+        seekContainer.sort(new Object[] { "NAME" }, new boolean[] { true });
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.sort(new Object[] { "NAME", "ID" }, new boolean[] { true,
+                true });
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(container.getIdByIndex(i),
+                    seekContainer.getIdByIndex(i));
+        }
+        Assert.assertEquals(container.getIdByIndex(4500),
+                seekContainer.getIdByIndex(4500));
+    }
+
+    @Test
+    public void indexOfId_sortedByColumnWithNulls_matchesGetIdByIndex()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate("update people set AGE = NULL where NAME in "
+                + "('Kalle', 'Pelle')");
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        for (boolean ascending : new boolean[] { true, false }) {
+            container.sort(new Object[] { "AGE" }, new boolean[] { ascending });
+            List<Object> ids = new ArrayList<Object>();
+            for (int i = 0; i < 4; i++) {
+                ids.add(container.getIdByIndex(i));
+            }
+            for (int i = 0; i < 4; i++) {
+                SQLContainer other = new SQLContainer(new TableQuery("people",
+                        connectionPool, AllTests.sqlGen));
+                other.sort(new Object[] { "AGE" }, new boolean[] { ascending });
+                Assert.assertEquals(i, other.indexOfId(ids.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void getIdByIndex_seekPagingSortedByColumnWithNulls_returnsSameIdsAsOffsetPaging()
+            throws SQLException {
+        DataGenerator.addFiveThousandPeople(connectionPool);
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate("update people set AGE = NULL where "
+                + "mod(ID, 7) = 0 or ID > 4000");
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+        TableQuery seekQuery = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        seekQuery.setSeekPagingEnabled(true);
+        SQLContainer seekContainer = new SQLContainer(seekQuery);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        for (boolean ascending : new boolean[] { true, false }) {
+            seekContainer.sort(new Object[] { "AGE" },
+                    new boolean[] { ascending });
+            container.sort(new Object[] { "AGE", "ID" }, new boolean[] {
+                    ascending, true });
+            for (int i = 0; i < 5000; i++) {
+                Assert.assertEquals(container.getIdByIndex(i),
+                        seekContainer.getIdByIndex(i));
+            }
+        }
+    }
+
+    @Test
+    public void getIdByIndex_table5000rowsPrefetchEnabled_returnsSameIdsInBothDirections()
+            throws SQLException {
+        DataGenerator.addFiveThousandPeople(connectionPool);
+        SQLContainer prefetching = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        prefetching.setPrefetchEnabled(true);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(container.getIdByIndex(i),
+                    prefetching.getIdByIndex(i));
+        }
+        for (int i = 999; i >= 0; i--) {
+            Assert.assertEquals(container.getIdByIndex(i),
+                    prefetching.getIdByIndex(i));
+        }
+        prefetching.sort(new Object[] { "NAME" }, new boolean[] { false });
+        container.sort(new Object[] { "NAME" }, new boolean[] { false });
+        for (int i = 0; i < 500; i++) {
+            Assert.assertEquals(container.getIdByIndex(i),
+                    prefetching.getIdByIndex(i));
+        }
+        Assert.assertTrue(prefetching.getPrefetchHitCount() > 0);
+        Assert.assertEquals(0, container.getPrefetchHitCount());
+    }
+
+    @Test
+    public void getItem_table5000rowsBouncingBetweenFirstAndLastPage_servesItemsFromCache()
+            throws SQLException {
+        DataGenerator.addFiveThousandPeople(connectionPool);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        Item first = container.getItem(container.getIdByIndex(0));
+        Item last = container.getItem(container.getIdByIndex(4999));
+        Assert.assertSame(first, container.getItem(container.getIdByIndex(0)));
+        Assert.assertSame(last,
+                container.getItem(container.getIdByIndex(4999)));
+    }
+
+    @Test
+    public void getItem_table5000rowsCacheRowLimitOnePage_evictsLeastRecentlyUsedPage()
+            throws SQLException {
+        DataGenerator.addFiveThousandPeople(connectionPool);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setCacheRowLimit(1);
+        Object firstId = container.getIdByIndex(0);
+        Item first = container.getItem(firstId);
+        container.getIdByIndex(4999);
+        Item refetched = container.getItem(container.getIdByIndex(0));
+        Assert.assertNotSame(first, refetched);
+        Assert.assertEquals(firstId, container.getIdByIndex(0));
+    }
+
     @Test
     public void getIdByIndex_table5000rowsIndex1337_returnsRowId1337()
             throws SQLException {
@@ -1039,6 +1299,375 @@ public class SQLContainerTableQueryTest {
         Assert.assertEquals(0, container.size());
     }
 
+    @Test
+    public void removeAllItems_tableFilteredAutoCommit_removesOnlyFilteredRows()
+            throws SQLException {
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setAutoCommit(true);
+        container.addContainerFilter(new Like("NAME", "%lle"));
+        Assert.assertEquals(3, container.size());
+        Assert.assertTrue(container.removeAllItems());
+        Assert.assertEquals(0, container.size());
+        container.removeAllContainerFilters();
+        Assert.assertEquals(1, container.size());
+        Assert.assertEquals("Börje",
+                container.getContainerProperty(container.firstItemId(),
+                        "NAME").getValue());
+    }
+
+    @Test
+    public void removeAllItems_tableAutoCommitRuntimeException_rollsBackTransaction()
+            throws SQLException {
+        @SuppressWarnings("serial")
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen) {
+            @Override
+            public int removeAllRows() throws SQLException {
+                super.removeAllRows();
+                throw new IllegalStateException("Failure after the delete");
+            }
+        };
+        SQLContainer container = new SQLContainer(query);
+        container.setAutoCommit(true);
+        try {
+            container.removeAllItems();
+            Assert.fail("The exception should be propagated");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // The transaction has been rolled back and a new one can be begun
+        query.beginTransaction();
+        query.rollback();
+        Assert.assertEquals(4, container.size());
+    }
+
+    @Test
+    public void removeAllItems_tableFilteredBuffered_keepsAddedItemsNotPassingFilters()
+            throws SQLException {
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        Object hidden = container.addItem();
+        container.getContainerProperty(hidden, "NAME").setValue("Hidden");
+        Object shown = container.addItem();
+        container.getContainerProperty(shown, "NAME").setValue("Shown lle");
+        container.addContainerFilter(new Like("NAME", "%lle"));
+        Assert.assertEquals(4, container.size());
+        Assert.assertTrue(container.removeAllItems());
+        Assert.assertEquals(0, container.size());
+        container.removeAllContainerFilters();
+        Assert.assertTrue(container.containsId(hidden));
+        Assert.assertFalse(container.containsId(shown));
+        Assert.assertEquals(2, container.size());
+    }
+
+    @Test
+    public void removeAllItems_tableVersionColumn_commitRemovesRowsInChunks()
+            throws SQLException {
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        // In this test the primary key is used as a version column
+        query.setVersionColumn("ID");
+        query.setBatchSize(3);
+        SQLContainer container = new SQLContainer(query);
+        Object first = container.firstItemId();
+        Assert.assertTrue(container.removeAllItems());
+        Assert.assertEquals(0, container.size());
+        Assert.assertFalse(container.containsId(first));
+        Assert.assertTrue(container.isModified());
+        container.commit();
+
+        Assert.assertFalse(container.isModified());
+        Assert.assertEquals(0, container.size());
+        Assert.assertEquals(0, query.getCount());
+    }
+
+    @Test
+    public void setValue_tableAutoCommitTwoProperties_bothWrittenToDB()
+            throws SQLException {
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        SQLContainer container = new SQLContainer(query);
+        container.setAutoCommit(true);
+        Object id = container.firstItemId();
+        Item item = container.getItem(id);
+        item.getItemProperty("NAME").setValue("Updated");
+        Assert.assertFalse(((ColumnProperty) item.getItemProperty("NAME"))
+                .isModified());
+        item.getItemProperty("AGE").setValue(99);
+
+        SQLContainer other = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        Item stored = other.getItem(id);
+        Assert.assertEquals("Updated", stored.getItemProperty("NAME")
+                .getValue());
+        Assert.assertEquals(99, ((Number) stored.getItemProperty("AGE")
+                .getValue()).intValue());
+    }
+
+    @Test
+    public void setValue_tableWriteBehind_writtenOnFlush() throws SQLException {
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setAutoCommit(true);
+        container.setWriteBehindDelay(60000);
+        Object id = container.firstItemId();
+        Item item = container.getItem(id);
+        String name = (String) item.getItemProperty("NAME").getValue();
+        item.getItemProperty("NAME").setValue("Updated");
+        item.getItemProperty("AGE").setValue(99);
+        Assert.assertEquals("Updated", item.getItemProperty("NAME").getValue());
+
+        SQLContainer other = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        Assert.assertEquals(name, other.getItem(id).getItemProperty("NAME")
+                .getValue());
+
+        container.flushWrites();
+        other.refresh();
+        Item stored = other.getItem(id);
+        Assert.assertEquals("Updated", stored.getItemProperty("NAME")
+                .getValue());
+        Assert.assertEquals(99, ((Number) stored.getItemProperty("AGE")
+                .getValue()).intValue());
+    }
+
+    @Test
+    public void setValue_tableWriteBehind_writtenInBackground()
+            throws Exception {
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setAutoCommit(true);
+        container.setWriteBehindDelay(10);
+        Object id = container.firstItemId();
+        container.getContainerProperty(id, "NAME").setValue("Updated");
+
+        SQLContainer other = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        for (int i = 0; i < 100; i++) {
+            other.refresh();
+            if ("Updated".equals(other.getContainerProperty(id, "NAME")
+                    .getValue())) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        Assert.fail("The change was not written in the background");
+    }
+
+    @Test
+    public void flushWrites_tableWriteBehindRowChangedExternally_listenerNotified()
+            throws SQLException {
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        // In this test the primary key is used as a version column
+        query.setVersionColumn("ID");
+        SQLContainer container = new SQLContainer(query);
+        container.setAutoCommit(true);
+        container.setWriteBehindDelay(60000);
+        final List<SQLContainer.WriteFailedEvent> events = new ArrayList<SQLContainer.WriteFailedEvent>();
+        container.addListener(new SQLContainer.WriteFailedListener() {
+            public void writeFailed(SQLContainer.WriteFailedEvent event) {
+                events.add(event);
+            }
+        });
+        Object id = container.firstItemId();
+        container.getContainerProperty(id, "NAME").setValue("Updated");
+
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate("DELETE FROM people WHERE \"ID\" = "
+                + container.getContainerProperty(id, "ID").getValue());
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+
+        container.flushWrites();
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(id, events.get(0).getRowIds().get(0));
+        Assert.assertTrue(events.get(0).getCause() instanceof OptimisticLockException);
+    }
+
+    @Test
+    public void flushWrites_tableWriteBehindRowChangedExternally_showsExternalValues()
+            throws SQLException {
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        // In this test the age is used as a version column
+        query.setVersionColumn("AGE");
+        SQLContainer container = new SQLContainer(query);
+        container.setAutoCommit(true);
+        container.setWriteBehindDelay(60000);
+        Object id = container.firstItemId();
+        container.getContainerProperty(id, "NAME").setValue("Updated");
+
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate("UPDATE people SET \"NAME\" = 'External', "
+                + "\"AGE\" = \"AGE\" + 1 WHERE \"ID\" = "
+                + container.getContainerProperty(id, "ID").getValue());
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+
+        container.flushWrites();
+        Assert.assertEquals("External", container.getContainerProperty(id,
+                "NAME").getValue());
+    }
+
+    @Test
+    public void flushWrites_tableWriteBehindWriteFailed_changesWrittenAgain()
+            throws SQLException {
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setAutoCommit(true);
+        container.setWriteBehindDelay(60000);
+        final List<SQLContainer.WriteFailedEvent> events = new ArrayList<SQLContainer.WriteFailedEvent>();
+        container.addListener(new SQLContainer.WriteFailedListener() {
+            public void writeFailed(SQLContainer.WriteFailedEvent event) {
+                events.add(event);
+            }
+        });
+        Object id = container.firstItemId();
+        container.getContainerProperty(id, "AGE").setValue(99);
+
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.execute("ALTER TABLE people RENAME TO people_moved");
+        conn.commit();
+        container.flushWrites();
+        statement.execute("ALTER TABLE people_moved RENAME TO people");
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+        Assert.assertEquals(1, events.size());
+
+        container.getContainerProperty(id, "NAME").setValue("Updated");
+        container.flushWrites();
+        Assert.assertEquals(1, events.size());
+        SQLContainer other = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        Item stored = other.getItem(id);
+        Assert.assertEquals("Updated", stored.getItemProperty("NAME")
+                .getValue());
+        Assert.assertEquals(99, ((Number) stored.getItemProperty("AGE")
+                .getValue()).intValue());
+    }
+
+    @Test
+    public void commit_tableConflictCollectionEnabled_reportsAllConflicts()
+            throws SQLException {
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        // In this test the age is used as a version column
+        query.setVersionColumn("AGE");
+        SQLContainer container = new SQLContainer(query);
+        container.setConflictCollectionEnabled(true);
+        container.setConflictRereadEnabled(true);
+        Object first = container.firstItemId();
+        Object second = container.nextItemId(first);
+        Object third = container.nextItemId(second);
+        container.getContainerProperty(first, "NAME").setValue("First");
+        container.getContainerProperty(second, "NAME").setValue("Second");
+        container.getContainerProperty(third, "NAME").setValue("Third");
+
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate("UPDATE people SET \"AGE\" = 99 WHERE \"ID\" = "
+                + container.getContainerProperty(first, "ID").getValue());
+        statement.executeUpdate("DELETE FROM people WHERE \"ID\" = "
+                + container.getContainerProperty(third, "ID").getValue());
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+
+        try {
+            container.commit();
+            Assert.fail("Commit should report the conflicts");
+        } catch (CommitConflictException e) {
+            Assert.assertEquals(2, e.getRowIds().size());
+            Assert.assertTrue(e.getRowIds().contains(first));
+            Assert.assertTrue(e.getRowIds().contains(third));
+            Assert.assertEquals(1, e.getCurrentItems().size());
+            Assert.assertEquals(99, ((Number) e.getCurrentItems().get(first)
+                    .getItemProperty("AGE").getValue()).intValue());
+        }
+        // The changes are still buffered and nothing has been written
+        Assert.assertTrue(container.isModified());
+        SQLContainer fresh = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        Assert.assertEquals("Kalle",
+                fresh.getContainerProperty(second, "NAME").getValue());
+    }
+
+    @Test
+    public void commit_driverReportsNoBatchCounts_reportsAllConflicts()
+            throws SQLException {
+        TableQuery query = new TableQuery("people",
+                new NoInfoBatchConnectionPool(connectionPool), AllTests.sqlGen);
+        // In this test the age is used as a version column
+        query.setVersionColumn("AGE");
+        SQLContainer container = new SQLContainer(query);
+        container.setConflictCollectionEnabled(true);
+        Object first = container.firstItemId();
+        Object second = container.nextItemId(first);
+        Object third = container.nextItemId(second);
+        container.getContainerProperty(first, "NAME").setValue("First");
+        container.getContainerProperty(second, "NAME").setValue("Second");
+        container.getContainerProperty(third, "NAME").setValue("Third");
+
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate("UPDATE people SET \"AGE\" = 99 WHERE \"ID\" = "
+                + container.getContainerProperty(first, "ID").getValue());
+        statement.executeUpdate("DELETE FROM people WHERE \"ID\" = "
+                + container.getContainerProperty(third, "ID").getValue());
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+
+        try {
+            container.commit();
+            Assert.fail("Commit should report the conflicts");
+        } catch (CommitConflictException e) {
+            Assert.assertEquals(2, e.getRowIds().size());
+            Assert.assertTrue(e.getRowIds().contains(first));
+            Assert.assertTrue(e.getRowIds().contains(third));
+        }
+    }
+
+    @Test
+    public void commit_removeAllItemsDriverReportsNoBatchCounts_reportsConflicts()
+            throws SQLException {
+        TableQuery query = new TableQuery("people",
+                new NoInfoBatchConnectionPool(connectionPool), AllTests.sqlGen);
+        // In this test the age is used as a version column
+        query.setVersionColumn("AGE");
+        SQLContainer container = new SQLContainer(query);
+        container.setConflictCollectionEnabled(true);
+        Object first = container.firstItemId();
+        container.removeAllItems();
+
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate("UPDATE people SET \"AGE\" = 99 WHERE \"ID\" = "
+                + ((RowId) first).getId()[0]);
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+
+        try {
+            container.commit();
+            Assert.fail("Commit should report the conflict");
+        } catch (CommitConflictException e) {
+            Assert.assertEquals(1, e.getRowIds().size());
+            Assert.assertTrue(e.getRowIds().contains(first));
+        }
+        SQLContainer fresh = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        Assert.assertEquals(4, fresh.size());
+    }
+
     @Test
     public void commit_tableAddedItem_shouldBeWrittenToDB() throws SQLException {
         TableQuery query = new TableQuery("people", connectionPool,
@@ -1078,6 +1707,61 @@ public class SQLContainerTableQueryTest {
                         .getValue());
     }
 
+    @Test
+    public void commit_tableTwoAddedItemsMultiRowInsertEnabled_shouldBeWrittenToDB()
+            throws SQLException {
+        if (AllTests.db != DB.HSQLDB) {
+            return;
+        }
+        DefaultSQLGenerator generator = new DefaultSQLGenerator();
+        generator.setMultiRowInsertEnabled(true);
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, generator));
+        Object id = container.addItem();
+        Object id2 = container.addItem();
+        container.getContainerProperty(id, "NAME").setValue("Herbert");
+        container.getContainerProperty(id2, "NAME").setValue("Larry");
+        container.commit();
+        Object nextToLast = container.getIdByIndex(container.size() - 2);
+        Assert.assertFalse(nextToLast instanceof TemporaryRowId);
+        Assert.assertEquals("Herbert",
+                container.getContainerProperty(nextToLast, "NAME").getValue());
+        Assert.assertFalse(container.lastItemId() instanceof TemporaryRowId);
+        Assert.assertEquals("Larry",
+                container.getContainerProperty(container.lastItemId(), "NAME")
+                        .getValue());
+    }
+
+    @Test
+    public void commit_tableManyAddedAndModifiedItemsInBatches_shouldBeWrittenToDB()
+            throws SQLException {
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        query.setBatchSize(3);
+        SQLContainer container = new SQLContainer(query);
+        for (Object id : container.getItemIds()) {
+            container.getContainerProperty(id, "NAME").setValue("Modified");
+        }
+        for (int i = 0; i < 20; i++) {
+            Object id = container.addItem();
+            container.getContainerProperty(id, "NAME").setValue("Added " + i);
+        }
+        container.commit();
+
+        Assert.assertEquals(24, container.size());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals("Modified",
+                    container.getContainerProperty(container.getIdByIndex(i),
+                            "NAME").getValue());
+        }
+        for (int i = 0; i < 20; i++) {
+            Object id = container.getIdByIndex(4 + i);
+            Assert.assertFalse(id instanceof TemporaryRowId);
+            Assert.assertEquals("Added " + i,
+                    container.getContainerProperty(id, "NAME").getValue());
+        }
+    }
+
     @Test
     public void commit_tableRemovedItem_shouldBeRemovedFromDB()
             throws SQLException {
@@ -1186,6 +1870,29 @@ public class SQLContainerTableQueryTest {
         EasyMock.verify(listener);
     }
 
+    @Test
+    public void size_asynchronousSizePolicyRowsAddedToTable_servesOldSizeUntilCountArrives()
+            throws SQLException, InterruptedException {
+        SQLContainer container = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        container.setSizePolicy(new DefaultSizePolicy(0, true, false));
+        Assert.assertEquals(4, container.size());
+        final List<ItemSetChangeEvent> events = new ArrayList<ItemSetChangeEvent>();
+        container.addListener(new ItemSetChangeListener() {
+            public void containerItemSetChange(
+                    com.vaadin.data.Container.ItemSetChangeEvent event) {
+                events.add((ItemSetChangeEvent) event);
+            }
+        });
+        DataGenerator.addFiveThousandPeople(connectionPool);
+        Assert.assertEquals(4, container.size());
+        for (int i = 0; i < 500 && container.size() == 4; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(5000, container.size());
+        Assert.assertFalse(events.isEmpty());
+    }
+
     @Test
     public void removeListener_table_shouldNotFire() throws SQLException {
         SQLContainer container = new SQLContainer(new TableQuery("people",
@@ -1487,4 +2194,246 @@ public class SQLContainerTableQueryTest {
                         .getValue());
     }
 
+    @Test
+    public void removeItem_cacheFlushNotificationsEnabled_refreshesContainersOfSameTableOnly()
+            throws SQLException {
+        SQLContainer writer = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        writer.setAutoCommit(true);
+        SQLContainer sameTable = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        SQLContainer freeform = new SQLContainer(new FreeformQuery(
+                "SELECT * FROM people", connectionPool, "ID"));
+        writer.enableCacheFlushNotifications();
+        sameTable.enableCacheFlushNotifications();
+        freeform.enableCacheFlushNotifications();
+        Assert.assertEquals(4, sameTable.size());
+        Assert.assertEquals(4, freeform.size());
+
+        writer.removeItem(writer.lastItemId());
+
+        Assert.assertEquals(3, sameTable.size());
+        Assert.assertEquals(4, freeform.size());
+    }
+
+    @Test
+    public void setValue_cacheFlushNotificationsEnabled_patchesUpdatedRowOnly()
+            throws SQLException {
+        SQLContainer writer = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        writer.setAutoCommit(true);
+        SQLContainer reader = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        writer.enableCacheFlushNotifications();
+        reader.enableCacheFlushNotifications();
+        Object first = reader.firstItemId();
+        Item untouched = reader.getItem(reader.lastItemId());
+        final List<ItemSetChangeEvent> events = new ArrayList<ItemSetChangeEvent>();
+        reader.addListener(new ItemSetChangeListener() {
+            public void containerItemSetChange(
+                    com.vaadin.data.Container.ItemSetChangeEvent event) {
+                events.add((ItemSetChangeEvent) event);
+            }
+        });
+
+        writer.getContainerProperty(first, "NAME").setValue("Viljami");
+
+        Assert.assertEquals("Viljami",
+                reader.getContainerProperty(first, "NAME").getValue());
+        Assert.assertSame(untouched, reader.getItem(reader.lastItemId()));
+        Assert.assertEquals(4, reader.size());
+        Assert.assertEquals(1, events.size());
+    }
+
+    @Test
+    public void setValue_cacheFlushNotificationsEnabled_keepsLocallyModifiedRow()
+            throws SQLException {
+        SQLContainer writer = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        writer.setAutoCommit(true);
+        SQLContainer reader = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        writer.enableCacheFlushNotifications();
+        reader.enableCacheFlushNotifications();
+        Object first = reader.firstItemId();
+        reader.getContainerProperty(first, "NAME").setValue("Local");
+
+        writer.getContainerProperty(first, "NAME").setValue("Viljami");
+
+        Assert.assertEquals("Local",
+                reader.getContainerProperty(first, "NAME").getValue());
+    }
+
+    @Test
+    public void addItem_cacheFlushNotificationsEnabled_updatesSize()
+            throws SQLException {
+        SQLContainer writer = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        writer.setAutoCommit(true);
+        SQLContainer reader = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        writer.enableCacheFlushNotifications();
+        reader.enableCacheFlushNotifications();
+        Assert.assertEquals(4, reader.size());
+
+        writer.addItem();
+
+        Assert.assertEquals(5, reader.size());
+    }
+
+    @Test
+    public void removeItem_cacheFlushNotificationsEnabled_shiftsCachedLaterPage()
+            throws SQLException {
+        SQLContainer writer = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        writer.setAutoCommit(true);
+        SQLContainer reader = new SQLContainer(new TableQuery("people",
+                connectionPool, AllTests.sqlGen));
+        reader.setPageLength(1);
+        writer.enableCacheFlushNotifications();
+        reader.enableCacheFlushNotifications();
+        Object first = reader.getIdByIndex(0);
+        // Caches the second segment, rows 2 and 3
+        reader.getIdByIndex(2);
+        Object last = reader.getIdByIndex(3);
+
+        // The size stays the same, so the reader is not refreshed
+        writer.removeItem(first);
+        writer.addItem();
+
+        Assert.assertEquals(4, reader.size());
+        Assert.assertEquals(last, reader.getIdByIndex(2));
+        Assert.assertEquals(2, reader.indexOfId(last));
+    }
+
+
+    /**
+     * Generator implementing only the SQLGenerator interface, as written
+     * before ExtendedSQLGenerator existed.
+     */
+    @SuppressWarnings("serial")
+    private static class BasicSQLGenerator implements SQLGenerator {
+        public StatementHelper generateSelectQuery(String tableName,
+                List<Filter> filters, List<OrderBy> orderBys, int offset,
+                int pagelength, String toSelect) {
+            return AllTests.sqlGen.generateSelectQuery(tableName, filters,
+                    orderBys, offset, pagelength, toSelect);
+        }
+
+        public StatementHelper generateUpdateQuery(String tableName,
+                RowItem item) {
+            return AllTests.sqlGen.generateUpdateQuery(tableName, item);
+        }
+
+        public StatementHelper generateInsertQuery(String tableName,
+                RowItem item) {
+            return AllTests.sqlGen.generateInsertQuery(tableName, item);
+        }
+
+        public StatementHelper generateDeleteQuery(String tableName,
+                List<String> primaryKeyColumns, String versionColumn,
+                RowItem item) {
+            return AllTests.sqlGen.generateDeleteQuery(tableName,
+                    primaryKeyColumns, versionColumn, item);
+        }
+    }
+
+    @Test
+    public void container_generatorImplementsOnlySQLGenerator_fallsBack()
+            throws SQLException {
+        TableQuery query = new TableQuery("people", connectionPool,
+                new BasicSQLGenerator());
+        query.setSeekPagingEnabled(true);
+        SQLContainer container = new SQLContainer(query);
+        container.setPageLength(2);
+        container.sort(new Object[] { "NAME" }, new boolean[] { true });
+        Assert.assertFalse(query.isSeekPagingEnabled());
+        Assert.assertEquals(4, query.getEstimatedCount());
+        Object lastId = container.getIdByIndex(3);
+        Assert.assertEquals("Ville", container.getContainerProperty(lastId,
+                "NAME").getValue());
+        Assert.assertEquals(3, container.indexOfId(lastId));
+
+        container.addItem();
+        container.addItem();
+        container.commit();
+        Assert.assertEquals(6, container.size());
+
+        Assert.assertTrue(container.removeAllItems());
+        container.commit();
+        Assert.assertEquals(0, container.size());
+    }
+
+    /**
+     * Connection pool whose prepared statements report
+     * Statement.SUCCESS_NO_INFO for every row of a batch, as some JDBC drivers
+     * do.
+     */
+    @SuppressWarnings("serial")
+    private static class NoInfoBatchConnectionPool implements
+            JDBCConnectionPool {
+        private final JDBCConnectionPool pool;
+        private final Map<Connection, Connection> connections = new IdentityHashMap<Connection, Connection>();
+
+        public NoInfoBatchConnectionPool(JDBCConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        public Connection reserveConnection() throws SQLException {
+            final Connection conn = pool.reserveConnection();
+            Connection proxy = (Connection) proxy(conn, Connection.class,
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method,
+                                Object[] args) throws Throwable {
+                            Object result = forward(conn, method, args);
+                            if (result instanceof PreparedStatement) {
+                                return noInfoStatement((PreparedStatement) result);
+                            }
+                            return result;
+                        }
+                    });
+            connections.put(proxy, conn);
+            return proxy;
+        }
+
+        public void releaseConnection(Connection conn) {
+            Connection real = connections.remove(conn);
+            pool.releaseConnection(real != null ? real : conn);
+        }
+
+        public void destroy() {
+            pool.destroy();
+        }
+
+        private static PreparedStatement noInfoStatement(
+                final PreparedStatement pstmt) {
+            return (PreparedStatement) proxy(pstmt, PreparedStatement.class,
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method,
+                                Object[] args) throws Throwable {
+                            Object result = forward(pstmt, method, args);
+                            if ("executeBatch".equals(method.getName())) {
+                                Arrays.fill((int[]) result,
+                                        Statement.SUCCESS_NO_INFO);
+                            }
+                            return result;
+                        }
+                    });
+        }
+
+        private static Object proxy(Object target, Class<?> type,
+                InvocationHandler handler) {
+            return Proxy.newProxyInstance(target.getClass().getClassLoader(),
+                    new Class<?>[] { type }, handler);
+        }
+
+        private static Object forward(Object target, Method method,
+                Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
 }
@@ -0,0 +1,185 @@
+package com.vaadin.addon.sqlcontainer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool;
+import com.vaadin.addon.sqlcontainer.connection.SimpleJDBCConnectionPool;
+import com.vaadin.addon.sqlcontainer.query.TableQuery;
+
+public class SharedRowCacheTest {
+    private JDBCConnectionPool connectionPool;
+    private SharedRowCache cache;
+
+    @Before
+    public void setUp() throws SQLException {
+        connectionPool = new SimpleJDBCConnectionPool(AllTests.dbDriver,
+                AllTests.dbURL, AllTests.dbUser, AllTests.dbPwd, 2, 2);
+        DataGenerator.addPeopleToDatabase(connectionPool);
+        cache = new SharedRowCache(SharedRowCache.DEFAULT_MAX_WEIGHT);
+    }
+
+    @After
+    public void tearDown() {
+        connectionPool.destroy();
+    }
+
+    private SQLContainer createContainer(String versionColumn)
+            throws SQLException {
+        return createContainer(connectionPool, versionColumn);
+    }
+
+    private SQLContainer createContainer(JDBCConnectionPool pool,
+            String versionColumn) throws SQLException {
+        TableQuery query = new TableQuery("people", pool, AllTests.sqlGen);
+        query.setVersionColumn(versionColumn);
+        SQLContainer container = new SQLContainer(query);
+        container.setSharedRowCache(cache);
+        return container;
+    }
+
+    private void executeUpdate(String sql) throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate(sql);
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+    }
+
+    @Test
+    public void getItem_secondContainer_takesRowsFromSharedCache()
+            throws SQLException {
+        SQLContainer first = createContainer(null);
+        Object id = first.firstItemId();
+        Assert.assertEquals("Ville", first.getContainerProperty(id, "NAME")
+                .getValue());
+        Assert.assertEquals(4, cache.size());
+        Assert.assertEquals(4, cache.getMissCount());
+
+        SQLContainer second = createContainer(null);
+        Assert.assertEquals("Ville", second.getContainerProperty(id, "NAME")
+                .getValue());
+        Assert.assertEquals(4, cache.getHitCount());
+        Assert.assertEquals(4, cache.getMissCount());
+        Assert.assertNotSame(first.getItem(id), second.getItem(id));
+    }
+
+    @Test
+    public void setValue_autoCommit_evictsRowFromSharedCache()
+            throws SQLException {
+        SQLContainer first = createContainer(null);
+        first.setAutoCommit(true);
+        Object id = first.firstItemId();
+        first.getContainerProperty(id, "NAME").setValue("Viljami");
+        Assert.assertEquals(3, cache.size());
+
+        SQLContainer second = createContainer(null);
+        Assert.assertEquals("Viljami",
+                second.getContainerProperty(id, "NAME").getValue());
+    }
+
+    @Test
+    public void commit_removedItem_evictsRowFromSharedCache()
+            throws SQLException {
+        SQLContainer first = createContainer(null);
+        first.removeItem(first.lastItemId());
+        first.commit();
+        Assert.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void getItem_versionChangedExternally_readsRowAgain()
+            throws SQLException {
+        SQLContainer first = createContainer("AGE");
+        Object id = first.firstItemId();
+        first.getItem(id);
+        executeUpdate("update people set NAME = 'Viljami', AGE = 24 where ID = "
+                + ((RowId) id).getId()[0]);
+
+        SQLContainer second = createContainer("AGE");
+        Assert.assertEquals("Viljami",
+                second.getContainerProperty(id, "NAME").getValue());
+        Assert.assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void put_overMaximumWeight_evictsLeastRecentlyUsedRows()
+            throws SQLException {
+        cache = new SharedRowCache(600);
+        SQLContainer container = createContainer(null);
+        container.getItem(container.firstItemId());
+        Assert.assertTrue(cache.size() < 4);
+        Assert.assertTrue(cache.getWeight() <= 600);
+        Assert.assertEquals("Börje", container.getContainerProperty(
+                container.lastItemId(), "NAME").getValue());
+    }
+
+    @Test
+    public void getItem_containerOfOtherConnectionPool_readsRowsFromDatabase()
+            throws SQLException {
+        SQLContainer first = createContainer(null);
+        first.getItem(first.firstItemId());
+
+        JDBCConnectionPool otherPool = new SimpleJDBCConnectionPool(
+                AllTests.dbDriver, AllTests.dbURL, AllTests.dbUser,
+                AllTests.dbPwd, 2, 2);
+        try {
+            SQLContainer second = createContainer(otherPool, null);
+            second.getItem(second.firstItemId());
+            Assert.assertEquals(0, cache.getHitCount());
+            Assert.assertEquals(8, cache.size());
+        } finally {
+            otherPool.destroy();
+        }
+    }
+
+    @Test
+    public void getItem_rowWithoutVersionExpired_readsRowAgain()
+            throws SQLException, InterruptedException {
+        cache = new SharedRowCache(SharedRowCache.DEFAULT_MAX_WEIGHT, 1);
+        SQLContainer first = createContainer(null);
+        Object id = first.firstItemId();
+        first.getItem(id);
+        executeUpdate("update people set NAME = 'Viljami' where ID = "
+                + ((RowId) id).getId()[0]);
+        Thread.sleep(10);
+
+        SQLContainer second = createContainer(null);
+        Assert.assertEquals("Viljami",
+                second.getContainerProperty(id, "NAME").getValue());
+        Assert.assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void copyValues_dateChangedByContainer_cachedDateUnchanged() {
+        Date date = new Date(1000);
+        SharedRowCache.Row row = new SharedRowCache.Row(null,
+                new String[] { "DATE", "DATA" }, new Object[] { date,
+                        new byte[] { 1 } });
+        Object[] values = row.copyValues();
+        ((Date) values[0]).setTime(0);
+        ((byte[]) values[1])[0] = 2;
+
+        Object[] copies = row.copyValues();
+        Assert.assertEquals(1000, ((Date) copies[0]).getTime());
+        Assert.assertEquals(1, ((byte[]) copies[1])[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_zeroTimeToLive_shouldFail() {
+        new SharedRowCache(SharedRowCache.DEFAULT_MAX_WEIGHT, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_zeroMaximumWeight_shouldFail() {
+        new SharedRowCache(0);
+    }
+}
@@ -0,0 +1,250 @@
+package com.vaadin.addon.sqlcontainer.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.sqlcontainer.AllTests;
+
+public class ConcurrentJDBCConnectionPoolTest {
+    private ConcurrentJDBCConnectionPool connectionPool;
+
+    @Before
+    public void setUp() {
+        connectionPool = new ConcurrentJDBCConnectionPool(AllTests.dbDriver,
+                AllTests.dbURL, AllTests.dbUser, AllTests.dbPwd, 0, 2);
+        connectionPool.setConnectionTimeout(100);
+    }
+
+    @After
+    public void tearDown() {
+        connectionPool.destroy();
+    }
+
+    @Test
+    public void reserveConnection_reserveNewConnection_returnsConnection()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        Assert.assertNotNull(conn);
+        Assert.assertFalse(conn.getAutoCommit());
+    }
+
+    @Test
+    public void releaseConnection_releaseUnused_shouldNotThrowException()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        connectionPool.releaseConnection(conn);
+        Assert.assertFalse(conn.isClosed());
+    }
+
+    @Test
+    public void releaseConnection_nullConnection_shouldDoNothing() {
+        connectionPool.releaseConnection(null);
+    }
+
+    @Test
+    public void reserveConnection_sameThreadAfterRelease_returnsSameConnection()
+            throws SQLException {
+        Connection c1 = connectionPool.reserveConnection();
+        Connection c2 = connectionPool.reserveConnection();
+        connectionPool.releaseConnection(c1);
+        connectionPool.releaseConnection(c2);
+        Assert.assertSame(c2, connectionPool.reserveConnection());
+        Assert.assertSame(c1, connectionPool.reserveConnection());
+    }
+
+    @Test(expected = SQLException.class)
+    public void reserveConnection_noConnectionsLeft_shouldFailAfterTimeout()
+            throws SQLException {
+        connectionPool.reserveConnection();
+        connectionPool.reserveConnection();
+        connectionPool.reserveConnection();
+    }
+
+    @Test
+    public void reserveConnection_connectionReleasedWhileWaiting_returnsConnection()
+            throws Exception {
+        connectionPool.setConnectionTimeout(5000);
+        connectionPool.reserveConnection();
+        final Connection c2 = connectionPool.reserveConnection();
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                connectionPool.releaseConnection(c2);
+            }
+        };
+        releaser.start();
+        Assert.assertSame(c2, connectionPool.reserveConnection());
+        releaser.join();
+    }
+
+    @Test
+    public void releaseConnection_releasedConcurrently_releasedOnce()
+            throws Exception {
+        final Connection conn = connectionPool.reserveConnection();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread releaser = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    connectionPool.releaseConnection(conn);
+                }
+            };
+            releaser.start();
+            threads.add(releaser);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        connectionPool.reserveConnection();
+        connectionPool.reserveConnection();
+        try {
+            connectionPool.reserveConnection();
+            Assert.fail("More connections reserved than the maximum");
+        } catch (SQLException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void releaseConnection_maxLifetimeExceeded_closesConnection()
+            throws Exception {
+        connectionPool.setMaxLifetime(1);
+        Connection conn = connectionPool.reserveConnection();
+        Thread.sleep(10);
+        connectionPool.releaseConnection(conn);
+        Assert.assertTrue(conn.isClosed());
+        Assert.assertNotSame(conn, connectionPool.reserveConnection());
+    }
+
+    @Test
+    public void evictIdleConnections_idleTimeoutExceeded_closesConnection()
+            throws Exception {
+        connectionPool.setIdleTimeout(1);
+        Connection conn = connectionPool.reserveConnection();
+        connectionPool.releaseConnection(conn);
+        Thread.sleep(10);
+        connectionPool.evictIdleConnections();
+        Assert.assertTrue(conn.isClosed());
+    }
+
+    @Test
+    public void reserveConnection_brokenConnectionValidatedOnBorrow_returnsNewConnection()
+            throws SQLException {
+        connectionPool.setValidator(new ConnectionValidator());
+        Connection conn = connectionPool.reserveConnection();
+        connectionPool.releaseConnection(conn);
+        conn.close();
+        Connection other = connectionPool.reserveConnection();
+        Assert.assertNotSame(conn, other);
+        Assert.assertFalse(other.isClosed());
+    }
+
+    @Test
+    public void reserveConnection_whenIdleModeRecentlyUsed_skipsValidation()
+            throws SQLException {
+        connectionPool.setValidator(new ConnectionValidator());
+        connectionPool
+                .setValidationMode(ConcurrentJDBCConnectionPool.ValidationMode.WHEN_IDLE);
+        connectionPool.setValidationInterval(60000);
+        Connection conn = connectionPool.reserveConnection();
+        connectionPool.releaseConnection(conn);
+        conn.close();
+        Assert.assertSame(conn, connectionPool.reserveConnection());
+    }
+
+    @Test
+    public void housekeep_backgroundValidationBrokenConnection_closesConnection()
+            throws Exception {
+        connectionPool.setValidator(new ConnectionValidator());
+        connectionPool
+                .setValidationMode(ConcurrentJDBCConnectionPool.ValidationMode.BACKGROUND);
+        connectionPool.setValidationInterval(0);
+        Connection conn = connectionPool.reserveConnection();
+        connectionPool.releaseConnection(conn);
+        conn.close();
+        Thread.sleep(10);
+        connectionPool.housekeep();
+        Assert.assertNotSame(conn, connectionPool.reserveConnection());
+    }
+
+    @Test
+    public void reserveConnection_manyThreads_connectionsNeverShared()
+            throws Exception {
+        connectionPool.setConnectionTimeout(5000);
+        final List<Connection> inUse = new ArrayList<Connection>();
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        try {
+                            Connection c = connectionPool.reserveConnection();
+                            synchronized (inUse) {
+                                if (inUse.contains(c) || inUse.size() >= 2) {
+                                    failures.incrementAndGet();
+                                }
+                                inUse.add(c);
+                            }
+                            synchronized (inUse) {
+                                inUse.remove(c);
+                            }
+                            connectionPool.releaseConnection(c);
+                        } catch (SQLException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(0, failures.get());
+    }
+
+    @Test
+    public void destroy_shouldCloseAllConnections() throws SQLException {
+        Connection c1 = connectionPool.reserveConnection();
+        Connection c2 = connectionPool.reserveConnection();
+        connectionPool.releaseConnection(c1);
+        connectionPool.destroy();
+        Assert.assertTrue(c1.isClosed());
+        Assert.assertTrue(c2.isClosed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_onlyDriverNameGiven_shouldFail() {
+        new ConcurrentJDBCConnectionPool(AllTests.dbDriver, null, null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_moreInitialThanMaxConnections_shouldFail() {
+        new ConcurrentJDBCConnectionPool(AllTests.dbDriver, AllTests.dbURL,
+                AllTests.dbUser, AllTests.dbPwd, 3, 2);
+    }
+}
@@ -0,0 +1,65 @@
+package com.vaadin.addon.sqlcontainer.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.sqlcontainer.AllTests;
+import com.vaadin.addon.sqlcontainer.DataGenerator;
+
+public class ConnectionValidatorTest {
+    private JDBCConnectionPool connectionPool;
+
+    @Before
+    public void setUp() throws SQLException {
+        connectionPool = new SimpleJDBCConnectionPool(AllTests.dbDriver,
+                AllTests.dbURL, AllTests.dbUser, AllTests.dbPwd, 1, 1);
+        DataGenerator.addPeopleToDatabase(connectionPool);
+    }
+
+    @After
+    public void tearDown() {
+        connectionPool.destroy();
+    }
+
+    @Test
+    public void validate_openConnection_returnsTrue() throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        Assert.assertTrue(new ConnectionValidator().validate(conn));
+        connectionPool.releaseConnection(conn);
+    }
+
+    @Test
+    public void validate_closedConnection_returnsFalse() throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        conn.close();
+        Assert.assertFalse(new ConnectionValidator().validate(conn));
+    }
+
+    @Test
+    public void validate_testQueryOnOpenConnection_returnsTrue()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        Assert.assertTrue(new ConnectionValidator("SELECT * FROM people")
+                .validate(conn));
+        connectionPool.releaseConnection(conn);
+    }
+
+    @Test
+    public void validate_testQueryOnClosedConnection_returnsFalse()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        conn.close();
+        Assert.assertFalse(new ConnectionValidator("SELECT * FROM people")
+                .validate(conn));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setTimeout_negative_shouldFail() {
+        new ConnectionValidator().setTimeout(-1);
+    }
+}
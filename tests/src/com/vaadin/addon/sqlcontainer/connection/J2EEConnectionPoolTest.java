@@ -50,6 +50,28 @@ public class J2EEConnectionPoolTest {
         EasyMock.verify(connection, ds);
     }
 
+    @Test
+    public void getMetrics_connectionReservedAndReleased_shouldCountActive()
+            throws SQLException {
+        Connection connection = EasyMock.createMock(Connection.class);
+        connection.setAutoCommit(false);
+        EasyMock.expectLastCall();
+        connection.close();
+        EasyMock.expectLastCall();
+        DataSource ds = EasyMock.createMock(DataSource.class);
+        ds.getConnection();
+        EasyMock.expectLastCall().andReturn(connection);
+        EasyMock.replay(connection, ds);
+
+        J2EEConnectionPool pool = new J2EEConnectionPool(ds);
+        Connection c = pool.reserveConnection();
+        Assert.assertEquals(1, pool.getMetrics().getActiveConnections());
+        pool.releaseConnection(c);
+        Assert.assertEquals(0, pool.getMetrics().getActiveConnections());
+        Assert.assertEquals(1, pool.getMetrics().getReserveCount());
+        EasyMock.verify(connection, ds);
+    }
+
     @Test
     public void reserveConnection_dataSourceLookedUp_shouldReturnValidConnection()
             throws SQLException, NamingException {
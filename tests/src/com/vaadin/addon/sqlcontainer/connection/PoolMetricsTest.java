@@ -0,0 +1,154 @@
+package com.vaadin.addon.sqlcontainer.connection;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.sqlcontainer.AllTests;
+
+public class PoolMetricsTest {
+    private SimpleJDBCConnectionPool connectionPool;
+
+    @Before
+    public void setUp() throws SQLException {
+        connectionPool = new SimpleJDBCConnectionPool(AllTests.dbDriver,
+                AllTests.dbURL, AllTests.dbUser, AllTests.dbPwd, 2, 2);
+    }
+
+    @After
+    public void tearDown() {
+        connectionPool.getMetrics().unregisterMBean();
+        connectionPool.destroy();
+    }
+
+    @Test
+    public void reserveConnection_oneOfTwo_countsActiveAndIdle()
+            throws SQLException {
+        PoolMetrics metrics = connectionPool.getMetrics();
+        Connection conn = connectionPool.reserveConnection();
+        Assert.assertEquals(1, metrics.getActiveConnections());
+        Assert.assertEquals(1, metrics.getIdleConnections());
+        Assert.assertEquals(2, metrics.getCreatedConnections());
+        connectionPool.releaseConnection(conn);
+        Assert.assertEquals(0, metrics.getActiveConnections());
+        Assert.assertEquals(2, metrics.getIdleConnections());
+    }
+
+    @Test
+    public void reserveConnection_severalTimes_recordedInHistogram()
+            throws SQLException {
+        for (int i = 0; i < 3; i++) {
+            connectionPool.releaseConnection(connectionPool
+                    .reserveConnection());
+        }
+        long total = 0;
+        for (long count : connectionPool.getMetrics().getWaitTimeHistogram()) {
+            total += count;
+        }
+        Assert.assertEquals(3, total);
+        Assert.assertEquals(3, connectionPool.getMetrics().getReserveCount());
+    }
+
+    @Test
+    public void reserveConnection_limitReached_countsFailure()
+            throws SQLException {
+        connectionPool.reserveConnection();
+        connectionPool.reserveConnection();
+        try {
+            connectionPool.reserveConnection();
+            Assert.fail("Reserving should fail");
+        } catch (SQLException e) {
+            // expected
+        }
+        Assert.assertEquals(1, connectionPool.getMetrics()
+                .getFailedReserveCount());
+    }
+
+    @Test
+    public void reserveConnection_brokenConnection_countsValidationFailure()
+            throws SQLException {
+        connectionPool.setValidator(new ConnectionValidator());
+        Connection conn = connectionPool.reserveConnection();
+        connectionPool.releaseConnection(conn);
+        conn.close();
+        connectionPool.reserveConnection();
+        connectionPool.reserveConnection();
+        Assert.assertEquals(1, connectionPool.getMetrics()
+                .getValidationFailures());
+    }
+
+    @Test
+    public void checkForLeaks_connectionHeldTooLong_notifiesListener()
+            throws Exception {
+        PoolMetrics metrics = connectionPool.getMetrics();
+        metrics.setLeakThreshold(1);
+        metrics.setStackCaptureEnabled(true);
+        final List<PoolMetrics.PoolEvent> events = new ArrayList<PoolMetrics.PoolEvent>();
+        metrics.addListener(new PoolMetrics.PoolListener() {
+            public void poolChanged(PoolMetrics.PoolEvent event) {
+                if (event.getType() == PoolMetrics.PoolEvent.Type.LEAK_SUSPECTED) {
+                    events.add(event);
+                }
+            }
+        });
+        connectionPool.reserveConnection();
+        Thread.sleep(10);
+        Assert.assertEquals(1, metrics.getLeakSuspects().size());
+        Assert.assertNotNull(metrics.getLeakSuspects().get(0)
+                .getStackTrace());
+        metrics.checkForLeaks();
+        metrics.checkForLeaks();
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(Thread.currentThread().getName(), events.get(0)
+                .getLeakSuspect().getThreadName());
+    }
+
+    @Test
+    public void registerMBean_activeConnectionsReadThroughJMX()
+            throws Exception {
+        ObjectName name = connectionPool.getMetrics().registerMBean("test");
+        connectionPool.reserveConnection();
+        Assert.assertEquals(1, ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(name, "ActiveConnections"));
+        connectionPool.getMetrics().unregisterMBean();
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer()
+                .isRegistered(name));
+    }
+
+    @Test
+    public void destroy_registeredMBean_unregistersMBean() throws Exception {
+        ObjectName name = connectionPool.getMetrics().registerMBean("test");
+        connectionPool.destroy();
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer()
+                .isRegistered(name));
+    }
+
+    @Test
+    public void setLeakThreshold_connectionHeldTooLong_reportedInBackground()
+            throws Exception {
+        PoolMetrics metrics = connectionPool.getMetrics();
+        final CountDownLatch reported = new CountDownLatch(1);
+        metrics.addListener(new PoolMetrics.PoolListener() {
+            public void poolChanged(PoolMetrics.PoolEvent event) {
+                if (event.getType() == PoolMetrics.PoolEvent.Type.LEAK_SUSPECTED) {
+                    reported.countDown();
+                }
+            }
+        });
+        metrics.setLeakThreshold(1);
+        connectionPool.reserveConnection();
+        Assert.assertTrue(reported.await(5, TimeUnit.SECONDS));
+        metrics.setLeakThreshold(0);
+    }
+}
@@ -2,6 +2,8 @@ package com.vaadin.addon.sqlcontainer.connection;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 
@@ -147,6 +149,62 @@ public class SimpleJDBCConnectionPoolTest {
         EasyMock.verify(c);
     }
 
+    @Test
+    public void reserveConnection_brokenConnectionWithValidator_returnsNewConnection()
+            throws SQLException {
+        SimpleJDBCConnectionPool pool = new SimpleJDBCConnectionPool(
+                AllTests.dbDriver, AllTests.dbURL, AllTests.dbUser,
+                AllTests.dbPwd, 1, 1);
+        pool.setValidator(new ConnectionValidator());
+        Connection conn = pool.reserveConnection();
+        pool.releaseConnection(conn);
+        conn.close();
+        Connection other = pool.reserveConnection();
+        Assert.assertNotSame(conn, other);
+        Assert.assertFalse(other.isClosed());
+        pool.destroy();
+    }
+
+    @Test
+    public void reserveConnection_otherThreadValidating_doesNotWait()
+            throws Exception {
+        final SimpleJDBCConnectionPool pool = new SimpleJDBCConnectionPool(
+                AllTests.dbDriver, AllTests.dbURL, AllTests.dbUser,
+                AllTests.dbPwd, 1, 2);
+        final CountDownLatch validating = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        pool.setValidator(new ConnectionValidator() {
+            @Override
+            public boolean validate(Connection conn) {
+                validating.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return true;
+            }
+        });
+        Thread reserver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pool.releaseConnection(pool.reserveConnection());
+                } catch (SQLException e) {
+                    /* Fails the assertions below */
+                }
+            }
+        };
+        reserver.start();
+        Assert.assertTrue(validating.await(5, TimeUnit.SECONDS));
+        // The only idle connection is being validated, so a new one is opened
+        Connection conn = pool.reserveConnection();
+        Assert.assertFalse(conn.isClosed());
+        proceed.countDown();
+        reserver.join();
+        pool.destroy();
+    }
+
     @Test
     public void destroy_shouldCloseAllConnections() throws SQLException {
         Connection c1 = connectionPool.reserveConnection();
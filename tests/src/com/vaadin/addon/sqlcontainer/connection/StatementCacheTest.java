@@ -0,0 +1,142 @@
+package com.vaadin.addon.sqlcontainer.connection;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.sqlcontainer.AllTests;
+import com.vaadin.addon.sqlcontainer.DataGenerator;
+import com.vaadin.addon.sqlcontainer.query.TableQuery;
+
+public class StatementCacheTest {
+    private JDBCConnectionPool connectionPool;
+
+    @Before
+    public void setUp() throws SQLException {
+        connectionPool = new SimpleJDBCConnectionPool(AllTests.dbDriver,
+                AllTests.dbURL, AllTests.dbUser, AllTests.dbPwd, 1, 1);
+        DataGenerator.addPeopleToDatabase(connectionPool);
+    }
+
+    @After
+    public void tearDown() {
+        if (connectionPool != null) {
+            connectionPool.destroy();
+        }
+    }
+
+    @Test
+    public void prepare_sameQueryTwice_returnsCachedStatement()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        StatementCache cache = StatementCache.forConnection(conn);
+        PreparedStatement first = cache.prepare("SELECT * FROM people");
+        StatementCache.closeStatement(first);
+        PreparedStatement second = cache.prepare("SELECT * FROM people");
+        Assert.assertSame(first, second);
+        Assert.assertFalse(isClosed(second));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        connectionPool.releaseConnection(conn);
+    }
+
+    @Test
+    public void prepare_sameQueryWithKeyColumns_preparesNewStatement()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        StatementCache cache = StatementCache.forConnection(conn);
+        String sql = "INSERT INTO people (\"NAME\", \"AGE\") VALUES (?, ?)";
+        PreparedStatement plain = cache.prepare(sql);
+        PreparedStatement withKeys = cache.prepare(sql,
+                new String[] { "ID" });
+        Assert.assertNotSame(plain, withKeys);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(0, cache.getHitCount());
+        connectionPool.releaseConnection(conn);
+    }
+
+    @Test
+    public void closeStatement_uncachedStatement_closesStatement()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        PreparedStatement pstmt = conn.prepareStatement("SELECT * FROM people");
+        StatementCache.closeStatement(pstmt);
+        Assert.assertTrue(isClosed(pstmt));
+        connectionPool.releaseConnection(conn);
+    }
+
+    @Test
+    public void destroy_poolWithCachedStatements_closesStatements()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        PreparedStatement pstmt = StatementCache.forConnection(conn).prepare(
+                "SELECT * FROM people");
+        connectionPool.releaseConnection(conn);
+        connectionPool.destroy();
+        Assert.assertTrue(isClosed(pstmt));
+        connectionPool = null;
+    }
+
+    @Test
+    public void getCount_tableQueryCalledTwice_reusesStatement()
+            throws SQLException {
+        TableQuery query = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        query.getCount();
+        Connection conn = connectionPool.reserveConnection();
+        StatementCache cache = StatementCache.forConnection(conn);
+        connectionPool.releaseConnection(conn);
+        long hits = cache.getHitCount();
+        Assert.assertEquals(4, query.getCount());
+        Assert.assertEquals(hits + 1, cache.getHitCount());
+    }
+
+    @Test
+    public void prepare_cachedStatementInUse_returnsNewStatement()
+            throws SQLException {
+        Connection conn = connectionPool.reserveConnection();
+        StatementCache cache = StatementCache.forConnection(conn);
+        PreparedStatement first = cache.prepare("SELECT * FROM people");
+        PreparedStatement second = cache.prepare("SELECT * FROM people");
+        Assert.assertNotSame(first, second);
+        StatementCache.closeStatement(second);
+        Assert.assertTrue(isClosed(second));
+        StatementCache.closeStatement(first);
+        Assert.assertFalse(isClosed(first));
+        Assert.assertSame(first, cache.prepare("SELECT * FROM people"));
+        connectionPool.releaseConnection(conn);
+    }
+
+    @Test
+    public void forConnection_connectionNotFromCachingPool_returnsNull()
+            throws Exception {
+        Class.forName(AllTests.dbDriver);
+        Connection conn = DriverManager.getConnection(AllTests.dbURL,
+                AllTests.dbUser, AllTests.dbPwd);
+        try {
+            Assert.assertNull(StatementCache.forConnection(conn));
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Statement.isClosed() is not available in JDBC 3, but a closed statement
+     * can not be used.
+     */
+    private static boolean isClosed(Statement statement) {
+        try {
+            statement.getMaxRows();
+            return false;
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.vaadin.addon.sqlcontainer.filters;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+
+public class InTest {
+
+    private Item itemWithPropertyValue(Object propertyId, Object value) {
+        Property property = EasyMock.createMock(Property.class);
+        property.getValue();
+        EasyMock.expectLastCall().andReturn(value).anyTimes();
+        EasyMock.replay(property);
+
+        Item item = EasyMock.createMock(Item.class);
+        item.getItemProperty(propertyId);
+        EasyMock.expectLastCall().andReturn(property).anyTimes();
+        EasyMock.replay(item);
+        return item;
+    }
+
+    @Test
+    public void passesFilter_valueIsInValues_shouldBeTrue() {
+        Item item = itemWithPropertyValue("foo", 15);
+        In in = new In("foo", Arrays.asList(1, 15, 30));
+        Assert.assertTrue(in.passesFilter("foo", item));
+    }
+
+    @Test
+    public void passesFilter_valueIsNotInValues_shouldBeFalse() {
+        Item item = itemWithPropertyValue("foo", 15);
+        In in = new In("foo", Arrays.asList(1, 30));
+        Assert.assertFalse(in.passesFilter("foo", item));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_noValues_shouldFail() {
+        new In("foo", Arrays.asList());
+    }
+
+    @Test
+    public void appliesToProperty_differentProperties_shoudlBeFalse() {
+        In in = new In("foo", Arrays.asList(1));
+        Assert.assertFalse(in.appliesToProperty("bar"));
+    }
+
+    @Test
+    public void appliesToProperty_sameProperties_shouldBeTrue() {
+        In in = new In("foo", Arrays.asList(1));
+        Assert.assertTrue(in.appliesToProperty("foo"));
+    }
+
+    @Test
+    public void equals_equalInstances_shouldBeTrue() {
+        In i1 = new In("foo", Arrays.asList(1, 2));
+        In i2 = new In("foo", Arrays.asList(1, 2));
+        Assert.assertTrue(i1.equals(i2));
+        Assert.assertEquals(i1.hashCode(), i2.hashCode());
+    }
+
+    @Test
+    public void equals_valuesDiffer_shouldBeFalse() {
+        In i1 = new In("foo", Arrays.asList(1, 2));
+        In i2 = new In("foo", Arrays.asList(1, 3));
+        Assert.assertFalse(i1.equals(i2));
+    }
+}
@@ -1,6 +1,7 @@
 package com.vaadin.addon.sqlcontainer.query;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import junit.framework.Assert;
 
@@ -8,6 +9,7 @@ import org.easymock.EasyMock;
 import org.junit.Test;
 
 import com.vaadin.addon.sqlcontainer.filters.Between;
+import com.vaadin.addon.sqlcontainer.filters.In;
 import com.vaadin.addon.sqlcontainer.filters.Like;
 import com.vaadin.addon.sqlcontainer.query.generator.StatementHelper;
 import com.vaadin.addon.sqlcontainer.query.generator.filter.QueryBuilder;
@@ -156,6 +158,15 @@ public class QueryBuilderTest {
         EasyMock.verify(sh);
     }
 
+    @Test
+    public void getWhereStringForFilter_in() {
+        StatementHelper sh = mockedStatementHelper(1, 2, 3);
+        In f = new In("ID", Arrays.asList(1, 2, 3));
+        Assert.assertEquals("\"ID\" IN (?, ?, ?)",
+                QueryBuilder.getWhereStringForFilter(f, sh));
+        EasyMock.verify(sh);
+    }
+
     @Test
     public void getWhereStringForFilter_caseInsensitive_equals() {
         StatementHelper sh = mockedStatementHelper("FIDO");
@@ -18,6 +18,7 @@ import com.vaadin.addon.sqlcontainer.AllTests;
 import com.vaadin.addon.sqlcontainer.AllTests.DB;
 import com.vaadin.addon.sqlcontainer.DataGenerator;
 import com.vaadin.addon.sqlcontainer.OptimisticLockException;
+import com.vaadin.addon.sqlcontainer.RowId;
 import com.vaadin.addon.sqlcontainer.RowItem;
 import com.vaadin.addon.sqlcontainer.SQLContainer;
 import com.vaadin.addon.sqlcontainer.connection.JDBCConnectionPool;
@@ -141,6 +142,16 @@ public class TableQueryTest {
         Assert.assertNotNull(connectionPool.reserveConnection());
     }
 
+    @Test
+    public void getEstimatedCount_noEstimateFromDatabase_returnsExactCount()
+            throws SQLException {
+        TableQuery tQuery = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        tQuery.setExactCountThreshold(0);
+        Assert.assertEquals(4, tQuery.getEstimatedCount());
+        Assert.assertNotNull(connectionPool.reserveConnection());
+    }
+
     /**********************************************************************
      * TableQuery get results tests
      **********************************************************************/
@@ -411,6 +422,47 @@ public class TableQueryTest {
         Assert.assertFalse(container.removeItem("foo"));
     }
 
+    @Test
+    public void removeRows_versionSetAndRowRemovedExternally_shouldThrowException()
+            throws SQLException {
+        TableQuery tQuery = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        // In this test the primary key is used as a version column
+        tQuery.setVersionColumn("ID");
+        SQLContainer container = new SQLContainer(tQuery);
+        List<RowItem> rows = new ArrayList<RowItem>();
+        for (Object id : container.getItemIds()) {
+            rows.add((RowItem) container.getItem(id));
+        }
+
+        Connection conn = connectionPool.reserveConnection();
+        Statement statement = conn.createStatement();
+        statement.executeUpdate("DELETE FROM people WHERE \"ID\" = "
+                + rows.get(2).getItemProperty("ID").getValue());
+        statement.close();
+        conn.commit();
+        connectionPool.releaseConnection(conn);
+
+        tQuery.setBatchSize(2);
+        tQuery.beginTransaction();
+        try {
+            tQuery.removeRows(rows);
+            Assert.fail("Conflicting removal was not detected");
+        } catch (OptimisticLockException e) {
+            Assert.assertEquals(rows.get(2).getId(), e.getRowId());
+        } finally {
+            tQuery.rollback();
+        }
+        Assert.assertEquals(3, tQuery.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setBatchSize_zero_shouldFail() throws SQLException {
+        TableQuery tQuery = new TableQuery("people", connectionPool,
+                AllTests.sqlGen);
+        tQuery.setBatchSize(0);
+    }
+
     /**********************************************************************
      * TableQuery row adding / modification tests
      **********************************************************************/
@@ -528,7 +580,7 @@ public class TableQueryTest {
         if (AllTests.db == DB.HSQLDB) {
             throw new OptimisticLockException(
                     "HSQLDB doesn't support row versioning for optimistic locking - don't run this test.",
-                    null);
+                    (RowId) null);
         }
         DataGenerator.addVersionedData(connectionPool);
 
@@ -1,10 +1,12 @@
 package com.vaadin.addon.sqlcontainer.query.generator;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -116,6 +118,19 @@ public class SQLGeneratorsTest {
                 sh.getQueryString());
     }
 
+    @Test
+    public void generateDeleteQuery_filters_shouldSucceed() {
+        ExtendedSQLGenerator sg = new DefaultSQLGenerator();
+        List<Filter> f = new ArrayList<Filter>();
+        f.add(new Like("NAME", "%lle"));
+        StatementHelper sh = sg.generateDeleteQuery("people", f);
+        Assert.assertEquals("DELETE FROM people WHERE \"NAME\" LIKE ?",
+                sh.getQueryString());
+
+        sh = sg.generateDeleteQuery("people", null);
+        Assert.assertEquals("DELETE FROM people", sh.getQueryString());
+    }
+
     @Test
     public void generateUpdateQuery_basicQuery_shouldSucceed()
             throws SQLException {
@@ -136,10 +151,28 @@ public class SQLGeneratorsTest {
         ri.getItemProperty("NAME").setValue("Viljami");
 
         StatementHelper sh = sg.generateUpdateQuery("people", ri);
-        Assert.assertTrue("UPDATE people SET \"NAME\" = ?, \"AGE\" = ? WHERE \"ID\" = ?"
-                .equals(sh.getQueryString())
-                || "UPDATE people SET \"AGE\" = ?, \"NAME\" = ? WHERE \"ID\" = ?"
-                        .equals(sh.getQueryString()));
+        Assert.assertEquals("UPDATE people SET \"NAME\" = ? WHERE \"ID\" = ?",
+                sh.getQueryString());
+    }
+
+    @Test
+    public void generateUpdateQuery_noModifiedColumns_updatesAllColumns()
+            throws SQLException {
+        if (AllTests.sqlGen instanceof MSSQLGenerator
+                || AllTests.sqlGen instanceof OracleGenerator) {
+            return;
+        }
+        SQLGenerator sg = new DefaultSQLGenerator();
+        TableQuery query = new TableQuery("people", connectionPool);
+        SQLContainer container = new SQLContainer(query);
+
+        RowItem ri = (RowItem) container.getItem(container.getItemIds()
+                .iterator().next());
+
+        StatementHelper sh = sg.generateUpdateQuery("people", ri);
+        Assert.assertEquals(
+                "UPDATE people SET \"AGE\" = ?, \"NAME\" = ? WHERE \"ID\" = ?",
+                sh.getQueryString());
     }
 
     @Test
@@ -168,6 +201,43 @@ public class SQLGeneratorsTest {
                         .equals(sh.getQueryString()));
     }
 
+    @Test
+    public void generateMultiRowInsertQuery_twoItems_shouldSucceed()
+            throws SQLException {
+        if (AllTests.sqlGen instanceof MSSQLGenerator
+                || AllTests.sqlGen instanceof OracleGenerator) {
+            return;
+        }
+        TableQuery query = new TableQuery("people", connectionPool);
+        SQLContainer container = new SQLContainer(query);
+        List<RowItem> items = new ArrayList<RowItem>();
+        items.add((RowItem) container.getItem(container.addItem()));
+        items.add((RowItem) container.getItem(container.addItem()));
+        List<String> keys = Arrays.asList("ID");
+
+        DefaultSQLGenerator generator = new DefaultSQLGenerator();
+        Assert.assertNull(generator.generateMultiRowInsertQuery("people",
+                items, keys));
+        generator.setMultiRowInsertEnabled(true);
+        StatementHelper sh = generator.generateMultiRowInsertQuery("people",
+                items, keys);
+        Assert.assertEquals(
+                "INSERT INTO people (\"AGE\", \"NAME\") VALUES (?, ?), (?, ?)",
+                sh.getQueryString());
+
+        PostgreSQLGenerator postgres = new PostgreSQLGenerator();
+        postgres.setMultiRowInsertEnabled(true);
+        sh = postgres.generateMultiRowInsertQuery("people", items, keys);
+        Assert.assertEquals(
+                "INSERT INTO people (\"AGE\", \"NAME\") VALUES (?, ?), (?, ?) RETURNING \"ID\"",
+                sh.getQueryString());
+
+        Assert.assertNull(new MSSQLGenerator().generateMultiRowInsertQuery(
+                "people", items, keys));
+        Assert.assertNull(new OracleGenerator().generateMultiRowInsertQuery(
+                "people", items, keys));
+    }
+
     @Test
     public void generateComplexSelectQuery_forOracle_shouldSucceed()
             throws SQLException {
@@ -233,4 +303,127 @@ public class SQLGeneratorsTest {
                         + "OR \"name\" LIKE ?)) "
                         + "AS a WHERE a.rownum BETWEEN 5 AND 12");
     }
+
+    @Test
+    public void generateSeekQuery_filtersAndTwoOrderingColumns_shouldSucceed() {
+        ExtendedSQLGenerator sg = new DefaultSQLGenerator();
+        List<Filter> f = new ArrayList<Filter>();
+        f.add(new Like("name", "%lle"));
+        List<OrderBy> ob = Arrays.asList(new OrderBy("name", true),
+                new OrderBy("id", false));
+        StatementHelper sh = sg.generateSeekQuery("TABLE", f, ob, null,
+                new Object[] { "Pelle", 3 }, 8, null);
+        Assert.assertEquals(
+                "SELECT * FROM TABLE WHERE \"name\" LIKE ? AND (\"name\" > ? "
+                        + "OR (\"name\" = ? AND \"id\" < ?)) "
+                        + "ORDER BY \"name\" ASC, \"id\" DESC LIMIT 8 OFFSET 0",
+                sh.getQueryString());
+    }
+
+    @Test
+    public void generateSeekQuery_nullsSortedHigh_matchesNullsAfterKey() {
+        ExtendedSQLGenerator sg = new DefaultSQLGenerator();
+        List<OrderBy> ob = Arrays.asList(new OrderBy("name", true),
+                new OrderBy("id", true));
+        StatementHelper sh = sg.generateSeekQuery("TABLE", null, ob,
+                NullOrdering.HIGH, new Object[] { "Pelle", 3 }, 8, null);
+        Assert.assertEquals("SELECT * FROM TABLE WHERE ((\"name\" > ? "
+                + "OR \"name\" IS NULL) OR (\"name\" = ? "
+                + "AND (\"id\" > ? OR \"id\" IS NULL))) "
+                + "ORDER BY \"name\" ASC, \"id\" ASC LIMIT 8 OFFSET 0",
+                sh.getQueryString());
+    }
+
+    @Test
+    public void generateSeekQuery_nullKeyValueNullsSortedLow_matchesLaterNullsAndValues() {
+        ExtendedSQLGenerator sg = new DefaultSQLGenerator();
+        List<OrderBy> ob = Arrays.asList(new OrderBy("name", true),
+                new OrderBy("id", true));
+        StatementHelper sh = sg.generateSeekQuery("TABLE", null, ob,
+                NullOrdering.LOW, new Object[] { null, 3 }, 8, null);
+        Assert.assertEquals("SELECT * FROM TABLE WHERE (\"name\" IS NOT NULL "
+                + "OR (\"name\" IS NULL AND \"id\" > ?)) "
+                + "ORDER BY \"name\" ASC, \"id\" ASC LIMIT 8 OFFSET 0",
+                sh.getQueryString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void generateSeekQuery_nullKeyValueWithoutNullOrdering_shouldFail() {
+        ExtendedSQLGenerator sg = new DefaultSQLGenerator();
+        List<OrderBy> ob = Arrays.asList(new OrderBy("name", true),
+                new OrderBy("id", true));
+        sg.generateSeekQuery("TABLE", null, ob, null, new Object[] { null, 3 },
+                8, null);
+    }
+
+    @Test
+    public void generateRowPositionQuery_filtersAndTwoOrderingColumns_shouldSucceed() {
+        ExtendedSQLGenerator sg = new DefaultSQLGenerator();
+        List<Filter> f = new ArrayList<Filter>();
+        f.add(new Like("name", "%lle"));
+        List<OrderBy> ob = Arrays.asList(new OrderBy("name", true),
+                new OrderBy("id", false));
+        StatementHelper sh = sg.generateRowPositionQuery("TABLE", f, ob, null,
+                new Object[] { "Pelle", 3 });
+        Assert.assertEquals(
+                "SELECT COUNT(*) FROM TABLE WHERE \"name\" LIKE ? AND (\"name\" < ? "
+                        + "OR (\"name\" = ? AND \"id\" > ?))",
+                sh.getQueryString());
+    }
+
+    @Test
+    public void generateSelectQuery_primaryKeyColumnList_selectsOnlyKeys() {
+        ExtendedSQLGenerator sg = new DefaultSQLGenerator();
+        String toSelect = sg.generateColumnList(Arrays.asList("id", "version"));
+        StatementHelper sh = sg.generateSelectQuery("TABLE", null,
+                Arrays.asList(new OrderBy("id", true)), 4, 8, toSelect);
+        Assert.assertEquals("SELECT \"id\", \"version\" FROM TABLE "
+                + "ORDER BY \"id\" ASC LIMIT 8 OFFSET 4", sh.getQueryString());
+    }
+
+    @Test
+    public void generateEstimatedCountQuery_defaultGenerator_returnsNull() {
+        ExtendedSQLGenerator sg = new DefaultSQLGenerator();
+        Assert.assertNull(sg.generateEstimatedCountQuery("TABLE", null));
+    }
+
+    @Test
+    public void generateEstimatedCountQuery_postgreSQLWithFilter_shouldSucceed() {
+        ExtendedSQLGenerator sg = new PostgreSQLGenerator();
+        List<Filter> f = new ArrayList<Filter>();
+        f.add(new Like("name", "%lle"));
+        StatementHelper sh = sg.generateEstimatedCountQuery("TABLE", f);
+        Assert.assertEquals("EXPLAIN SELECT * FROM TABLE WHERE \"name\" LIKE ?",
+                sh.getQueryString());
+    }
+
+    @Test
+    public void readEstimatedCount_postgreSQLPlan_returnsPlannerRows()
+            throws SQLException {
+        ResultSet rs = EasyMock.createMock(ResultSet.class);
+        EasyMock.expect(rs.next()).andReturn(true);
+        EasyMock.expect(rs.getString(1)).andReturn(
+                "Seq Scan on people  (cost=0.00..22.70 rows=1270 width=36)");
+        EasyMock.replay(rs);
+        Assert.assertEquals(1270, new PostgreSQLGenerator()
+                .readEstimatedCount(rs));
+        EasyMock.verify(rs);
+    }
+
+    @Test
+    public void generateEstimatedCountQuery_oracleWithoutFilters_queriesTableStatistics() {
+        ExtendedSQLGenerator sg = new OracleGenerator();
+        StatementHelper sh = sg.generateEstimatedCountQuery("people", null);
+        Assert.assertEquals(
+                "SELECT NUM_ROWS FROM USER_TABLES WHERE TABLE_NAME = ?",
+                sh.getQueryString());
+    }
+
+    @Test
+    public void generateEstimatedCountQuery_MSSQLWithFilter_returnsNull() {
+        ExtendedSQLGenerator sg = new MSSQLGenerator();
+        List<Filter> f = new ArrayList<Filter>();
+        f.add(new Like("name", "%lle"));
+        Assert.assertNull(sg.generateEstimatedCountQuery("TABLE", f));
+    }
 }